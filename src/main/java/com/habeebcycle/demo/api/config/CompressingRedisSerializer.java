@@ -0,0 +1,90 @@
+package com.habeebcycle.demo.api.config;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+/**
+ * Compresses values above a size threshold with LZ4.
+ *
+ * Compressed values are written as a header byte, the uncompressed length (4 bytes, big endian) and the
+ * LZ4 block. Smaller values are stored exactly as the delegate wrote them. JSON never starts with the header
+ * byte, so records written before compression was enabled, or below the threshold, remain readable.
+ *
+ * Values are at most maxValueBytes long uncompressed. Larger ones are refused on write, and a header claiming
+ * more, or more than LZ4 can expand the block to, is refused before anything is allocated for it.
+ */
+public class CompressingRedisSerializer<T> implements RedisSerializer<T> {
+
+    static final byte LZ4_HEADER = 0x01;
+    private static final int HEADER_LENGTH = 5;
+    // An LZ4 block expands to at most about 255 times its length
+    private static final int MAX_RATIO = 255;
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    private final RedisSerializer<T> delegate;
+    private final int threshold;
+    private final int maxValueBytes;
+    private final LZ4Compressor compressor = LZ4.fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4.fastDecompressor();
+
+    public CompressingRedisSerializer(RedisSerializer<T> delegate, int threshold, int maxValueBytes) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+        this.maxValueBytes = maxValueBytes;
+    }
+
+    @Override
+    public byte[] serialize(T value) throws SerializationException {
+        byte[] bytes = delegate.serialize(value);
+        if (bytes != null && bytes.length > maxValueBytes) {
+            throw new SerializationException("Cannot be saved: value of " + bytes.length
+                    + " bytes is over the maximum of " + maxValueBytes + " bytes.");
+        }
+        if (bytes == null || bytes.length < threshold) {
+            return bytes;
+        }
+
+        byte[] compressed = new byte[HEADER_LENGTH + compressor.maxCompressedLength(bytes.length)];
+        int compressedLength = compressor.compress(bytes, 0, bytes.length, compressed, HEADER_LENGTH);
+        if (HEADER_LENGTH + compressedLength >= bytes.length) {
+            return bytes; // Not worth it, keep the value readable without decompression
+        }
+
+        compressed[0] = LZ4_HEADER;
+        compressed[1] = (byte) (bytes.length >>> 24);
+        compressed[2] = (byte) (bytes.length >>> 16);
+        compressed[3] = (byte) (bytes.length >>> 8);
+        compressed[4] = (byte) bytes.length;
+
+        byte[] result = new byte[HEADER_LENGTH + compressedLength];
+        System.arraycopy(compressed, 0, result, 0, result.length);
+        return result;
+    }
+
+    @Override
+    public T deserialize(byte[] bytes) throws SerializationException {
+        if (bytes == null || bytes.length == 0 || bytes[0] != LZ4_HEADER) {
+            return delegate.deserialize(bytes);
+        }
+        if (bytes.length < HEADER_LENGTH) {
+            throw new SerializationException("Cannot be read: compressed value is truncated.");
+        }
+
+        int length = ((bytes[1] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16) | ((bytes[3] & 0xFF) << 8) | (bytes[4] & 0xFF);
+        if (length < 0 || length > maxValueBytes || length > (long) (bytes.length - HEADER_LENGTH) * MAX_RATIO) {
+            throw new SerializationException("Cannot be read: compressed value claims " + (length & 0xFFFFFFFFL)
+                    + " bytes uncompressed, over the maximum of " + maxValueBytes + " bytes.");
+        }
+        byte[] uncompressed = new byte[length];
+        try {
+            decompressor.decompress(bytes, HEADER_LENGTH, uncompressed, 0, length);
+        } catch (RuntimeException e) {
+            throw new SerializationException("Cannot be read: compressed value is corrupted.", e);
+        }
+        return delegate.deserialize(uncompressed);
+    }
+}
@@ -0,0 +1,146 @@
+package com.habeebcycle.demo.api.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.Epoll;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.web.embedded.netty.NettyServerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.resources.LoopResources;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection level settings of the Reactor Netty server, on top of the ones Spring Boot applies
+ * (server.port, server.compression, server.http2.enabled for h2 over SSL). Without SSL, server.http2.enabled
+ * serves h2c next to HTTP/1.1, by upgrade or with prior knowledge.
+ *
+ * The server gets its own event loops, on the native epoll transport when available, instead of sharing
+ * the global ones with the web clients. Connections over max-connections are closed as soon as they are
+ * accepted, and connections without any traffic for idle-timeout are closed. HTTP metrics are recorded by
+ * Reactor Netty under reactor.netty.http.server, the connections under http.server.connections.
+ */
+@Configuration
+public class NettyServerConfiguration {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NettyServerConfiguration.class);
+
+    @Value("${app.server.worker-threads:0}")
+    private int workerThreads;
+
+    @Value("${app.server.select-threads:0}")
+    private int selectThreads;
+
+    @Value("${app.server.native-transport:true}")
+    private boolean nativeTransport;
+
+    @Value("${app.server.max-connections:0}")
+    private int maxConnections;
+
+    @Value("${app.server.idle-timeout:60s}")
+    private Duration idleTimeout;
+
+    @Value("${app.server.backlog:1024}")
+    private int backlog;
+
+    @Value("${app.server.metrics-enabled:true}")
+    private boolean metricsEnabled;
+
+    @Bean(destroyMethod = "dispose")
+    public LoopResources serverLoopResources() {
+        // 0 worker threads keeps the Netty default of one per core, 0 select threads accepts on the workers
+        int workers = workerThreads > 0 ? workerThreads : LoopResources.DEFAULT_IO_WORKER_COUNT;
+        return selectThreads > 0
+                ? LoopResources.create("http-server", selectThreads, workers, true)
+                : LoopResources.create("http-server", workers, true);
+    }
+
+    @Bean
+    public NettyServerCustomizer nettyServerCustomizer(LoopResources serverLoopResources, MeterRegistry meterRegistry,
+                                                       ServerProperties serverProperties) {
+        boolean h2c = serverProperties.getHttp2() != null && serverProperties.getHttp2().isEnabled()
+                && (serverProperties.getSsl() == null || !serverProperties.getSsl().isEnabled());
+        AtomicLong active = new AtomicLong();
+        AtomicLong accepted = new AtomicLong();
+        Gauge.builder("http.server.connections.active", active, AtomicLong::get)
+                .description("Open client connections")
+                .register(meterRegistry);
+        FunctionCounter.builder("http.server.connections.accepted", accepted, AtomicLong::get)
+                .description("Client connections accepted")
+                .register(meterRegistry);
+        Counter rejected = Counter.builder("http.server.connections.rejected")
+                .description("Client connections closed because max-connections were open")
+                .register(meterRegistry);
+
+        LOG.info("HTTP server on the {} transport", nativeTransport && Epoll.isAvailable() ? "epoll" : "nio");
+        return httpServer -> {
+            httpServer = httpServer
+                    .runOn(serverLoopResources, nativeTransport)
+                    .option(ChannelOption.SO_BACKLOG, backlog)
+                    .doOnChannelInit((observer, channel, remoteAddress) -> {
+                        accepted.incrementAndGet();
+                        if (active.incrementAndGet() > maxConnections && maxConnections > 0) {
+                            active.decrementAndGet();
+                            rejected.increment();
+                            channel.close();
+                            return;
+                        }
+                        channel.closeFuture().addListener(future -> active.decrementAndGet());
+                        if (!idleTimeout.isZero() && !idleTimeout.isNegative()) {
+                            channel.pipeline().addFirst(new IdleConnectionHandler(idleTimeout));
+                        }
+                    });
+            if (h2c) {
+                httpServer = httpServer.protocol(HttpProtocol.HTTP11, HttpProtocol.H2C);
+            }
+            if (metricsEnabled) {
+                httpServer = httpServer.metrics(true, NettyServerConfiguration::uriTag);
+            }
+            return httpServer;
+        };
+    }
+
+    // Closes connections without any traffic for the timeout. HttpServer.idleTimeout is not used, it fails
+    // on connections accepting h2c
+    private static class IdleConnectionHandler extends IdleStateHandler {
+
+        IdleConnectionHandler(Duration timeout) {
+            super(0, 0, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent event) {
+            ctx.close();
+        }
+    }
+
+    // Ids are left out of the uri tag of the metrics, one tag per route keeps their number bounded. Paths
+    // of no route share the UNKNOWN tag, so clients cannot add tags
+    static String uriTag(String uri) {
+        int query = uri.indexOf('?');
+        String path = query >= 0 ? uri.substring(0, query) : uri;
+        if (path.equals("/user") || path.equals("/user/lookup")) {
+            return path;
+        }
+        if (path.startsWith("/user/") && path.indexOf('/', "/user/".length()) < 0) {
+            return "/user/{userId}";
+        }
+        if (path.equals("/actuator") || path.startsWith("/actuator/")) {
+            return "/actuator";
+        }
+        return "UNKNOWN";
+    }
+}
@@ -8,9 +8,11 @@ import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
 import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.GenericToStringSerializer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
 @Configuration
@@ -25,6 +27,12 @@ public class RedisConfiguration {
     @Value("${spring.redis.password}")
     private String redisPassword;
 
+    @Value("${app.compression.value-threshold-bytes:1024}")
+    private int compressionThreshold;
+
+    @Value("${app.compression.max-value-bytes:16777216}")
+    private int maxValueBytes;
+
     @Bean
     public LettuceConnectionFactory lettuceConnectionFactory() {
         RedisStandaloneConfiguration redisStandaloneConfig = new RedisStandaloneConfiguration();
@@ -41,8 +49,27 @@ public class RedisConfiguration {
                 .key(new StringRedisSerializer())
                 .value(new GenericToStringSerializer<>(User.class))
                 .hashKey(new StringRedisSerializer())
-                .hashValue(new GenericJackson2JsonRedisSerializer())
+                .hashValue(hashValueSerializer())
                 .build();
         return new ReactiveRedisTemplate<>(connectionFactory, serializationContext);
     }
+
+    // Synchronous template with the same serialization, used by the blocking repository
+    @Bean
+    public RedisTemplate<String, User> userRedisTemplate(LettuceConnectionFactory connectionFactory) {
+        RedisTemplate<String, User> redisTemplate = new RedisTemplate<>();
+        redisTemplate.setConnectionFactory(connectionFactory);
+        redisTemplate.setKeySerializer(new StringRedisSerializer());
+        redisTemplate.setValueSerializer(new GenericToStringSerializer<>(User.class));
+        redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        redisTemplate.setHashValueSerializer(hashValueSerializer());
+        return redisTemplate;
+    }
+
+    private RedisSerializer<Object> hashValueSerializer() {
+        return compressionThreshold > 0
+                ? new CompressingRedisSerializer<>(new GenericJackson2JsonRedisSerializer(), compressionThreshold,
+                        maxValueBytes)
+                : new GenericJackson2JsonRedisSerializer();
+    }
 }
@@ -0,0 +1,75 @@
+package com.habeebcycle.demo.api.controller;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.core.codec.EncodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes a Flux as a JSON array one chunk of values at a time. The JSON encoder of WebFlux collects
+ * a Flux into a list before writing an array, this writes each chunk as soon as it is complete.
+ *
+ * At most maxInFlight values are requested ahead of the chunks written to the response, and chunks
+ * are only requested while the connection accepts writes, so the memory used does not depend on
+ * the number of values.
+ */
+class JsonArrayStream {
+
+    private final static byte[] START = "[".getBytes(StandardCharsets.UTF_8);
+    private final static byte[] END = "]".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectMapper objectMapper;
+    private final int chunkSize;
+    private final int maxInFlight;
+
+    JsonArrayStream(ObjectMapper objectMapper, int chunkSize, int maxInFlight) {
+        this.objectMapper = objectMapper;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = Math.max(maxInFlight, chunkSize);
+    }
+
+    <T> Flux<DataBuffer> encode(Flux<T> values, Class<T> type, DataBufferFactory bufferFactory) {
+        // Values written one after the other to a generator are separated by a comma
+        ObjectWriter writer = objectMapper.writerFor(type).withRootValueSeparator(",");
+        return Flux.defer(() -> {
+            boolean[] first = {true};
+            Flux<DataBuffer> chunks = values
+                    .limitRate(maxInFlight)
+                    .buffer(chunkSize)
+                    .map(chunk -> {
+                        DataBuffer buffer = encode(chunk, first[0], writer, bufferFactory);
+                        first[0] = false;
+                        return buffer;
+                    });
+            return Flux.concat(
+                    Mono.fromCallable(() -> bufferFactory.wrap(START)),
+                    chunks,
+                    Mono.fromCallable(() -> bufferFactory.wrap(END)));
+        });
+    }
+
+    private static DataBuffer encode(List<?> chunk, boolean first, ObjectWriter writer, DataBufferFactory bufferFactory) {
+        DataBuffer buffer = bufferFactory.allocateBuffer();
+        try (JsonGenerator generator = writer.createGenerator(buffer.asOutputStream())) {
+            if (!first) {
+                generator.writeRaw(',');
+            }
+            for (Object value : chunk) {
+                writer.writeValue(generator, value);
+            }
+        } catch (IOException e) {
+            DataBufferUtils.release(buffer);
+            throw new EncodingException("JSON encoding error: " + e.getMessage(), e);
+        }
+        return buffer;
+    }
+}
@@ -1,42 +1,120 @@
 package com.habeebcycle.demo.api.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.model.UserLookup;
+import com.habeebcycle.demo.api.persistence.IdempotentUserGoneException;
+import com.habeebcycle.demo.api.persistence.TenantQuotaExceededException;
+import com.habeebcycle.demo.api.service.RedisUnavailableException;
 import com.habeebcycle.demo.api.service.UserService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+import java.util.List;
+
 @RestController
 @RequestMapping("/user")
 public class UserController {
 
     private final UserService userService;
+    private final JsonArrayStream jsonArrayStream;
+    private final int lookupMaxIds;
 
-    public UserController(UserService userService) {
+    public UserController(UserService userService, ObjectMapper objectMapper,
+                          @Value("${app.lookup.max-ids:1000}") int lookupMaxIds,
+                          @Value("${app.list.chunk-size:100}") int listChunkSize,
+                          @Value("${app.list.max-in-flight:1000}") int listMaxInFlight) {
         this.userService = userService;
+        this.jsonArrayStream = new JsonArrayStream(objectMapper, listChunkSize, listMaxInFlight);
+        this.lookupMaxIds = lookupMaxIds;
     }
 
     @GetMapping
-    public Flux<User> getAllUsers() {
-        return userService.getAllUsers();
+    public Mono<ResponseEntity<Flux<DataBuffer>>> getAllUsers(ServerHttpResponse response) {
+        // The array is written chunk by chunk while the users are scanned, never held as a whole.
+        // With a local snapshot, a request whose If-None-Match matches the ETag gets a 304 without a body
+        return userService.getAllUsersSnapshot()
+                .map(snapshot -> ResponseEntity.ok()
+                        .eTag(snapshot.getETag())
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .body(jsonArrayStream.encode(Flux.fromIterable(snapshot.getUsers()), User.class,
+                                response.bufferFactory())))
+                .defaultIfEmpty(ResponseEntity.ok()
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .body(jsonArrayStream.encode(userService.getAllUsers(), User.class, response.bufferFactory())));
+    }
+
+    @GetMapping(params = "ids")
+    public Flux<UserLookup> getUsersByIds(@RequestParam List<String> ids) {
+        return lookupUsers(ids);
+    }
+
+    @PostMapping("/lookup")
+    public Flux<UserLookup> lookupUsers(@RequestBody List<String> ids) {
+        if (ids.size() > lookupMaxIds) {
+            return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "At most " + lookupMaxIds + " ids can be looked up at once, got " + ids.size() + "."));
+        }
+        return userService.lookupUsers(ids);
     }
 
     @GetMapping("/{userId}")
-    public Mono<User> getUserById(@PathVariable String userId) {
-        return userService.getUserById(userId);
+    public Mono<ResponseEntity<User>> getUserById(@PathVariable String userId,
+                                                  @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        Mono<ResponseEntity<User>> user = userService.getUserById(userId)
+                .map(found -> ResponseEntity.ok().eTag(eTag(found.getVersion())).body(found))
+                .defaultIfEmpty(ResponseEntity.ok().build());
+        if (ifNoneMatch == null) {
+            return user;
+        }
+        // Only the version is read to answer a matching If-None-Match, the user itself is not loaded
+        return userService.getUserVersion(userId)
+                .onErrorResume(RedisUnavailableException.class, e -> Mono.empty()) // The user may still be served
+                .filter(version -> eTag(version).equals(ifNoneMatch))
+                .map(version -> ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag(version)).<User>build())
+                .switchIfEmpty(user);
     }
 
     @PostMapping
-    public Mono<User> createUser(@RequestBody User user) {
-        return userService.saveUser(user);
+    public Mono<User> createUser(@RequestBody User user, @RequestParam(required = false) Long ttl,
+                                 @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey) {
+        // Optional ttl in seconds after which the user is removed
+        return userService.createUser(user, ttl != null ? Duration.ofSeconds(ttl) : null, idempotencyKey)
+                .onErrorMap(TenantQuotaExceededException.class, UserController::insufficientStorage)
+                .onErrorMap(IdempotentUserGoneException.class,
+                        e -> new ResponseStatusException(HttpStatus.GONE, e.getMessage()));
     }
 
     @PutMapping("/{userId}")
-    public Mono<User> updateUser(@PathVariable String userId, @RequestBody User user) {
+    public Mono<ResponseEntity<User>> updateUser(@PathVariable String userId, @RequestBody User user,
+                                                 @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
         if(user.getId() == null || user.getId().isEmpty()) {
             user.setId(userId);
         }
-        return userService.saveUser(user);
+        Mono<User> saved = userService.saveUser(user)
+                .onErrorMap(TenantQuotaExceededException.class, UserController::insufficientStorage);
+        if (ifMatch != null && !ifMatch.equals("*")) {
+            // The ETag is the version the client read, the update fails if the user changed since
+            Integer version = parseETag(ifMatch);
+            if (version == null) {
+                return Mono.error(new ResponseStatusException(HttpStatus.PRECONDITION_FAILED));
+            }
+            user.setVersion(version);
+            saved = saved.onErrorMap(OptimisticLockingFailureException.class,
+                    e -> new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, e.getMessage()));
+        }
+        return saved.map(updated -> ResponseEntity.ok().eTag(eTag(updated.getVersion())).body(updated));
     }
 
     @DeleteMapping("/{userId}")
@@ -48,4 +126,24 @@ public class UserController {
     public Mono<Void> deleteAllUsers() {
         return userService.deleteAllUsers();
     }
+
+    private static ResponseStatusException insufficientStorage(TenantQuotaExceededException e) {
+        return new ResponseStatusException(HttpStatus.INSUFFICIENT_STORAGE, e.getMessage());
+    }
+
+    private static String eTag(Integer version) {
+        return "\"" + version + "\"";
+    }
+
+    private static Integer parseETag(String eTag) {
+        String value = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
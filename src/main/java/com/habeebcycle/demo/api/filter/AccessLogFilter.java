@@ -0,0 +1,107 @@
+package com.habeebcycle.demo.api.filter;
+
+import com.habeebcycle.demo.api.persistence.RequestTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.LOOKUP;
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.UNIQUENESS;
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.WRITE;
+
+/**
+ * Writes one key=value line per /user request with the time spent in each repository phase.
+ *
+ * Lines of ordinary requests are sampled to a bounded rate. Requests slower than the slow threshold and
+ * server errors are always logged, at WARN, with the last max-commands Redis commands they sent in order.
+ * Every request keeps them in a ring of that size, only formatted when it is slow. Runs first so the time
+ * includes every other filter, shed requests too.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class AccessLogFilter implements WebFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger("com.habeebcycle.demo.api.access");
+
+    private final boolean enabled;
+    private final AccessLogSampler sampler;
+    private final long slowThresholdNanos;
+    private final int maxCommands;
+
+    public AccessLogFilter(@Value("${app.access-log.enabled:true}") boolean enabled,
+                           @Value("${app.access-log.max-per-second:100}") int maxPerSecond,
+                           @Value("${app.access-log.slow-threshold:500ms}") Duration slowThreshold,
+                           @Value("${app.access-log.max-commands:100}") int maxCommands) {
+        this.enabled = enabled;
+        this.sampler = new AccessLogSampler(maxPerSecond);
+        this.slowThresholdNanos = slowThreshold.toNanos();
+        this.maxCommands = maxCommands;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!enabled || !exchange.getRequest().getPath().value().startsWith("/user")) {
+            return chain.filter(exchange);
+        }
+
+        RequestTrace trace = new RequestTrace(maxCommands);
+        return chain.filter(exchange)
+                .doFinally(signal -> log(exchange, trace))
+                .contextWrite(RequestTrace.with(trace));
+    }
+
+    private void log(ServerWebExchange exchange, RequestTrace trace) {
+        long elapsed = trace.getElapsedNanos();
+        int status = status(exchange.getResponse());
+        boolean slow = elapsed >= slowThresholdNanos || status >= 500;
+        if (slow ? !LOG.isWarnEnabled() : !LOG.isInfoEnabled() || !sampler.sample()) {
+            return;
+        }
+
+        ServerHttpRequest request = exchange.getRequest();
+        StringBuilder line = new StringBuilder()
+                .append("method=").append(request.getMethodValue())
+                .append(" path=").append(request.getPath().value())
+                .append(" status=").append(status)
+                .append(" duration_ms=").append(millis(elapsed))
+                .append(" lookup_ms=").append(millis(trace.getPhaseNanos(LOOKUP)))
+                .append(" uniqueness_ms=").append(millis(trace.getPhaseNanos(UNIQUENESS)))
+                .append(" write_ms=").append(millis(trace.getPhaseNanos(WRITE)))
+                .append(" redis_commands=").append(trace.getCommandCount());
+        if (!slow) {
+            LOG.info(line.append(" sample_rate=").append(String.format("%.3f", sampler.getRate())).toString());
+            return;
+        }
+
+        line.append(" slow=true commands=[");
+        List<RequestTrace.Command> commands = trace.getCommands();
+        if (trace.getCommandCount() > commands.size()) {
+            line.append("\n  ... ").append(trace.getCommandCount() - commands.size()).append(" earlier");
+        }
+        commands.forEach(command -> line.append("\n  ").append(command));
+        LOG.warn(line.append("]").toString());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    // Responses completed without an explicit status are 200
+    private static int status(ServerHttpResponse response) {
+        Integer status = response.getRawStatusCode();
+        return status != null ? status : HttpStatus.OK.value();
+    }
+}
@@ -0,0 +1,47 @@
+package com.habeebcycle.demo.api.filter;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the requests to log so that about maxPerSecond lines are written per second whatever the load.
+ * The probability applied in a second is derived from the number of requests seen in the second before:
+ * all of them are logged under light load, a shrinking share of them as the load grows. A maxPerSecond of
+ * 0 samples none.
+ */
+class AccessLogSampler {
+
+    private final int maxPerSecond;
+    private final AtomicLong second = new AtomicLong();
+    private final AtomicLong seen = new AtomicLong();
+    private volatile double rate = 1.0;
+
+    AccessLogSampler(int maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    boolean sample() {
+        return sample(System.currentTimeMillis());
+    }
+
+    boolean sample(long nowMillis) {
+        if (maxPerSecond <= 0) {
+            return false;
+        }
+        long now = nowMillis / 1000;
+        long current = second.get();
+        if (now != current && second.compareAndSet(current, now)) {
+            // Seconds without a request leave nothing to adapt to, so start over with all of them
+            long previous = seen.getAndSet(0);
+            rate = now - current > 1 || previous <= maxPerSecond ? 1.0 : (double) maxPerSecond / previous;
+        }
+        seen.incrementAndGet();
+        double sampleRate = rate;
+        return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    // Share of the requests currently logged
+    double getRate() {
+        return rate;
+    }
+}
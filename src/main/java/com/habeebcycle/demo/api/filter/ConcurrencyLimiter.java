@@ -0,0 +1,83 @@
+package com.habeebcycle.demo.api.filter;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit on the number of in-flight requests reaching the repository (AIMD).
+ *
+ * The limit grows by one for every window of calls completed under the target latency while the
+ * limit was actually in use, and shrinks multiplicatively as soon as a call exceeds it, so the
+ * service backs off before Redis saturates instead of queueing on the single connection. The calls
+ * in flight when it shrinks are slow for the same reason, so it shrinks at most once per backoff window.
+ * The latency of a request is the time it spent in repository calls.
+ */
+@Component
+public class ConcurrencyLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final double backoffRatio;
+    private final long backoffWindowNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    private long lastBackoff;
+
+    public ConcurrencyLimiter(@Value("${app.concurrency-limit.initial-limit:64}") int initialLimit,
+                              @Value("${app.concurrency-limit.min-limit:8}") int minLimit,
+                              @Value("${app.concurrency-limit.max-limit:1024}") int maxLimit,
+                              @Value("${app.concurrency-limit.target-latency-ms:100}") long targetLatencyMs,
+                              @Value("${app.concurrency-limit.backoff-ratio:0.9}") double backoffRatio,
+                              @Value("${app.concurrency-limit.backoff-window-ms:100}") long backoffWindowMs) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = targetLatencyMs * 1_000_000;
+        this.backoffRatio = backoffRatio;
+        this.backoffWindowNanos = backoffWindowMs * 1_000_000;
+        this.lastBackoff = System.nanoTime() - backoffWindowNanos;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * @return false if the call must be shed, otherwise the caller owns a permit and must call {@link #release}
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release(long latencyNanos) {
+        int current = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (latencyNanos > targetLatencyNanos) {
+                long now = System.nanoTime();
+                if (now - lastBackoff >= backoffWindowNanos) {
+                    lastBackoff = now;
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                }
+            } else if (current * 2 >= limit) {
+                // Only probe upwards when the limit is actually constraining
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,67 @@
+package com.habeebcycle.demo.api.filter;
+
+import com.habeebcycle.demo.api.persistence.ReplicaReads;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+/**
+ * Read-your-writes with replica reads: successful writes on /user are answered with a consistency
+ * token header, and reads sending it back are only served by a replica that caught up with it.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 6)
+public class ConsistencyTokenFilter implements WebFilter {
+
+    public static final String CONSISTENCY_TOKEN_HEADER = "X-Consistency-Token";
+
+    private final ReplicaReads replicaReads;
+
+    public ConsistencyTokenFilter(ReplicaReads replicaReads) {
+        this.replicaReads = replicaReads;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!replicaReads.isEnabled() || !exchange.getRequest().getPath().value().startsWith("/user")) {
+            return chain.filter(exchange);
+        }
+
+        HttpMethod method = exchange.getRequest().getMethod();
+        if (method == HttpMethod.POST || method == HttpMethod.PUT || method == HttpMethod.DELETE) {
+            // Read once the response is complete, so the offset covers the write
+            ServerHttpResponse response = exchange.getResponse();
+            response.beforeCommit(() -> isSuccessful(response)
+                    ? replicaReads.token()
+                            .doOnNext(token -> response.getHeaders().set(CONSISTENCY_TOKEN_HEADER, String.valueOf(token)))
+                            .onErrorResume(e -> Mono.empty())
+                            .then()
+                    : Mono.empty());
+        }
+
+        String token = exchange.getRequest().getHeaders().getFirst(CONSISTENCY_TOKEN_HEADER);
+        if (token == null) {
+            return chain.filter(exchange);
+        }
+        long offset;
+        try {
+            offset = Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            exchange.getResponse().setStatusCode(HttpStatus.BAD_REQUEST);
+            return exchange.getResponse().setComplete();
+        }
+        return chain.filter(exchange).contextWrite(ReplicaReads.withToken(offset));
+    }
+
+    private static boolean isSuccessful(ServerHttpResponse response) {
+        Integer status = response.getRawStatusCode();
+        return status == null || (status >= 200 && status < 300);
+    }
+}
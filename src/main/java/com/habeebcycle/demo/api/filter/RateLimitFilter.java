@@ -0,0 +1,95 @@
+package com.habeebcycle.demo.api.filter;
+
+import com.habeebcycle.demo.api.persistence.RequestTrace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sheds load on the /user API before it reaches Redis: 429 when a client or the whole cluster
+ * runs over its token bucket, 503 when the adaptive in-flight limit is reached.
+ *
+ * Clients are told apart by their remote address. The X-Client-Id header is only trusted on requests
+ * coming from one of the trusted proxies, which set it for the clients behind them.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class RateLimitFilter implements WebFilter {
+
+    private static final String CLIENT_ID_HEADER = "X-Client-Id";
+
+    private final RateLimiter rateLimiter;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final boolean rateLimitEnabled;
+    private final boolean concurrencyLimitEnabled;
+    private final Set<String> trustedProxies;
+
+    public RateLimitFilter(RateLimiter rateLimiter, ConcurrencyLimiter concurrencyLimiter,
+                           @Value("${app.rate-limit.enabled:true}") boolean rateLimitEnabled,
+                           @Value("${app.concurrency-limit.enabled:true}") boolean concurrencyLimitEnabled,
+                           @Value("${app.rate-limit.trusted-proxies:}") List<String> trustedProxies) {
+        this.rateLimiter = rateLimiter;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.rateLimitEnabled = rateLimitEnabled;
+        this.concurrencyLimitEnabled = concurrencyLimitEnabled;
+        this.trustedProxies = new HashSet<>(trustedProxies);
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!exchange.getRequest().getPath().value().startsWith("/user")) {
+            return chain.filter(exchange);
+        }
+        if (!rateLimitEnabled) {
+            return limitConcurrency(exchange, chain);
+        }
+
+        return rateLimiter.acquire(clientId(exchange))
+                .flatMap(decision -> decision == RateLimiter.Decision.ALLOWED
+                        ? limitConcurrency(exchange, chain)
+                        : reject(exchange.getResponse(), HttpStatus.TOO_MANY_REQUESTS));
+    }
+
+    private Mono<Void> limitConcurrency(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!concurrencyLimitEnabled) {
+            return chain.filter(exchange);
+        }
+        if (!concurrencyLimiter.tryAcquire()) {
+            return reject(exchange.getResponse(), HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        // The latency sampled is the time spent in the repository calls, not in the rest of the request
+        return RequestTrace.traced(trace -> chain.filter(exchange)
+                .doFinally(signal -> concurrencyLimiter.release(trace.getCallNanos())));
+    }
+
+    private Mono<Void> reject(ServerHttpResponse response, HttpStatus status) {
+        response.setStatusCode(status);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, "1");
+        return response.setComplete();
+    }
+
+    String clientId(ServerWebExchange exchange) {
+        InetSocketAddress remoteAddress = exchange.getRequest().getRemoteAddress();
+        String address = remoteAddress != null && remoteAddress.getAddress() != null
+                ? remoteAddress.getAddress().getHostAddress() : "unknown";
+        if (!trustedProxies.contains(address)) {
+            return address;
+        }
+        String clientId = exchange.getRequest().getHeaders().getFirst(CLIENT_ID_HEADER);
+        return clientId != null && !clientId.isEmpty() ? clientId : address;
+    }
+}
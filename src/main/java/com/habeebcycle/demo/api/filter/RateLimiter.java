@@ -0,0 +1,131 @@
+package com.habeebcycle.demo.api.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-client and global token bucket limits.
+ *
+ * Every request is first checked against local buckets held by this instance, which reject most of
+ * the excess traffic without touching Redis. When the Redis limit is enabled, requests accepted locally
+ * are then checked against cluster-wide buckets updated atomically by a Lua script.
+ *
+ * At most max-tracked-clients local client buckets are held. Buckets that refilled completely are swept
+ * every sweep-interval; while the limit is reached, clients without a bucket share a single one.
+ */
+@Component
+public class RateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RateLimiter.class);
+
+    // One script touches a client bucket and the global one, the {RATE_LIMIT} hash tag keeps them on one
+    // slot of a cluster. Every check touches the global bucket, so the slot carries all of them either way
+    private static final String KEY_PREFIX = "{RATE_LIMIT}:";
+    private static final String GLOBAL_KEY = KEY_PREFIX + "GLOBAL";
+
+    private static final RedisScript<Long> RATE_LIMIT_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/rate_limit.lua"), Long.class);
+
+    public enum Decision { ALLOWED, CLIENT_LIMITED, GLOBAL_LIMITED }
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+
+    private final long clientRate;
+    private final long clientBurst;
+    private final long globalRate;
+    private final long globalBurst;
+    private final boolean redisEnabled;
+    private final int maxTrackedClients;
+    private final Duration sweepInterval;
+
+    private final TokenBucket globalBucket;
+    private final TokenBucket overflowBucket;
+    private final ConcurrentMap<String, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    private Disposable sweeper;
+
+    public RateLimiter(ReactiveStringRedisTemplate redisTemplate,
+                       @Value("${app.rate-limit.client.rate:100}") long clientRate,
+                       @Value("${app.rate-limit.client.burst:200}") long clientBurst,
+                       @Value("${app.rate-limit.global.rate:2000}") long globalRate,
+                       @Value("${app.rate-limit.global.burst:4000}") long globalBurst,
+                       @Value("${app.rate-limit.redis-enabled:true}") boolean redisEnabled,
+                       @Value("${app.rate-limit.max-tracked-clients:10000}") int maxTrackedClients,
+                       @Value("${app.rate-limit.sweep-interval:1s}") Duration sweepInterval) {
+        this.redisTemplate = redisTemplate;
+        this.clientRate = clientRate;
+        this.clientBurst = clientBurst;
+        this.globalRate = globalRate;
+        this.globalBurst = globalBurst;
+        this.redisEnabled = redisEnabled;
+        this.maxTrackedClients = maxTrackedClients;
+        this.sweepInterval = sweepInterval;
+        this.globalBucket = new TokenBucket(globalRate, globalBurst);
+        this.overflowBucket = new TokenBucket(clientRate, clientBurst);
+    }
+
+    @PostConstruct
+    public void start() {
+        sweeper = Flux.interval(sweepInterval, sweepInterval)
+                .subscribe(tick -> clientBuckets.values().removeIf(TokenBucket::isIdle));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.dispose();
+        }
+    }
+
+    public Mono<Decision> acquire(String clientId) {
+        if (!clientBucket(clientId).tryAcquire()) {
+            return Mono.just(Decision.CLIENT_LIMITED);
+        }
+        if (!globalBucket.tryAcquire()) {
+            return Mono.just(Decision.GLOBAL_LIMITED);
+        }
+        if (!redisEnabled) {
+            return Mono.just(Decision.ALLOWED);
+        }
+
+        List<String> keys = Arrays.asList(KEY_PREFIX + clientId, GLOBAL_KEY);
+        List<String> args = Arrays.asList(String.valueOf(clientRate), String.valueOf(clientBurst),
+                String.valueOf(globalRate), String.valueOf(globalBurst), String.valueOf(System.currentTimeMillis()));
+
+        return redisTemplate.execute(RATE_LIMIT_SCRIPT, keys, args)
+                .next()
+                .map(result -> Decision.values()[result.intValue()])
+                .onErrorResume(e -> {
+                    // Fail open: the local buckets still bound what this instance lets through
+                    LOG.warn("Redis rate limit check failed, falling back to local limits: {}", e.getMessage());
+                    return Mono.just(Decision.ALLOWED);
+                })
+                .defaultIfEmpty(Decision.ALLOWED);
+    }
+
+    private TokenBucket clientBucket(String clientId) {
+        TokenBucket bucket = clientBuckets.get(clientId);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (clientBuckets.size() >= maxTrackedClients) {
+            return overflowBucket;
+        }
+        return clientBuckets.computeIfAbsent(clientId, id -> new TokenBucket(clientRate, clientBurst));
+    }
+}
@@ -0,0 +1,90 @@
+package com.habeebcycle.demo.api.filter;
+
+import com.habeebcycle.demo.api.persistence.TenantKeys;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Runs each /user request for the tenant named in its tenant header, or for the default tenant
+ * without one, and times the requests per tenant.
+ *
+ * Only the tenants listed in app.tenant.allowed are served, every tenant has keys, a Bloom filter and
+ * meters of its own, so a header naming any other one is refused rather than creating them.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 5)
+public class TenantFilter implements WebFilter {
+
+    private static final Pattern TENANT_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final MeterRegistry meterRegistry;
+    private final String header;
+    private final Set<String> allowed;
+
+    public TenantFilter(MeterRegistry meterRegistry,
+                        @Value("${app.tenant.header:X-Tenant-Id}") String header,
+                        @Value("${app.tenant.allowed:}") List<String> allowed) {
+        this.meterRegistry = meterRegistry;
+        this.header = header;
+        this.allowed = new HashSet<>(allowed);
+    }
+
+    // The default tenant and the listed ones
+    public boolean isAllowed(String tenant) {
+        return TenantKeys.DEFAULT_TENANT.equals(tenant)
+                || (TENANT_PATTERN.matcher(tenant).matches() && allowed.contains(tenant));
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!exchange.getRequest().getPath().value().startsWith("/user")) {
+            return chain.filter(exchange);
+        }
+        String tenant = exchange.getRequest().getHeaders().getFirst(header);
+        if (tenant == null || tenant.isEmpty()) {
+            tenant = TenantKeys.DEFAULT_TENANT;
+        } else if (!TENANT_PATTERN.matcher(tenant).matches()) {
+            ServerHttpResponse response = exchange.getResponse();
+            response.setStatusCode(HttpStatus.BAD_REQUEST);
+            return response.setComplete();
+        } else if (!isAllowed(tenant)) {
+            ServerHttpResponse response = exchange.getResponse();
+            response.setStatusCode(HttpStatus.FORBIDDEN);
+            return response.setComplete();
+        }
+
+        String method = exchange.getRequest().getMethodValue();
+        String requestTenant = tenant;
+        long start = System.nanoTime();
+        return chain.filter(exchange)
+                .doFinally(signal -> Timer.builder("users.tenant.requests")
+                        .tag("tenant", requestTenant)
+                        .tag("method", method)
+                        .tag("status", status(exchange.getResponse()))
+                        .register(meterRegistry)
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                .contextWrite(TenantKeys.withTenant(tenant));
+    }
+
+    // Responses completed without an explicit status are 200
+    private static String status(ServerHttpResponse response) {
+        Integer status = response.getRawStatusCode();
+        return String.valueOf(status != null ? status : HttpStatus.OK.value());
+    }
+}
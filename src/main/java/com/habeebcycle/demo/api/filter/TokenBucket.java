@@ -0,0 +1,62 @@
+package com.habeebcycle.demo.api.filter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process token bucket. The state (tokens scaled by 1000 and the last refill time) is packed
+ * into a single AtomicLong so acquiring a token is a lock-free CAS loop.
+ */
+class TokenBucket {
+
+    private static final int SCALE = 1000;
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    private final long ratePerSecond;
+    private final long capacity;
+    private final long epoch;
+
+    // High 40 bits: milliseconds since epoch of the last refill, low 24 bits: tokens * SCALE
+    private final AtomicLong state;
+
+    TokenBucket(long ratePerSecond, long burst) {
+        if (ratePerSecond <= 0 || burst <= 0 || burst * SCALE > TOKEN_MASK)
+            throw new IllegalArgumentException("Rate and burst must be positive and burst at most " + (TOKEN_MASK / SCALE));
+
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = burst * SCALE;
+        this.epoch = System.currentTimeMillis();
+        this.state = new AtomicLong(pack(0, capacity));
+    }
+
+    boolean tryAcquire() {
+        long now = System.currentTimeMillis() - epoch;
+        while (true) {
+            long current = state.get();
+            long last = current >>> TOKEN_BITS;
+            long tokens = current & TOKEN_MASK;
+
+            long elapsed = Math.max(0, now - last);
+            long refilled = Math.min(capacity, tokens + elapsed * ratePerSecond);
+            if (refilled < SCALE) {
+                return false;
+            }
+            if (state.compareAndSet(current, pack(Math.max(now, last), refilled - SCALE))) {
+                return true;
+            }
+        }
+    }
+
+    // A bucket that has refilled completely carries no information and can be dropped
+    boolean isIdle() {
+        long current = state.get();
+        long last = current >>> TOKEN_BITS;
+        long tokens = current & TOKEN_MASK;
+        long elapsed = System.currentTimeMillis() - epoch - last;
+        return tokens + elapsed * ratePerSecond >= capacity;
+    }
+
+    private static long pack(long millis, long tokens) {
+        return (millis << TOKEN_BITS) | tokens;
+    }
+}
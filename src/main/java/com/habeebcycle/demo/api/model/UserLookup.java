@@ -0,0 +1,42 @@
+package com.habeebcycle.demo.api.model;
+
+// Result of a batch lookup for one requested id, user is null when no user has that id
+public class UserLookup {
+
+    private String id;
+    private boolean found;
+    private User user;
+
+    public UserLookup() {
+    }
+
+    public UserLookup(String id, User user) {
+        this.id = id;
+        this.found = user != null;
+        this.user = user;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public boolean isFound() {
+        return found;
+    }
+
+    public void setFound(boolean found) {
+        this.found = found;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+}
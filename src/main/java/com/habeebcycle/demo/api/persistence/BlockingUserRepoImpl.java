@@ -0,0 +1,497 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.LOOKUP;
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.WRITE;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Imperative variant of {@link UserRepoImpl}: the same keys, scripts and semantics, implemented with
+ * synchronous Redis commands run on a bounded pool of worker threads instead of the reactive driver.
+ * Enabled with app.repository.mode=blocking, it exists to compare both models under the same load.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.repository.mode", havingValue = "blocking")
+public class BlockingUserRepoImpl implements UserRepository {
+
+    private final static User IN_PROGRESS_USER = new User();
+    private final static User GONE_USER = new User();
+
+    private final RedisTemplate<String, User> redisTemplate;
+    private final HashOperations<String, String, User> hashOperations;
+    private final ZSetOperations<String, String> expiryOperations;
+    private final SetOperations<String, String> tenantOperations;
+    private final HashOperations<String, String, String> claimOperations;
+    private final RedisSerializer<String> argsSerializer = RedisSerializer.string();
+    private final RedisSerializer<Long> longSerializer = new GenericToStringSerializer<>(Long.class);
+    private final RedisSerializer<User> userSerializer;
+    private final RedisSerializer<User> reservationSerializer;
+    private final Duration idleTtl;
+    private final Duration idempotencyTtl;
+    private final Duration inProgressTtl;
+    private final UserChangeLog changeLog;
+    private final UserBloomFilter bloomFilter;
+    private final TenantQuota quota;
+    private final IdGenerator idGenerator;
+    private final Scheduler scheduler;
+
+    @Autowired
+    @SuppressWarnings("unchecked")
+    public BlockingUserRepoImpl(RedisTemplate<String, User> userRedisTemplate,
+                                StringRedisTemplate stringRedisTemplate,
+                                UserChangeLog changeLog,
+                                UserBloomFilter bloomFilter,
+                                TenantQuota quota,
+                                IdGenerator idGenerator,
+                                @Value("${app.user-expiry.idle-ttl:0s}") Duration idleTtl,
+                                @Value("${app.idempotency.ttl:24h}") Duration idempotencyTtl,
+                                @Value("${app.idempotency.in-progress-ttl:30s}") Duration inProgressTtl,
+                                @Value("${app.repository.blocking.threads:64}") int threads) {
+        this.redisTemplate = userRedisTemplate;
+        this.hashOperations = userRedisTemplate.opsForHash();
+        this.expiryOperations = stringRedisTemplate.opsForZSet();
+        this.tenantOperations = stringRedisTemplate.opsForSet();
+        this.claimOperations = stringRedisTemplate.opsForHash();
+        this.userSerializer = (RedisSerializer<User>) userRedisTemplate.getHashValueSerializer();
+        this.reservationSerializer = new RedisSerializer<User>() {
+            @Override
+            public byte[] serialize(User user) {
+                return userSerializer.serialize(user);
+            }
+
+            @Override
+            public User deserialize(byte[] bytes) {
+                return isMarker(bytes, UserRepoImpl.IN_PROGRESS) ? IN_PROGRESS_USER
+                        : isMarker(bytes, UserRepoImpl.GONE) ? GONE_USER : userSerializer.deserialize(bytes);
+            }
+        };
+        this.idleTtl = idleTtl;
+        this.idempotencyTtl = idempotencyTtl;
+        this.inProgressTtl = inProgressTtl;
+        this.changeLog = changeLog;
+        this.bloomFilter = bloomFilter;
+        this.quota = quota;
+        this.idGenerator = idGenerator;
+        this.scheduler = Schedulers.newBoundedElastic(threads, Integer.MAX_VALUE, "blocking-user-repo");
+    }
+
+    @PreDestroy
+    public void dispose() {
+        scheduler.dispose();
+    }
+
+    @Override
+    public Mono<User> findById(String id) {
+        return call(LOOKUP, "findById", keys -> findUser(keys, id));
+    }
+
+    @Override
+    public Mono<Integer> findVersionById(String id) {
+        return call(LOOKUP, "findVersionById", keys -> redisTemplate.execute(UserRepoImpl.FIND_VERSION_SCRIPT, argsSerializer, argsSerializer,
+                Arrays.asList(keys.getVersions(), keys.getExpiry(), keys.getFixedExpiry()),
+                id, String.valueOf(System.currentTimeMillis()), String.valueOf(idleTtl.toMillis())))
+                .map(Integer::valueOf);
+    }
+
+    @Override
+    public Flux<User> findAll() {
+        // One user per request on the worker pool, the cursor reads the next batch when the current one is consumed.
+        // Users already expired when the scan starts are left out.
+        return TenantKeys.current().flatMapMany(keys -> Mono.fromCallable(() -> expiredIds(keys))
+                .flatMapMany(expired -> Flux.using(
+                        () -> hashOperations.scan(keys.getUsers(), UserRepoImpl.SCAN_OPTIONS),
+                        cursor -> Flux.<User>generate(sink -> {
+                            while (cursor.hasNext()) {
+                                Map.Entry<String, User> entry = cursor.next();
+                                if (!expired.contains(entry.getKey())) {
+                                    sink.next(entry.getValue());
+                                    return;
+                                }
+                            }
+                            sink.complete();
+                        }),
+                        BlockingUserRepoImpl::close)))
+                .subscribeOn(scheduler, true);
+    }
+
+    @Override
+    public Mono<User> save(User user) {
+        return save(user, null);
+    }
+
+    @Override
+    public Mono<User> save(User user, Duration ttl) {
+        return call(WRITE, "save", keys -> saveUser(keys, user, ttl));
+    }
+
+    @Override
+    public Mono<User> create(User user, Duration ttl, String idempotencyKey) {
+        if (idempotencyKey == null || idempotencyKey.isEmpty()) {
+            return save(user, ttl);
+        }
+        return call(WRITE, "create", keys -> {
+            checkRequired(user);
+
+            String key = keys.getIdempotencyPrefix() + idempotencyKey;
+            String userId = idGenerator.nextId();
+
+            User existing = redisTemplate.execute(UserRepoImpl.RESERVE_IDEMPOTENCY_KEY_SCRIPT, argsSerializer,
+                    reservationSerializer, Arrays.asList(key, keys.getUsers()),
+                    userId, String.valueOf(inProgressTtl.toMillis()), UserRepoImpl.IN_PROGRESS, UserRepoImpl.GONE);
+            if (existing == IN_PROGRESS_USER) {
+                throw new ConcurrencyFailureException("A request with the Idempotency-Key "
+                        + idempotencyKey + " is still being processed.");
+            }
+            if (existing == GONE_USER) {
+                throw new IdempotentUserGoneException("The user created by the request with the "
+                        + "Idempotency-Key " + idempotencyKey + " no longer exists.");
+            }
+            if (existing != null) {
+                return existing;
+            }
+
+            user.setId(userId);
+            User created;
+            try {
+                created = createUser(keys, user, ttl);
+            } catch (RuntimeException e) {
+                // Release the key so a corrected request can use it again
+                settle(key, userId, "");
+                throw e;
+            }
+            // Keep the id for the full TTL
+            settle(key, userId, userId);
+            return created;
+        });
+    }
+
+    @Override
+    public Mono<User> findByUsername(String username) {
+        return call(LOOKUP, "findByUsername", keys -> findUserBy(keys, u -> u.getUsername().equals(username)));
+    }
+
+    @Override
+    public Mono<User> findByEmail(String email) {
+        return call(LOOKUP, "findByEmail", keys -> findUserBy(keys, u -> u.getEmail().equals(email)));
+    }
+
+    @Override
+    public Mono<Boolean> existsById(String id) {
+        return call(LOOKUP, "existsById", keys -> hashOperations.hasKey(keys.getUsers(), id));
+    }
+
+    @Override
+    public Mono<Boolean> existsByUsername(String username) {
+        return TenantKeys.current().flatMap(keys -> bloomFilter.mightContainUsername(keys, username))
+                .flatMap(mightExist -> !mightExist ? Mono.just(false) : findByUsername(username)
+                        .hasElement()
+                        .doOnNext(bloomFilter::recordLookup));
+    }
+
+    @Override
+    public Mono<Boolean> existsByEmail(String email) {
+        return TenantKeys.current().flatMap(keys -> bloomFilter.mightContainEmail(keys, email))
+                .flatMap(mightExist -> !mightExist ? Mono.just(false) : findByEmail(email)
+                        .hasElement()
+                        .doOnNext(bloomFilter::recordLookup));
+    }
+
+    @Override
+    public Mono<Long> count() {
+        return call(LOOKUP, "count", keys -> hashOperations.size(keys.getUsers()));
+    }
+
+    @Override
+    public Mono<Void> deleteAll() {
+        // Only the keys of the tenant, other tenants are not affected. The markers go along, so no index is
+        // trusted before it is built again
+        return call(WRITE, "deleteAll", keys -> {
+            RedisUnlink.unlink(redisTemplate, Arrays.asList(keys.getUsers(), keys.getExpiry(), keys.getFixedExpiry(),
+                    keys.getVersions(), keys.getBytes(), keys.getBytesCounted(), keys.getUnique(), keys.getUniqueReady()));
+            bloomFilter.clear(keys).block();
+            return keys.isDefault() ? changeLog.reset().block() : null;
+        }).then();
+    }
+
+    @Override
+    public Mono<Void> delete(User user) {
+        return deleteById(user.getId());
+    }
+
+    @Override
+    public Mono<Void> deleteById(String id) {
+        return call(WRITE, "deleteById", keys -> {
+            redisTemplate.execute(TenantQuota.DELETE_USER_SCRIPT, argsSerializer, longSerializer, quota.deleteKeys(keys), id);
+            return recordChanges(keys, Collections.singletonList(id));
+        }).then();
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Mono<Long> evictExpired(int batchSize) {
+        return call(WRITE, "evictExpired", keys -> {
+            // Elements of the returned list are read with the result serializer
+            List<String> ids = (List<String>) redisTemplate.execute((RedisScript) UserRepoImpl.EVICT_EXPIRED_SCRIPT,
+                    argsSerializer, (RedisSerializer) argsSerializer,
+                    Arrays.asList(keys.getUsers(), keys.getExpiry(), keys.getVersions(), keys.getBytes(), keys.getUnique(),
+                            keys.getFixedExpiry(), keys.getBytesCounted()),
+                    String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize));
+            if (ids == null) {
+                return 0L;
+            }
+            recordChanges(keys, ids);
+            return (long) ids.size();
+        });
+    }
+
+    @Override
+    public Flux<String> findTenants() {
+        return Mono.fromCallable(() -> tenantOperations.members(TenantKeys.TENANTS_KEY))
+                .subscribeOn(scheduler)
+                .flatMapIterable(tenants -> tenants);
+    }
+
+
+    //Others... Implements the following methods for your business logic
+
+    @Override
+    public <S extends User> Flux<S> saveAll(Iterable<S> iterable) {
+        return null;
+    }
+
+    @Override
+    public <S extends User> Flux<S> saveAll(Publisher<S> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<User> findById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<Boolean> existsById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Flux<User> findAllById(Iterable<String> iterable) {
+        List<String> ids = new ArrayList<>();
+        iterable.forEach(ids::add);
+        if (ids.isEmpty()) {
+            return Flux.empty();
+        }
+        // Missing users come back as null entries, the ones past their expiry are skipped like findAll does
+        return call(LOOKUP, "findAllById", keys -> {
+            Set<String> expired = expiredIds(keys);
+            List<User> users = hashOperations.multiGet(keys.getUsers(), ids);
+            return users.stream()
+                    .filter(user -> user != null && !expired.contains(user.getId()))
+                    .collect(Collectors.toList());
+        }).flatMapMany(Flux::fromIterable);
+    }
+
+    @Override
+    public Flux<User> findAllById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<Void> deleteById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<Void> deleteAll(Iterable<? extends User> iterable) {
+        return null;
+    }
+
+    @Override
+    public Mono<Void> deleteAll(Publisher<? extends User> publisher) {
+        return null;
+    }
+
+
+    // private utility method to run a blocking call for the tenant of the subscriber on the worker pool,
+    // traced as one command of the phase. Null results complete empty
+    private <T> Mono<T> call(RequestTrace.Phase phase, String operation, Function<TenantKeys, T> function) {
+        return TenantKeys.current()
+                .flatMap(keys -> RequestTrace.trace(phase, operation, keys.getUsers(),
+                        Mono.fromCallable(() -> function.apply(keys)).subscribeOn(scheduler)));
+    }
+
+    private User findUser(TenantKeys keys, String id) {
+        return redisTemplate.execute(UserRepoImpl.FIND_USER_SCRIPT, argsSerializer, userSerializer,
+                Arrays.asList(keys.getUsers(), keys.getExpiry(), keys.getFixedExpiry()),
+                id, String.valueOf(System.currentTimeMillis()), String.valueOf(idleTtl.toMillis()));
+    }
+
+    // Ids of the users past their expiry that the sweeper has not removed yet, it keeps them few
+    private Set<String> expiredIds(TenantKeys keys) {
+        Set<String> expired = expiryOperations.rangeByScore(keys.getExpiry(), Double.NEGATIVE_INFINITY,
+                System.currentTimeMillis());
+        return expired != null ? expired : Collections.emptySet();
+    }
+
+    private static void close(Cursor<?> cursor) {
+        try {
+            cursor.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private User findUserBy(TenantKeys keys, Predicate<User> predicate) {
+        Set<String> expired = expiredIds(keys);
+        List<User> users = hashOperations.values(keys.getUsers());
+        User found = null;
+        for (User user : users) {
+            if (predicate.test(user) && !expired.contains(user.getId())) {
+                if (found != null) {
+                    throw new IndexOutOfBoundsException("Source emitted more than one item");
+                }
+                found = user;
+            }
+        }
+        return found;
+    }
+
+    private User saveUser(TenantKeys keys, User user, Duration ttl) {
+        checkRequired(user);
+
+        if (user.getId() == null || user.getId().isEmpty()) {
+            return createUser(keys, user, ttl);
+        }
+
+        User u = findUser(keys, user.getId());
+        if (u != null && u.getVersion() != user.getVersion()) {
+            throw new OptimisticLockingFailureException("This record has already been updated earlier by another object.");
+        }
+        if (u != null) {
+            user.setVersion(user.getVersion() + 1);
+        }
+        return addOrUpdateUser(keys, user, u != null, isTakenByOtherUser(keys, user), ttl);
+    }
+
+    private User createUser(TenantKeys keys, User user, Duration ttl) {
+        if (user.getId() == null || user.getId().isEmpty()) {
+            user.setId(idGenerator.nextId());
+        }
+        user.setVersion(0);
+        return addOrUpdateUser(keys, user, false, isTakenByOtherUser(keys, user), ttl);
+    }
+
+    // Username and email are checked against all other users in a single scan, skipped when the user
+    // already holds both claims, as an update keeping them does, or when the Bloom filter rules both out.
+    // Expired users no longer hold theirs. Once every user holds its claims the save script checks them on
+    // its own, the scan is only left for users stored before.
+    private boolean isTakenByOtherUser(TenantKeys keys, User user) {
+        List<String> owners = claimOperations.multiGet(keys.getUnique(), TenantQuota.claimFields(user));
+        if (owners.stream().allMatch(user.getId()::equals)) {
+            return false;
+        }
+        if (!Boolean.TRUE.equals(bloomFilter.mightContain(keys, user.getUsername(), user.getEmail()).block())) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(redisTemplate.hasKey(keys.getUniqueReady()))) {
+            bloomFilter.recordLookup(owners.stream().anyMatch(Objects::nonNull));
+            return false;
+        }
+        Set<String> expired = expiredIds(keys);
+        boolean found = false;
+        boolean taken = false;
+        for (User other : hashOperations.values(keys.getUsers())) {
+            if (expired.contains(other.getId())) {
+                continue;
+            }
+            if (other.getUsername().equals(user.getUsername()) || other.getEmail().equals(user.getEmail())) {
+                found = true;
+                taken |= !other.getId().equals(user.getId());
+            }
+        }
+        bloomFilter.recordLookup(found);
+        return taken;
+    }
+
+    private User addOrUpdateUser(TenantKeys keys, User user, boolean update, boolean exists, Duration ttl) {
+        if (exists) {
+            throw new DuplicateKeyException("Duplicate key, Username: " +
+                    user.getUsername() + " or Email: " + user.getEmail() + " exists.");
+        }
+        // The user, its version, its expiry and its Bloom filter bits are stored within the tenant quotas by
+        // one script, which checks the username, email and version again against saves racing this one. The
+        // tenant is listed first, the set is on another slot of a cluster than the keys of the script.
+        if (!keys.isDefault()) {
+            tenantOperations.add(TenantKeys.TENANTS_KEY, keys.getTenant());
+        }
+        List<Object> args = new ArrayList<>(12);
+        args.add(userSerializer.serialize(user));
+        quota.saveArgs(keys, user, update, ttl, idleTtl, bloomFilter.saveOffsets(keys, user))
+                .forEach(arg -> args.add(arg.getBytes(StandardCharsets.UTF_8)));
+        Long saved = redisTemplate.execute(TenantQuota.SAVE_USER_SCRIPT, RedisSerializer.byteArray(), longSerializer,
+                quota.saveKeys(keys), args.toArray());
+        quota.checkSaved(keys, user, saved != null ? saved : TenantQuota.SAVED);
+        bloomFilter.saved(keys, user);
+        recordChanges(keys, Collections.singletonList(user.getId()));
+        return user;
+    }
+
+    // The snapshot only covers the default tenant
+    private Void recordChanges(TenantKeys keys, List<String> ids) {
+        return keys.isDefault() ? changeLog.record(ids).block() : null;
+    }
+
+    private static void checkRequired(User user) {
+        if (user.getUsername().isEmpty() || user.getEmail().isEmpty())
+            throw new IllegalArgumentException("Cannot be saved: username and email are required, but one or both is empty.");
+    }
+
+    private void settle(String key, String userId, String createdId) {
+        redisTemplate.execute(UserRepoImpl.SETTLE_IDEMPOTENCY_KEY_SCRIPT, argsSerializer, longSerializer,
+                Collections.singletonList(key), UserRepoImpl.IN_PROGRESS + ":" + userId, createdId,
+                String.valueOf(idempotencyTtl.toMillis()));
+    }
+
+    private static boolean isMarker(byte[] bytes, String marker) {
+        return bytes != null && bytes.length == marker.length()
+                && marker.equals(new String(bytes, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,104 @@
+package com.habeebcycle.demo.api.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bloom filter over strings. The bit offsets of a value are derived from two 64-bit hashes
+ * (double hashing), so they can also be used against a bitset kept somewhere else, like Redis.
+ */
+class BloomFilter {
+
+    private final long bits;
+    private final int hashes;
+    private final AtomicLongArray words;
+
+    BloomFilter(long expectedInsertions, double falsePositiveProbability) {
+        this(expectedInsertions, falsePositiveProbability, true);
+    }
+
+    // Without local bits only the offsets are computed, for a bitset kept elsewhere
+    BloomFilter(long expectedInsertions, double falsePositiveProbability, boolean withBits) {
+        long n = Math.max(1, expectedInsertions);
+        this.bits = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2))));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+        this.words = withBits ? new AtomicLongArray((int) ((bits + 63) / 64)) : null;
+    }
+
+    long getBits() {
+        return bits;
+    }
+
+    int getHashes() {
+        return hashes;
+    }
+
+    boolean hasBits() {
+        return words != null;
+    }
+
+    long[] offsets(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long h1 = mix(fnv1a(bytes));
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1; // Odd, so the offsets of a value never collapse
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, bits);
+        }
+        return offsets;
+    }
+
+    void put(long[] offsets) {
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long word;
+            do {
+                word = words.get(index);
+            } while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask));
+        }
+    }
+
+    boolean mightContain(long[] offsets) {
+        for (long offset : offsets) {
+            if ((words.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+    }
+
+    // Probability of a false positive with the bits set so far
+    double expectedFalsePositiveProbability() {
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / bits, hashes);
+    }
+
+    private static long fnv1a(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Finalizer of MurmurHash3, spreads the FNV bits over the whole word
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
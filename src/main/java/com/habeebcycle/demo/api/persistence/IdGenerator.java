@@ -0,0 +1,9 @@
+package com.habeebcycle.demo.api.persistence;
+
+/**
+ * Generates the ids of new users, selected with app.id.generator.
+ */
+public interface IdGenerator {
+
+    String nextId();
+}
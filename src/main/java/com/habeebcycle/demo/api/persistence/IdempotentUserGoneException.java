@@ -0,0 +1,11 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.dao.NonTransientDataAccessException;
+
+// Thrown when a request is replayed under an idempotency key whose user was created and removed since
+public class IdempotentUserGoneException extends NonTransientDataAccessException {
+
+    public IdempotentUserGoneException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,530 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In-memory variant of {@link UserRepoImpl}: the same uniqueness, versioning, expiry and idempotency
+ * semantics, for tests and small deployments running without Redis. Enabled with
+ * app.repository.mode=in-memory, which the in-memory profile sets.
+ *
+ * Every tenant has a concurrent map of its users and concurrent indexes of the usernames and emails in use.
+ * Writes of one id are serialized by one of a fixed set of striped locks, and a username or an email is
+ * claimed in its index with putIfAbsent, so two users can never take the same one. Stored users are copies,
+ * callers never share them. Users do not survive a restart and are not shared between instances, and the
+ * stored bytes quota and the change log of the snapshot only exist with Redis.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.repository.mode", havingValue = "in-memory")
+public class InMemoryUserRepoImpl implements UserRepository {
+
+    private final static int LOCK_STRIPES = 64;
+
+    private final Map<String, TenantStore> stores = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final TenantQuota quota;
+    private final IdGenerator idGenerator;
+    private final Duration idleTtl;
+    private final Duration idempotencyTtl;
+    private final Duration inProgressTtl;
+
+    @Autowired
+    public InMemoryUserRepoImpl(TenantQuota quota,
+                                IdGenerator idGenerator,
+                                @Value("${app.user-expiry.idle-ttl:0s}") Duration idleTtl,
+                                @Value("${app.idempotency.ttl:24h}") Duration idempotencyTtl,
+                                @Value("${app.idempotency.in-progress-ttl:30s}") Duration inProgressTtl) {
+        this.quota = quota;
+        this.idGenerator = idGenerator;
+        this.idleTtl = idleTtl;
+        this.idempotencyTtl = idempotencyTtl;
+        this.inProgressTtl = inProgressTtl;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public Mono<User> findById(String id) {
+        return call(keys -> copy(findUser(store(keys), id)));
+    }
+
+    @Override
+    public Mono<Integer> findVersionById(String id) {
+        return call(keys -> {
+            User user = findUser(store(keys), id);
+            return user != null ? user.getVersion() : null;
+        });
+    }
+
+    @Override
+    public Flux<User> findAll() {
+        // Weakly consistent, like a scan: users stored for the whole iteration are all returned,
+        // the ones already expired when it starts are not
+        return TenantKeys.current()
+                .flatMapMany(keys -> {
+                    TenantStore store = store(keys);
+                    long now = System.currentTimeMillis();
+                    return Flux.fromIterable(store.users.values())
+                            .filter(user -> !store.isExpired(user.getId(), now));
+                })
+                .map(InMemoryUserRepoImpl::copy);
+    }
+
+    @Override
+    public Mono<User> save(User user) {
+        return save(user, null);
+    }
+
+    @Override
+    public Mono<User> save(User user, Duration ttl) {
+        if(user.getUsername().isEmpty() || user.getEmail().isEmpty())
+            return Mono.error(new IllegalArgumentException("Cannot be saved: username and email are required, but one or both is empty."));
+
+        return call(keys -> saveUser(keys, user, ttl));
+    }
+
+    @Override
+    public Mono<User> create(User user, Duration ttl, String idempotencyKey) {
+        if (idempotencyKey == null || idempotencyKey.isEmpty()) {
+            return save(user, ttl);
+        }
+        if(user.getUsername().isEmpty() || user.getEmail().isEmpty())
+            return Mono.error(new IllegalArgumentException("Cannot be saved: username and email are required, but one or both is empty."));
+
+        return call(keys -> create(keys, user, ttl, idempotencyKey));
+    }
+
+    private User create(TenantKeys keys, User user, Duration ttl, String idempotencyKey) {
+        // Reserve the key for the id of the new user, or get back the outcome of an earlier attempt. The
+        // reservation is kept for a short time while the user is created, then for the full TTL.
+        TenantStore store = store(keys);
+        String userId = idGenerator.nextId();
+        long now = System.currentTimeMillis();
+        Reservation reservation = store.idempotencyKeys.compute(idempotencyKey, (key, reserved) ->
+                reserved == null || reserved.expiresAt <= now
+                        ? new Reservation(userId, true, now + inProgressTtl.toMillis())
+                        : reserved);
+
+        if (!reservation.userId.equals(userId)) {
+            User created = store.users.get(reservation.userId);
+            if (created != null) {
+                return copy(created);
+            }
+            if (reservation.inProgress) {
+                throw new ConcurrencyFailureException("A request with the Idempotency-Key "
+                        + idempotencyKey + " is still being processed.");
+            }
+            throw new IdempotentUserGoneException("The user created by the request with the "
+                    + "Idempotency-Key " + idempotencyKey + " no longer exists.");
+        }
+
+        user.setId(userId);
+        User created;
+        try {
+            created = createUser(keys, user, ttl);
+        } catch (RuntimeException e) {
+            // Release the key so a corrected request can use it again
+            store.idempotencyKeys.remove(idempotencyKey, reservation);
+            throw e;
+        }
+        Reservation done = new Reservation(userId, false, System.currentTimeMillis() + idempotencyTtl.toMillis());
+        if (!store.idempotencyKeys.replace(idempotencyKey, reservation, done)) {
+            store.idempotencyKeys.putIfAbsent(idempotencyKey, done);
+        }
+        return created;
+    }
+
+    @Override
+    public Mono<User> findByUsername(String username) {
+        return call(keys -> {
+            TenantStore store = store(keys);
+            return findUserBy(store, store.usernames, username, User::getUsername);
+        });
+    }
+
+    @Override
+    public Mono<User> findByEmail(String email) {
+        return call(keys -> {
+            TenantStore store = store(keys);
+            return findUserBy(store, store.emails, email, User::getEmail);
+        });
+    }
+
+    @Override
+    public Mono<Boolean> existsById(String id) {
+        return call(keys -> {
+            TenantStore store = store(keys);
+            return store.users.containsKey(id) && !store.isExpired(id, System.currentTimeMillis());
+        });
+    }
+
+    @Override
+    public Mono<Boolean> existsByUsername(String username) {
+        return findByUsername(username).hasElement();
+    }
+
+    @Override
+    public Mono<Boolean> existsByEmail(String email) {
+        return findByEmail(email).hasElement();
+    }
+
+    @Override
+    public Mono<Long> count() {
+        // Users past their expiry that the sweeper has not removed yet are not counted, like findAll
+        return call(keys -> {
+            TenantStore store = store(keys);
+            long now = System.currentTimeMillis();
+            long expired = store.expiry.entrySet().stream()
+                    .filter(entry -> entry.getValue() <= now && store.users.containsKey(entry.getKey()))
+                    .count();
+            return Math.max(store.users.size() - expired, 0L);
+        });
+    }
+
+    @Override
+    public Mono<Void> deleteAll() {
+        // Only the users of the tenant, other tenants are not affected
+        return call(keys -> stores.remove(keys.getTenant())).then();
+    }
+
+    @Override
+    public Mono<Void> delete(User user) {
+        return deleteById(user.getId());
+    }
+
+    @Override
+    public Mono<Void> deleteById(String id) {
+        return call(keys -> {
+            TenantStore store = store(keys);
+            synchronized (lock(id)) {
+                return remove(store, id);
+            }
+        }).then();
+    }
+
+    @Override
+    public Mono<Long> evictExpired(int batchSize) {
+        return call(keys -> {
+            TenantStore store = store(keys);
+            long now = System.currentTimeMillis();
+            store.idempotencyKeys.values().removeIf(reservation -> reservation.expiresAt <= now);
+
+            long removed = 0;
+            for (Map.Entry<String, Long> expiry : store.expiry.entrySet()) {
+                if (removed >= batchSize) {
+                    break;
+                }
+                if (expiry.getValue() > now) {
+                    continue;
+                }
+                String id = expiry.getKey();
+                synchronized (lock(id)) {
+                    // Read again, the user may have been refreshed since
+                    Long expiresAt = store.expiry.get(id);
+                    if (expiresAt != null && expiresAt <= now) {
+                        remove(store, id);
+                        removed++;
+                    }
+                }
+            }
+            return removed;
+        });
+    }
+
+    @Override
+    public Flux<String> findTenants() {
+        return Flux.defer(() -> Flux.fromIterable(new ArrayList<>(stores.keySet())))
+                .filter(tenant -> !tenant.equals(TenantKeys.DEFAULT_TENANT));
+    }
+
+
+    //Others... Implements the following methods for your business logic
+
+    @Override
+    public <S extends User> Flux<S> saveAll(Iterable<S> iterable) {
+        return null;
+    }
+
+    @Override
+    public <S extends User> Flux<S> saveAll(Publisher<S> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<User> findById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<Boolean> existsById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Flux<User> findAllById(Iterable<String> iterable) {
+        List<String> ids = new ArrayList<>();
+        iterable.forEach(ids::add);
+        if (ids.isEmpty()) {
+            return Flux.empty();
+        }
+        return TenantKeys.current()
+                .flatMapIterable(keys -> {
+                    TenantStore store = store(keys);
+                    long now = System.currentTimeMillis();
+                    List<User> users = new ArrayList<>(ids.size());
+                    ids.forEach(id -> {
+                        User user = store.users.get(id);
+                        if (user != null && !store.isExpired(id, now)) {
+                            users.add(user);
+                        }
+                    });
+                    return users;
+                })
+                .map(InMemoryUserRepoImpl::copy);
+    }
+
+    @Override
+    public Flux<User> findAllById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<Void> deleteById(Publisher<String> publisher) {
+        return null;
+    }
+
+    @Override
+    public Mono<Void> deleteAll(Iterable<? extends User> iterable) {
+        return null;
+    }
+
+    @Override
+    public Mono<Void> deleteAll(Publisher<? extends User> publisher) {
+        return null;
+    }
+
+
+    // private utility method to run a call for the tenant of the subscriber, null results complete empty
+    private <T> Mono<T> call(Function<TenantKeys, T> function) {
+        return TenantKeys.current().flatMap(keys -> Mono.fromSupplier(() -> function.apply(keys)));
+    }
+
+    private TenantStore store(TenantKeys keys) {
+        return stores.computeIfAbsent(keys.getTenant(), tenant -> new TenantStore());
+    }
+
+    private Object lock(String id) {
+        return locks[(id.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    // Skips users past their expiry that the sweeper has not removed yet and refreshes the idle TTL,
+    // an explicit one is kept
+    private User findUser(TenantStore store, String id) {
+        long now = System.currentTimeMillis();
+        if (store.isExpired(id, now)) {
+            return null;
+        }
+        User user = store.users.get(id);
+        if (user != null && idleTtl.toMillis() > 0 && !store.fixedExpiry.contains(id)) {
+            store.expiry.put(id, now + idleTtl.toMillis());
+        }
+        return user;
+    }
+
+    // The index is claimed before the user is stored, the user it points to may not have the value yet
+    private static User findUserBy(TenantStore store, Map<String, String> index, String value,
+                                   Function<User, String> field) {
+        String id = index.get(value);
+        User user = id == null || store.isExpired(id, System.currentTimeMillis()) ? null : store.users.get(id);
+        return user != null && field.apply(user).equals(value) ? copy(user) : null;
+    }
+
+    private User saveUser(TenantKeys keys, User user, Duration ttl) {
+        if (user.getId() == null || user.getId().isEmpty()) {
+            return createUser(keys, user, ttl);
+        }
+        TenantStore store = store(keys);
+        synchronized (lock(user.getId())) {
+            User stored = findUser(store, user.getId());
+            if (stored != null && stored.getVersion() != user.getVersion()) {
+                throw new OptimisticLockingFailureException("This record has already been updated earlier by another object.");
+            }
+            if (stored != null) {
+                user.setVersion(user.getVersion() + 1);
+            }
+            return store(keys, store, user, ttl);
+        }
+    }
+
+    private User createUser(TenantKeys keys, User user, Duration ttl) {
+        if (user.getId() == null || user.getId().isEmpty()) {
+            user.setId(idGenerator.nextId());
+        }
+        user.setVersion(0);
+
+        TenantStore store = store(keys);
+        synchronized (lock(user.getId())) {
+            return store(keys, store, user, ttl);
+        }
+    }
+
+    // Called with the lock of the user held. The username and the email are claimed first, a claim held
+    // by another user means the value is taken; the claims of a failed save are released again.
+    private User store(TenantKeys keys, TenantStore store, User user, Duration ttl) {
+        String id = user.getId();
+        User old = store.users.get(id);
+
+        long now = System.currentTimeMillis();
+        String usernameOwner = claim(store, store.usernames, user.getUsername(), id, now);
+        String emailOwner = claim(store, store.emails, user.getEmail(), id, now);
+        if ((usernameOwner != null && !usernameOwner.equals(id)) || (emailOwner != null && !emailOwner.equals(id))) {
+            release(store, user, usernameOwner, emailOwner);
+            throw new DuplicateKeyException("Duplicate key, Username: " +
+                    user.getUsername() + " or Email: " + user.getEmail() + " exists.");
+        }
+        if (old == null && !store.reserve(quota.getMaxUsers())) {
+            release(store, user, usernameOwner, emailOwner);
+            quota.checkSaved(keys, user, TenantQuota.USERS_EXCEEDED);
+        }
+
+        boolean expired = store.isExpired(id, now);
+        store.users.put(id, copy(user));
+        if (old != null && !old.getUsername().equals(user.getUsername())) {
+            store.usernames.remove(old.getUsername(), id);
+        }
+        if (old != null && !old.getEmail().equals(user.getEmail())) {
+            store.emails.remove(old.getEmail(), id);
+        }
+
+        // Explicit ttl wins over the idle ttl and is not pushed back by reads. Stored again without one, a user
+        // past its expiry or one that was removed does not keep its former expiry
+        Duration effectiveTtl = ttl != null ? ttl : idleTtl;
+        if (!effectiveTtl.isZero() && !effectiveTtl.isNegative()) {
+            store.expiry.put(id, now + effectiveTtl.toMillis());
+            if (ttl != null) {
+                store.fixedExpiry.add(id);
+            } else {
+                store.fixedExpiry.remove(id);
+            }
+        } else if (old == null || expired) {
+            store.expiry.remove(id);
+            store.fixedExpiry.remove(id);
+        }
+        return user;
+    }
+
+    // Claims the value for the id and returns the id holding it before, null when it was free. A user past
+    // its expiry gives up its claims, the sweeper only releases the ones it still holds.
+    private static String claim(TenantStore store, Map<String, String> index, String value, String id, long now) {
+        while (true) {
+            String owner = index.putIfAbsent(value, id);
+            if (owner == null || owner.equals(id) || !store.isExpired(owner, now)) {
+                return owner;
+            }
+            if (index.replace(value, owner, id)) {
+                return null;
+            }
+        }
+    }
+
+    // Releases the claims made by a save that failed, the ones it already held are kept
+    private static void release(TenantStore store, User user, String usernameOwner, String emailOwner) {
+        if (usernameOwner == null) {
+            store.usernames.remove(user.getUsername(), user.getId());
+        }
+        if (emailOwner == null) {
+            store.emails.remove(user.getEmail(), user.getId());
+        }
+    }
+
+    // Called with the lock of the user held
+    private static boolean remove(TenantStore store, String id) {
+        store.expiry.remove(id);
+        store.fixedExpiry.remove(id);
+        User old = store.users.remove(id);
+        if (old == null) {
+            return false;
+        }
+        store.size.decrementAndGet();
+        store.usernames.remove(old.getUsername(), id);
+        store.emails.remove(old.getEmail(), id);
+        return true;
+    }
+
+    private static User copy(User user) {
+        if (user == null) {
+            return null;
+        }
+        User copy = new User(user.getUsername(), user.getEmail(), user.getName());
+        copy.setId(user.getId());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+
+    private static class TenantStore {
+
+        private final Map<String, User> users = new ConcurrentHashMap<>();
+        // Username and email to the id of the user holding it
+        private final Map<String, String> usernames = new ConcurrentHashMap<>();
+        private final Map<String, String> emails = new ConcurrentHashMap<>();
+        // Expiry time in millis of the users that have one
+        private final Map<String, Long> expiry = new ConcurrentHashMap<>();
+        // Users whose expiry was given explicitly, reads do not push it back
+        private final Set<String> fixedExpiry = ConcurrentHashMap.newKeySet();
+        private final Map<String, Reservation> idempotencyKeys = new ConcurrentHashMap<>();
+        // Users stored, kept apart from the map so the users quota is checked and taken atomically
+        private final AtomicLong size = new AtomicLong();
+
+        boolean isExpired(String id, long now) {
+            Long expiresAt = expiry.get(id);
+            return expiresAt != null && expiresAt <= now;
+        }
+
+        // Takes a place for a new user, false when maxUsers are stored already (0 means unlimited)
+        boolean reserve(long maxUsers) {
+            while (true) {
+                long stored = size.get();
+                if (maxUsers > 0 && stored >= maxUsers) {
+                    return false;
+                }
+                if (size.compareAndSet(stored, stored + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static class Reservation {
+
+        private final String userId;
+        // Still being created, the reservation expires soon if the request does not complete
+        private final boolean inProgress;
+        private final long expiresAt;
+
+        Reservation(String userId, boolean inProgress, long expiresAt) {
+            this.userId = userId;
+            this.inProgress = inProgress;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Users read by one step of a migration: their ids, their values as stored, and the users themselves,
+ * deserialized only for the migrations asking for them.
+ */
+public final class MigrationBatch {
+
+    private final List<String> ids;
+    private final List<byte[]> values;
+    private final RedisSerializationContext.SerializationPair<User> serializer;
+    private volatile List<User> users;
+
+    MigrationBatch(List<String> ids, List<byte[]> values, RedisSerializationContext.SerializationPair<User> serializer) {
+        this.ids = Collections.unmodifiableList(ids);
+        this.values = Collections.unmodifiableList(values);
+        this.serializer = serializer;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public List<byte[]> getValues() {
+        return values;
+    }
+
+    public List<User> getUsers() {
+        List<User> read = users;
+        if (read == null) {
+            read = new ArrayList<>(values.size());
+            for (byte[] value : values) {
+                read.add(serializer.read(ByteBuffer.wrap(value)));
+            }
+            users = read = Collections.unmodifiableList(read);
+        }
+        return read;
+    }
+
+    // The user in the current serialization
+    public byte[] serialize(User user) {
+        ByteBuffer buffer = serializer.write(user);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
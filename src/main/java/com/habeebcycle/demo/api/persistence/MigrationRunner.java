@@ -0,0 +1,390 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisElementReader;
+import org.springframework.data.redis.serializer.RedisElementWriter;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies a {@link UserMigration} to every stored user in the background, without blocking Redis.
+ *
+ * The users hash of every tenant is a segment, walked with HSCAN one step of batch-size users at a time.
+ * Segments run in parallel, and within a segment up to concurrency batches are applied while the next
+ * ones are read. The cursor of a segment is checkpointed in Redis once all batches before it are applied,
+ * so a migration interrupted by a restart resumes from there, on this or another instance. A lock held
+ * while running keeps two instances from running the same migration, and max-users-per-second throttles
+ * the whole migration.
+ *
+ * The lock expires after lock-ttl and is extended every third of it while the migration runs, so the
+ * migration of an instance that died can be resumed once it expired. An instance that finds its lock
+ * taken over stops, and only extends or releases the lock while it holds it.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+public class MigrationRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MigrationRunner.class);
+
+    // Hash of the checkpoints of a migration: its state, and the cursor and users done of every segment
+    private final static String KEY_PREFIX = "MIGRATIONS:";
+    private final static String STATE = "state";
+    private final static String RUNNING = "running";
+    private final static String COMPLETED = "completed";
+    private final static String FAILED = "failed";
+    private final static String DONE = "done";
+
+    @SuppressWarnings("rawtypes")
+    private final static RedisScript<List> SCAN_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/migration_scan.lua"), List.class);
+    private final static RedisScript<Long> LOCK_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/migration_lock.lua"), Long.class);
+
+    private final ReactiveRedisOperations<String, User> redisOperations;
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, UserMigration> migrations = new LinkedHashMap<>();
+    private final int batchSize;
+    private final int concurrency;
+    private final int parallelism;
+    private final long maxUsersPerSecond;
+    private final boolean resumeOnStartup;
+    private final Duration lockTtl;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final RedisElementWriter<String> argsWriter = RedisElementWriter.from(RedisSerializer.string());
+    private final RedisElementReader<byte[]> bytesReader = RedisElementReader.from(RedisSerializer.byteArray());
+    private final RedisSerializationContext.SerializationPair<User> serializer;
+
+    private final Map<String, Progress> running = new ConcurrentHashMap<>();
+    private final Map<String, Disposable> runs = new ConcurrentHashMap<>();
+    private volatile Disposable resuming = Disposables.disposed();
+
+    public MigrationRunner(ReactiveRedisOperations<String, User> redisOperations,
+                           ReactiveStringRedisTemplate redisTemplate,
+                           MeterRegistry meterRegistry,
+                           List<UserMigration> migrations,
+                           @Value("${app.migration.batch-size:500}") int batchSize,
+                           @Value("${app.migration.concurrency:4}") int concurrency,
+                           @Value("${app.migration.parallelism:4}") int parallelism,
+                           @Value("${app.migration.max-users-per-second:0}") long maxUsersPerSecond,
+                           @Value("${app.migration.resume-on-startup:true}") boolean resumeOnStartup,
+                           @Value("${app.migration.lock-ttl:30s}") Duration lockTtl) {
+        this.redisOperations = redisOperations;
+        this.redisTemplate = redisTemplate;
+        this.serializer = redisOperations.getSerializationContext().getHashValueSerializationPair();
+        this.meterRegistry = meterRegistry;
+        migrations.forEach(migration -> this.migrations.put(migration.getName(), migration));
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.parallelism = parallelism;
+        this.maxUsersPerSecond = maxUsersPerSecond;
+        this.resumeOnStartup = resumeOnStartup;
+        this.lockTtl = lockTtl;
+    }
+
+    @PostConstruct
+    public void resume() {
+        if (!resumeOnStartup) {
+            return;
+        }
+        // Migrations interrupted while running. Still locked, they are run by another instance or by one
+        // that died, whose lock expires within lock-ttl: they are tried again until they are not running
+        resuming = Flux.fromIterable(migrations.keySet())
+                .flatMap(name -> redisTemplate.<String, String>opsForHash().get(key(name), STATE)
+                        .filter(RUNNING::equals)
+                        .flatMap(state -> start(name))
+                        .retryWhen(Retry.fixedDelay(Long.MAX_VALUE, lockTtl).filter(IllegalStateException.class::isInstance)))
+                .subscribe(progress -> LOG.info("Resuming migration {}", progress.getName()),
+                        e -> LOG.warn("Migrations cannot be resumed: {}", e.getMessage()));
+    }
+
+    @PreDestroy
+    public void stop() {
+        // The checkpoints and the running state are kept, the migrations resume on the next start
+        resuming.dispose();
+        runs.values().forEach(Disposable::dispose);
+    }
+
+    public List<String> getMigrations() {
+        return new ArrayList<>(migrations.keySet());
+    }
+
+    // Progress of the migrations run by this instance since it started
+    public List<Progress> getProgress() {
+        return new ArrayList<>(running.values());
+    }
+
+    // Starts the migration in the background, from its checkpoints when it did not complete earlier
+    public Mono<Progress> start(String name) {
+        UserMigration migration = migrations.get(name);
+        if (migration == null) {
+            return Mono.error(new IllegalArgumentException("Unknown migration: " + name));
+        }
+        String key = key(name);
+        return redisTemplate.opsForValue().setIfAbsent(lockKey(name), instanceId, lockTtl)
+                .flatMap(locked -> locked ? redisTemplate.<String, String>opsForHash().get(key, STATE).defaultIfEmpty("")
+                        : Mono.error(new IllegalStateException("Migration " + name + " is already running.")))
+                // A completed migration starts over, a running or failed one resumes
+                .flatMap(state -> (COMPLETED.equals(state) ? redisTemplate.delete(key).then() : Mono.<Void>empty())
+                        .then(redisTemplate.opsForHash().put(key, STATE, RUNNING)))
+                .then(segments().collectList())
+                .flatMap(segments -> Flux.fromIterable(segments)
+                        .flatMap(keys -> redisOperations.opsForHash().size(keys.getUsers()))
+                        .reduce(0L, Long::sum)
+                        .map(total -> {
+                            Progress progress = new Progress(name, segments.size(), total);
+                            running.put(name, progress);
+                            runs.put(name, run(migration, segments, progress));
+                            return progress;
+                        }));
+    }
+
+    private Disposable run(UserMigration migration, List<TenantKeys> segments, Progress progress) {
+        String name = migration.getName();
+        Counter migrated = Counter.builder("users.migration.users")
+                .description("Users a migration was applied to")
+                .tag("migration", name)
+                .register(meterRegistry);
+
+        // Errors while extending it are left to the migration, whose own calls to Redis fail too
+        Duration renewal = lockTtl.dividedBy(3);
+        Mono<Void> lockLost = Flux.interval(renewal, renewal)
+                .concatMap(tick -> lock(name, lockTtl).onErrorReturn(true))
+                .filter(held -> !held)
+                .next()
+                .then(Mono.error(() -> new IllegalStateException("Migration " + name + " lost its lock.")));
+
+        return Mono.firstWithSignal(Flux.fromIterable(segments)
+                                .flatMap(keys -> runSegment(migration, keys, progress, migrated), parallelism)
+                                .then(),
+                        lockLost)
+                .then(Mono.defer(() -> finish(name, COMPLETED)))
+                .doOnSuccess(done -> LOG.info("Migration {} completed: {}", name, progress))
+                .onErrorResume(e -> {
+                    LOG.warn("Migration {} failed, it resumes from its checkpoints when started again: {}",
+                            name, e.getMessage());
+                    return finish(name, FAILED);
+                })
+                .doFinally(signal -> runs.remove(name))
+                .subscribe();
+    }
+
+    private Mono<Void> runSegment(UserMigration migration, TenantKeys keys, Progress progress, Counter migrated) {
+        String key = key(migration.getName());
+        String field = keys.getTenant();
+
+        return redisTemplate.<String, String>opsForHash().get(key, field)
+                .defaultIfEmpty("0:0")
+                .flatMap(checkpoint -> {
+                    String cursor = checkpoint.substring(0, checkpoint.indexOf(':'));
+                    AtomicLong done = new AtomicLong(Long.parseLong(checkpoint.substring(checkpoint.indexOf(':') + 1)));
+                    progress.resumed(done.get());
+                    if (DONE.equals(cursor)) {
+                        progress.segmentsDone.incrementAndGet();
+                        return Mono.empty();
+                    }
+
+                    return scan(keys, cursor)
+                            .expand(page -> page.last ? Mono.empty() : scan(keys, page.next))
+                            .flatMapSequential(page -> migration.migrate(keys, page.batch).thenReturn(page), concurrency)
+                            // In order, so the checkpoint only moves past batches that were all applied
+                            .concatMap(page -> {
+                                progress.processed.addAndGet(page.batch.size());
+                                migrated.increment(page.batch.size());
+                                String next = (page.last ? DONE : page.next) + ":" + done.addAndGet(page.batch.size());
+                                return (page.last ? migration.complete(keys) : Mono.<Void>empty())
+                                        .then(redisTemplate.opsForHash().put(key, field, next))
+                                        .then(throttle(progress));
+                            }, 1)
+                            .then(Mono.fromRunnable(() -> {
+                                progress.segmentsDone.incrementAndGet();
+                                LOG.info("Migration {} done for tenant {}: {} users", migration.getName(), field, done.get());
+                            }));
+                });
+    }
+
+    // One HSCAN step, as the next cursor and the users read
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Mono<Page> scan(TenantKeys keys, String cursor) {
+        return redisOperations.execute((RedisScript) SCAN_SCRIPT, Arrays.asList(keys.getUsers()),
+                        Arrays.asList(cursor, String.valueOf(batchSize)), argsWriter, (RedisElementReader) bytesReader)
+                .next()
+                .map(result -> {
+                    List<Object> reply = (List<Object>) result;
+                    String next = new String((byte[]) reply.get(0), StandardCharsets.UTF_8);
+                    List<byte[]> entries = (List<byte[]>) reply.get(1);
+                    List<String> ids = new ArrayList<>(entries.size() / 2);
+                    List<byte[]> values = new ArrayList<>(entries.size() / 2);
+                    for (int i = 0; i < entries.size(); i += 2) {
+                        ids.add(new String(entries.get(i), StandardCharsets.UTF_8));
+                        values.add(entries.get(i + 1));
+                    }
+                    return new Page(next, new MigrationBatch(ids, values, serializer));
+                });
+    }
+
+    // Waits while the migration is ahead of its maximum rate
+    private Mono<Void> throttle(Progress progress) {
+        if (maxUsersPerSecond <= 0) {
+            return Mono.empty();
+        }
+        long dueMillis = progress.migrated() * 1000 / maxUsersPerSecond;
+        long aheadMillis = dueMillis - progress.getElapsedMillis();
+        return aheadMillis > 0 ? Mono.delay(Duration.ofMillis(aheadMillis)).then() : Mono.empty();
+    }
+
+    // The state is only reported once the lock is released, the migration can be started again from then.
+    // Without the lock, the migration was taken over by another instance whose state is left as is
+    private Mono<Void> finish(String name, String state) {
+        return lock(name, lockTtl)
+                .flatMap(held -> held
+                        ? redisTemplate.opsForHash().put(key(name), STATE, state).then(lock(name, Duration.ZERO))
+                        : Mono.just(false))
+                .doOnNext(released -> {
+                    if (!released) {
+                        LOG.warn("Migration {} is locked by another instance, its state is left to it", name);
+                    }
+                })
+                .then(Mono.fromRunnable(() -> {
+                    Progress progress = running.get(name);
+                    if (progress != null) {
+                        progress.state = state;
+                    }
+                }));
+    }
+
+    // Extends the lock of this instance by ttl, or releases it with a zero ttl. False once it is not held
+    private Mono<Boolean> lock(String name, Duration ttl) {
+        return redisTemplate.execute(LOCK_SCRIPT, Collections.singletonList(lockKey(name)),
+                        Arrays.asList(instanceId, String.valueOf(ttl.toMillis())))
+                .next()
+                .map(held -> held == 1);
+    }
+
+    // The default tenant and every tenant that stored users
+    private Flux<TenantKeys> segments() {
+        return Flux.concat(Mono.just(TenantKeys.of(TenantKeys.DEFAULT_TENANT)),
+                redisTemplate.opsForSet().members(TenantKeys.TENANTS_KEY).sort().map(TenantKeys::of));
+    }
+
+    private static String key(String name) {
+        return KEY_PREFIX + name;
+    }
+
+    private static String lockKey(String name) {
+        return KEY_PREFIX + name + ":LOCK";
+    }
+
+    private static class Page {
+
+        private final String next;
+        private final boolean last;
+        private final MigrationBatch batch;
+
+        Page(String next, MigrationBatch batch) {
+            this.next = next;
+            this.last = "0".equals(next);
+            this.batch = batch;
+        }
+    }
+
+    public static class Progress {
+
+        private final String name;
+        private final int segments;
+        private final long total;
+        private final long start = System.nanoTime();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicInteger segmentsDone = new AtomicInteger();
+        private final AtomicLong resumed = new AtomicLong();
+        private volatile String state = RUNNING;
+
+        Progress(String name, int segments, long total) {
+            this.name = name;
+            this.segments = segments;
+            this.total = total;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        // Users done, including the ones done before a restart
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        // Users stored when the migration started
+        public long getTotal() {
+            return total;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        public int getSegmentsDone() {
+            return segmentsDone.get();
+        }
+
+        public long getElapsedMillis() {
+            return (System.nanoTime() - start) / 1_000_000;
+        }
+
+        public double getUsersPerSecond() {
+            long elapsed = getElapsedMillis();
+            return elapsed == 0 ? 0 : migrated() * 1000.0 / elapsed;
+        }
+
+        // Users done before a restart count as processed, not towards the throughput
+        private void resumed(long users) {
+            processed.addAndGet(users);
+            resumed.addAndGet(users);
+        }
+
+        private long migrated() {
+            return processed.get() - resumed.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d users of %d/%d tenants in %d ms (%.0f users/s)", getProcessed(), total,
+                    getSegmentsDone(), segments, getElapsedMillis(), getUsersPerSecond());
+        }
+    }
+}
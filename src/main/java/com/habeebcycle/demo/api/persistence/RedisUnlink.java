@@ -0,0 +1,41 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.RedisOperations;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+/**
+ * Removal of keys that may be large with UNLINK, so Redis frees their memory off its main thread rather
+ * than blocking every other client meanwhile. Servers older than Redis 4.0 do not know the command, the
+ * keys are then removed with DEL.
+ */
+final class RedisUnlink {
+
+    private RedisUnlink() {
+    }
+
+    static Mono<Long> unlink(ReactiveRedisOperations<String, ?> operations, String... keys) {
+        return operations.unlink(keys)
+                .onErrorResume(RedisUnlink::isUnknownCommand, e -> operations.delete(keys));
+    }
+
+    static Long unlink(RedisOperations<String, ?> operations, Collection<String> keys) {
+        try {
+            return operations.unlink(keys);
+        } catch (DataAccessException e) {
+            if (!isUnknownCommand(e)) {
+                throw e;
+            }
+            return operations.delete(keys);
+        }
+    }
+
+    private static boolean isUnknownCommand(Throwable e) {
+        String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+        return message != null && message.contains("unknown command");
+    }
+}
@@ -0,0 +1,181 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.function.Function;
+
+/**
+ * Sends reads to a replica while keeping read-your-writes for the clients that ask for it.
+ *
+ * A write can be answered with a consistency token, the replication offset of the primary once the
+ * write is done. A read carrying a token is served by the replica only when the replica already
+ * applied that offset, otherwise by the primary. Reads without a token go to the replica as long as
+ * it is connected to the primary.
+ *
+ * The replica offset is polled in the background, so routing a read costs no round trip. Reads refresh
+ * the idle expiry of users on the primary, so replica reads are only used without an idle ttl. Users kept
+ * in memory have no replica, so neither are they with the in-memory repository.
+ */
+@Component
+public class ReplicaReads {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaReads.class);
+
+    private final static String CONTEXT_KEY = ReplicaReads.class.getName();
+
+    private final UserRepository primary;
+    private final ReactiveRedisOperations<String, User> primaryOperations;
+    private final UserChangeLog changeLog;
+    private final UserBloomFilter bloomFilter;
+    private final TenantQuota quota;
+    private final IdGenerator idGenerator;
+    private final boolean enabled;
+    private final String host;
+    private final int port;
+    private final String password;
+    private final Duration offsetRefreshInterval;
+    private final Counter primaryReads;
+    private final Counter replicaReads;
+
+    private LettuceConnectionFactory replicaConnectionFactory;
+    private UserRepository replica;
+    private volatile long replicaOffset = -1;
+    private Disposable refresher;
+
+    public ReplicaReads(UserRepository primary, ReactiveRedisOperations<String, User> primaryOperations,
+                        UserChangeLog changeLog, UserBloomFilter bloomFilter, TenantQuota quota, IdGenerator idGenerator,
+                        MeterRegistry meterRegistry,
+                        @Value("${app.replica.enabled:false}") boolean enabled,
+                        @Value("${app.replica.host:localhost}") String host,
+                        @Value("${app.replica.port:6380}") int port,
+                        @Value("${spring.redis.password:}") String password,
+                        @Value("${app.replica.offset-refresh-interval:100ms}") Duration offsetRefreshInterval,
+                        @Value("${app.user-expiry.idle-ttl:0s}") Duration idleTtl,
+                        @Value("${app.repository.mode:reactive}") String repositoryMode) {
+        this.primary = primary;
+        this.primaryOperations = primaryOperations;
+        this.changeLog = changeLog;
+        this.bloomFilter = bloomFilter;
+        this.quota = quota;
+        this.idGenerator = idGenerator;
+        this.enabled = enabled && idleTtl.isZero() && !"in-memory".equals(repositoryMode);
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.offsetRefreshInterval = offsetRefreshInterval;
+        this.primaryReads = reads(meterRegistry, "primary");
+        this.replicaReads = reads(meterRegistry, "replica");
+        if (enabled && !this.enabled) {
+            LOG.warn("Replica reads are disabled, they need users stored in Redis without app.user-expiry.idle-ttl");
+        }
+    }
+
+    private static Counter reads(MeterRegistry meterRegistry, String target) {
+        return Counter.builder("users.reads")
+                .description("User reads by the Redis node serving them")
+                .tag("target", target)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(host, port);
+        configuration.setPassword(password);
+        replicaConnectionFactory = new LettuceConnectionFactory(configuration);
+        replicaConnectionFactory.afterPropertiesSet();
+
+        ReactiveRedisOperations<String, User> replicaOperations =
+                new ReactiveRedisTemplate<>(replicaConnectionFactory, primaryOperations.getSerializationContext());
+        replica = new UserRepoImpl(replicaOperations, changeLog, bloomFilter, quota, idGenerator,
+                Duration.ZERO, Duration.ZERO, Duration.ZERO);
+
+        refresher = Flux.interval(Duration.ZERO, offsetRefreshInterval)
+                .onBackpressureDrop()
+                .concatMap(tick -> replication(replicaOperations)
+                        .map(info -> "up".equals(info.getProperty("master_link_status"))
+                                ? Long.parseLong(info.getProperty("slave_repl_offset", "-1"))
+                                : -1L)
+                        .onErrorResume(e -> {
+                            LOG.warn("Replica offset refresh failed: {}", e.getMessage());
+                            return Mono.just(-1L);
+                        }), 1)
+                .subscribe(offset -> replicaOffset = offset);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (refresher != null) {
+            refresher.dispose();
+        }
+        if (replicaConnectionFactory != null) {
+            replicaConnectionFactory.destroy();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Offset of the replica at the last refresh, -1 when it is not connected to the primary
+    public long getReplicaOffset() {
+        return replicaOffset;
+    }
+
+    // Token for the writes completed so far, to be sent back with the reads that must see them
+    public Mono<Long> token() {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return replication(primaryOperations)
+                .map(info -> Long.parseLong(info.getProperty("master_repl_offset", "0")));
+    }
+
+    // To be used with contextWrite, reads upstream need the writes of the token
+    public static Function<Context, Context> withToken(long token) {
+        return context -> context.put(CONTEXT_KEY, token);
+    }
+
+    // Whether the current subscriber reads with a token, and must see the writes it covers
+    public static Mono<Boolean> hasToken() {
+        return Mono.deferContextual(context -> Mono.just(context.hasKey(CONTEXT_KEY)));
+    }
+
+    // Repository for a read of the current subscriber
+    public Mono<UserRepository> repository() {
+        if (!enabled) {
+            return Mono.just(primary);
+        }
+        return Mono.deferContextual(context -> {
+            long offset = replicaOffset;
+            boolean fromReplica = offset >= 0 && offset >= context.<Long>getOrDefault(CONTEXT_KEY, 0L);
+            (fromReplica ? replicaReads : primaryReads).increment();
+            return Mono.just(fromReplica ? replica : primary);
+        });
+    }
+
+    private static Mono<Properties> replication(ReactiveRedisOperations<String, User> operations) {
+        return operations.execute(connection -> connection.serverCommands().info("replication")).next();
+    }
+}
@@ -0,0 +1,175 @@
+package com.habeebcycle.demo.api.persistence;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.util.context.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Timing of the Redis calls of one request, carried in the reactive Context like the tenant.
+ *
+ * Each call made by the repository is timed, counted and added to the time of its phase. The last calls, up
+ * to a maximum, are also kept in a ring so the sequence leading to a slow request can be logged; they are
+ * only formatted when that happens. A trace with a maximum of 0 keeps no calls. Outside of a request, or
+ * for calls made without a trace, nothing is recorded.
+ */
+public final class RequestTrace {
+
+    public enum Phase {LOOKUP, UNIQUENESS, WRITE}
+
+    private final static String CONTEXT_KEY = RequestTrace.class.getName();
+
+    private final long start = System.nanoTime();
+    private final int maxCommands;
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicInteger commandCount = new AtomicInteger();
+    private final Command[] commands;
+
+    public RequestTrace(int maxCommands) {
+        this.maxCommands = Math.max(maxCommands, 0);
+        this.commands = new Command[this.maxCommands];
+    }
+
+    // To be used with contextWrite, traces the calls made upstream
+    public static Function<Context, Context> with(RequestTrace trace) {
+        return context -> context.put(CONTEXT_KEY, trace);
+    }
+
+    // Runs the call with the trace of the subscriber, or with a new one keeping no calls when it has none
+    public static <T> Mono<T> traced(Function<RequestTrace, Mono<T>> call) {
+        return Mono.deferContextual(context -> {
+            RequestTrace trace = context.getOrDefault(CONTEXT_KEY, null);
+            if (trace != null) {
+                return call.apply(trace);
+            }
+            RequestTrace created = new RequestTrace(0);
+            return call.apply(created).contextWrite(with(created));
+        });
+    }
+
+    public static <T> Mono<T> trace(Phase phase, String command, String key, Mono<T> call) {
+        return Mono.deferContextual(context -> {
+            RequestTrace trace = context.getOrDefault(CONTEXT_KEY, null);
+            if (trace == null) {
+                return call;
+            }
+            Recorder recorder = trace.new Recorder(phase, command, key);
+            return call.doOnSuccess(value -> recorder.record(SignalType.ON_COMPLETE))
+                    .doOnError(e -> recorder.record(SignalType.ON_ERROR))
+                    .doOnCancel(() -> recorder.record(SignalType.CANCEL));
+        });
+    }
+
+    public static <T> Flux<T> trace(Phase phase, String command, String key, Flux<T> call) {
+        return Flux.deferContextual(context -> {
+            RequestTrace trace = context.getOrDefault(CONTEXT_KEY, null);
+            if (trace == null) {
+                return call;
+            }
+            Recorder recorder = trace.new Recorder(phase, command, key);
+            return call.doOnComplete(() -> recorder.record(SignalType.ON_COMPLETE))
+                    .doOnError(e -> recorder.record(SignalType.ON_ERROR))
+                    .doOnCancel(() -> recorder.record(SignalType.CANCEL));
+        });
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - start;
+    }
+
+    // Time spent in the calls of the phase, calls running concurrently are all counted
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos.get(phase.ordinal());
+    }
+
+    // Time spent in the calls of every phase
+    public long getCallNanos() {
+        long nanos = 0;
+        for (int i = 0; i < phaseNanos.length(); i++) {
+            nanos += phaseNanos.get(i);
+        }
+        return nanos;
+    }
+
+    public int getCommandCount() {
+        return commandCount.get();
+    }
+
+    // The last calls kept, oldest first
+    public synchronized List<Command> getCommands() {
+        int count = commandCount.get();
+        int size = Math.min(count, maxCommands);
+        List<Command> kept = new ArrayList<>(size);
+        for (int i = count - size; i < count; i++) {
+            kept.add(commands[i % maxCommands]);
+        }
+        return Collections.unmodifiableList(kept);
+    }
+
+    // One call, recorded when it terminates and before its signal goes downstream, so the last call of a
+    // request is recorded by the time the response completes. Only the first terminal signal counts
+    private class Recorder {
+
+        private final Phase phase;
+        private final String command;
+        private final String key;
+        private final long commandStart = System.nanoTime();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        Recorder(Phase phase, String command, String key) {
+            this.phase = phase;
+            this.command = command;
+            this.key = key;
+        }
+
+        void record(SignalType signal) {
+            if (!recorded.compareAndSet(false, true)) {
+                return;
+            }
+            long now = System.nanoTime();
+            phaseNanos.addAndGet(phase.ordinal(), now - commandStart);
+            if (maxCommands == 0) {
+                commandCount.incrementAndGet();
+                return;
+            }
+            Command call = new Command(phase, command, key, commandStart - start, now - commandStart, signal);
+            synchronized (RequestTrace.this) {
+                commands[commandCount.getAndIncrement() % maxCommands] = call;
+            }
+        }
+    }
+
+    public static class Command {
+
+        private final Phase phase;
+        private final String command;
+        private final String key;
+        private final long startNanos;
+        private final long durationNanos;
+        private final SignalType signal;
+
+        Command(Phase phase, String command, String key, long startNanos, long durationNanos, SignalType signal) {
+            this.phase = phase;
+            this.command = command;
+            this.key = key;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.signal = signal;
+        }
+
+        // Like "+1.20ms WRITE EVALSHA save_user USERS 2.31ms on_complete"
+        @Override
+        public String toString() {
+            return String.format("+%.2fms %s %s %s %.2fms %s", startNanos / 1e6, phase, command, key,
+                    durationNanos / 1e6, signal.name().toLowerCase());
+        }
+    }
+}
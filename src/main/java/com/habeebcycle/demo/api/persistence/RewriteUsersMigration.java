@@ -0,0 +1,65 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisElementReader;
+import org.springframework.data.redis.serializer.RedisElementWriter;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes every user again in the current serialization, for example to compress the users stored before
+ * compression was enabled or the threshold lowered. Users whose value would not change are skipped, and
+ * users updated since they were read are left as the update wrote them.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+public class RewriteUsersMigration implements UserMigration {
+
+    private final static RedisScript<Long> REWRITE_USERS_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/rewrite_users.lua"), Long.class);
+
+    private final ReactiveRedisOperations<String, User> redisOperations;
+    private final RedisElementWriter<byte[]> bytesWriter = RedisElementWriter.from(RedisSerializer.byteArray());
+    private final RedisElementReader<Long> longReader = RedisElementReader.from(new GenericToStringSerializer<>(Long.class));
+
+    public RewriteUsersMigration(ReactiveRedisOperations<String, User> redisOperations) {
+        this.redisOperations = redisOperations;
+    }
+
+    @Override
+    public String getName() {
+        return "rewrite-users";
+    }
+
+    @Override
+    public Mono<Void> migrate(TenantKeys keys, MigrationBatch batch) {
+        List<byte[]> args = new ArrayList<>();
+        List<User> users = batch.getUsers();
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] value = batch.getValues().get(i);
+            byte[] rewritten = batch.serialize(users.get(i));
+            if (!Arrays.equals(value, rewritten)) {
+                args.add(batch.getIds().get(i).getBytes(StandardCharsets.UTF_8));
+                args.add(value);
+                args.add(rewritten);
+            }
+        }
+        if (args.isEmpty()) {
+            return Mono.empty();
+        }
+        return redisOperations.execute(REWRITE_USERS_SCRIPT, Arrays.asList(keys.getUsers(), keys.getBytes(), keys.getBytesCounted()), args,
+                bytesWriter, longReader)
+                .then();
+    }
+}
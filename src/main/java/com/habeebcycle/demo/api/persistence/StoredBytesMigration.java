@@ -0,0 +1,52 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the stored bytes counter of the tenants whose users were stored before it existed, so the bytes
+ * quota covers them. Until it is built the quota is not enforced for the tenant. Saves and deletes made
+ * while it runs keep the counter right, and a counter that exists already is left as is.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+public class StoredBytesMigration implements UserMigration {
+
+    private final static RedisScript<Long> STORED_BYTES_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/stored_bytes.lua"), Long.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+
+    public StoredBytesMigration(ReactiveStringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @Override
+    public String getName() {
+        return "stored-bytes";
+    }
+
+    @Override
+    public Mono<Void> migrate(TenantKeys keys, MigrationBatch batch) {
+        return batch.size() == 0 ? Mono.empty() : count(keys, batch.getIds());
+    }
+
+    @Override
+    public Mono<Void> complete(TenantKeys keys) {
+        return count(keys, Collections.emptyList());
+    }
+
+    private Mono<Void> count(TenantKeys keys, List<String> ids) {
+        return redisTemplate.execute(STORED_BYTES_SCRIPT,
+                Arrays.asList(keys.getUsers(), keys.getBytes(), keys.getBytesCounted()), ids)
+                .then();
+    }
+}
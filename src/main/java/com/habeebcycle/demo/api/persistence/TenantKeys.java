@@ -0,0 +1,125 @@
+package com.habeebcycle.demo.api.persistence;
+
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.util.function.Function;
+
+/**
+ * Redis keys of one tenant. The tenant of a request travels in the reactive Context; without one the
+ * default tenant is used, whose keys are the ones used before tenants existed.
+ *
+ * Keys of other tenants share a {tenant} hash tag, so the scripts touching several of them stay on one
+ * slot of a cluster.
+ */
+public final class TenantKeys {
+
+    public final static String DEFAULT_TENANT = "default";
+    // Set of the tenants other than the default one that stored users, for background jobs
+    final static String TENANTS_KEY = "TENANTS";
+
+    private final static String CONTEXT_KEY = TenantKeys.class.getName();
+    private final static TenantKeys DEFAULT = new TenantKeys(DEFAULT_TENANT, "");
+
+    private final String tenant;
+    private final String users;
+    private final String expiry;
+    private final String fixedExpiry;
+    private final String versions;
+    private final String bytes;
+    private final String bytesCounted;
+    private final String unique;
+    private final String uniqueReady;
+    private final String idempotencyPrefix;
+    private final String bloom;
+    private final String bloomReady;
+
+    private TenantKeys(String tenant, String prefix) {
+        this.tenant = tenant;
+        this.users = prefix + UserRepoImpl.KEY;
+        this.expiry = users + ":EXPIRY";
+        this.fixedExpiry = expiry + ":FIXED";
+        this.versions = users + ":VERSIONS";
+        this.bytes = users + ":BYTES";
+        this.bytesCounted = bytes + ":COUNTED";
+        this.unique = users + ":UNIQUE";
+        this.uniqueReady = unique + ":READY";
+        this.idempotencyPrefix = users + ":IDEMPOTENCY:";
+        this.bloom = users + ":BLOOM";
+        this.bloomReady = bloom + ":READY";
+    }
+
+    public static TenantKeys of(String tenant) {
+        return tenant == null || tenant.equals(DEFAULT_TENANT) ? DEFAULT : new TenantKeys(tenant, "TENANT:{" + tenant + "}:");
+    }
+
+    // Keys of the tenant of the current subscriber
+    public static Mono<TenantKeys> current() {
+        return Mono.deferContextual(context -> Mono.just(of(context.getOrDefault(CONTEXT_KEY, DEFAULT_TENANT))));
+    }
+
+    // To be used with contextWrite, runs everything upstream for the given tenant
+    public static Function<Context, Context> withTenant(String tenant) {
+        return context -> context.put(CONTEXT_KEY, tenant);
+    }
+
+    public boolean isDefault() {
+        return this == DEFAULT;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public String getUsers() {
+        return users;
+    }
+
+    // Sorted set of user ids scored by expiry time
+    public String getExpiry() {
+        return expiry;
+    }
+
+    // Set of the user ids whose expiry was given explicitly, reads do not push it back
+    public String getFixedExpiry() {
+        return fixedExpiry;
+    }
+
+    // Hash of user id to version, read without the user
+    public String getVersions() {
+        return versions;
+    }
+
+    // Total size of the stored users, for the memory quota
+    public String getBytes() {
+        return bytes;
+    }
+
+    // Set of the users the stored bytes counter holds, only while the stored-bytes migration builds it
+    public String getBytesCounted() {
+        return bytesCounted;
+    }
+
+    // Hash of the usernames and emails taken to the id of their user, and of every user id to its claims
+    public String getUnique() {
+        return unique;
+    }
+
+    // Set once the unique hash holds the claims of every user, users stored before it may have none
+    public String getUniqueReady() {
+        return uniqueReady;
+    }
+
+    public String getIdempotencyPrefix() {
+        return idempotencyPrefix;
+    }
+
+    public String getBloom() {
+        return bloom;
+    }
+
+    // Set once the Bloom filter bitset holds every user, a bitset without it may be partial
+    public String getBloomReady() {
+        return bloomReady;
+    }
+}
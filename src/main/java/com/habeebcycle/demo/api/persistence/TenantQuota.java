@@ -0,0 +1,119 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Limits on the number of users and on the stored bytes of every tenant, enforced atomically by the
+ * save script. A limit of 0 disables it.
+ *
+ * The same script claims the username and email of the user and compares the version an update was read
+ * at, so saves racing each other can neither take the same username or email nor lose an update. It also
+ * schedules the expiry of the user and adds it to the shared Bloom filter, only once it is saved.
+ */
+@Component
+public class TenantQuota {
+
+    // Results of the save script
+    final static long SAVED = 1;
+    final static long USERS_EXCEEDED = -1;
+    final static long BYTES_EXCEEDED = -2;
+    final static long DUPLICATE = -3;
+    final static long VERSION_CONFLICT = -4;
+
+    final static RedisScript<Long> SAVE_USER_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/save_user.lua"), Long.class);
+    final static RedisScript<Long> DELETE_USER_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/delete_user.lua"), Long.class);
+
+    private final MeterRegistry meterRegistry;
+    private final long maxUsers;
+    private final long maxBytes;
+
+    public TenantQuota(MeterRegistry meterRegistry,
+                       @Value("${app.tenant.max-users:0}") long maxUsers,
+                       @Value("${app.tenant.max-bytes:0}") long maxBytes) {
+        this.meterRegistry = meterRegistry;
+        this.maxUsers = maxUsers;
+        this.maxBytes = maxBytes;
+    }
+
+    long getMaxUsers() {
+        return maxUsers;
+    }
+
+    // Keys of the save script
+    List<String> saveKeys(TenantKeys keys) {
+        return Arrays.asList(keys.getUsers(), keys.getVersions(), keys.getBytes(), keys.getUnique(), keys.getExpiry(),
+                keys.getBytesCounted(), keys.getUniqueReady(), keys.getFixedExpiry(), keys.getBloom());
+    }
+
+    // Arguments of the save script after the serialized user, an update was read at the version before its own.
+    // An explicit ttl wins over the idle ttl and is not pushed back by reads, a zero ttl schedules no expiry
+    List<String> saveArgs(TenantKeys keys, User user, boolean update, Duration ttl, Duration idleTtl,
+                          List<String> bloomOffsets) {
+        long now = System.currentTimeMillis();
+        Duration effectiveTtl = ttl != null ? ttl : idleTtl;
+        List<String> args = new ArrayList<>(11 + bloomOffsets.size());
+        args.addAll(Arrays.asList(user.getId(), String.valueOf(user.getVersion()), String.valueOf(maxUsers),
+                String.valueOf(maxBytes), user.getUsername(), user.getEmail(), update ? String.valueOf(user.getVersion() - 1) : "",
+                String.valueOf(now),
+                effectiveTtl.isZero() || effectiveTtl.isNegative() ? "" : String.valueOf(now + effectiveTtl.toMillis()),
+                ttl != null ? "1" : "0"));
+        args.addAll(bloomOffsets);
+        return args;
+    }
+
+    // Fields of the unique hash claiming the username and the email of a user
+    static List<String> claimFields(User user) {
+        return Arrays.asList("username:" + user.getUsername(), "email:" + user.getEmail());
+    }
+
+    // Keys of the delete script
+    List<String> deleteKeys(TenantKeys keys) {
+        return Arrays.asList(keys.getUsers(), keys.getVersions(), keys.getExpiry(), keys.getBytes(), keys.getUnique(),
+                keys.getFixedExpiry(), keys.getBytesCounted());
+    }
+
+    // Maps the result of the save script, counting the saves a quota rejected
+    void checkSaved(TenantKeys keys, User user, long result) {
+        if (result == DUPLICATE) {
+            throw new DuplicateKeyException("Duplicate key, Username: " +
+                    user.getUsername() + " or Email: " + user.getEmail() + " exists.");
+        }
+        if (result == VERSION_CONFLICT) {
+            throw new OptimisticLockingFailureException("This record has already been updated earlier by another object.");
+        }
+        if (result == USERS_EXCEEDED) {
+            rejected(keys, "users");
+            throw new TenantQuotaExceededException("Tenant " + keys.getTenant() + " reached its limit of "
+                    + maxUsers + " users.");
+        }
+        if (result == BYTES_EXCEEDED) {
+            rejected(keys, "bytes");
+            throw new TenantQuotaExceededException("Tenant " + keys.getTenant() + " reached its limit of "
+                    + maxBytes + " stored bytes.");
+        }
+    }
+
+    private void rejected(TenantKeys keys, String quota) {
+        Counter.builder("users.tenant.quota.rejections")
+                .description("Saves rejected because the tenant reached a quota")
+                .tag("tenant", keys.getTenant())
+                .tag("quota", quota)
+                .register(meterRegistry)
+                .increment();
+    }
+}
@@ -0,0 +1,11 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.dao.NonTransientDataAccessResourceException;
+
+// Thrown when a save would take a tenant over its number of users or stored bytes
+public class TenantQuotaExceededException extends NonTransientDataAccessResourceException {
+
+    public TenantQuotaExceededException(String msg) {
+        super(msg);
+    }
+}
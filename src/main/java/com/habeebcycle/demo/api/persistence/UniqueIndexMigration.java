@@ -0,0 +1,54 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Claims the usernames and emails of the users stored before the save script claimed them, so saves racing
+ * each other cannot take them either. Users saved since they were read already hold their claims. Once
+ * every user of a tenant holds them, saves rely on the claims and no longer scan all users.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+public class UniqueIndexMigration implements UserMigration {
+
+    private final static RedisScript<Long> UNIQUE_INDEX_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/unique_index.lua"), Long.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+
+    public UniqueIndexMigration(ReactiveStringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @Override
+    public String getName() {
+        return "unique-index";
+    }
+
+    @Override
+    public Mono<Void> migrate(TenantKeys keys, MigrationBatch batch) {
+        List<String> args = new ArrayList<>(batch.size() * 3);
+        for (User user : batch.getUsers()) {
+            args.add(user.getId());
+            args.add(user.getUsername());
+            args.add(user.getEmail());
+        }
+        return redisTemplate.execute(UNIQUE_INDEX_SCRIPT, Arrays.asList(keys.getUsers(), keys.getUnique()), args)
+                .then();
+    }
+
+    @Override
+    public Mono<Void> complete(TenantKeys keys) {
+        return redisTemplate.opsForValue().set(keys.getUniqueReady(), "1").then();
+    }
+}
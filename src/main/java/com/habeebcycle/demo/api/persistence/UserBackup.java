@@ -0,0 +1,611 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.ReactiveRedisConnection;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Exports the users of a tenant to a backup file and restores them from one.
+ *
+ * A backup is a header, LZ4 compressed blocks of records and a trailer with the number of records:
+ *
+ * - header: "USRB" and the format version (4 bytes)
+ * - block: uncompressed length (4 bytes, at most 64MB), compressed length (4 bytes), LZ4 block
+ * - record: id length (4 bytes), id, version (4 bytes), expiry time in ms, negated when the user was saved
+ *   with an explicit ttl, or 0 (8 bytes), value length
+ *   (4 bytes), value as stored in Redis
+ * - trailer: 0 (4 bytes), number of records (8 bytes)
+ *
+ * Users are read with HSCAN, their versions and expiry times with one script call per batch, and written
+ * to a temporary file that replaces the backup once complete.
+ * A restore replaces all users of the tenant: it reads the whole file first, so nothing is deleted for a
+ * truncated or corrupted one, then deletes them, writes the blocks with pipelined HMSET and ZADD, claims
+ * their usernames and emails, adds the users to the Bloom filter and the change log, and sets the stored
+ * bytes counter and the marker of a complete unique hash.
+ * Both keep at most concurrency blocks in memory. Quotas are not checked on restore.
+ *
+ * Backups are of the users stored in Redis, so there are none with the in-memory repository.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+public class UserBackup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UserBackup.class);
+
+    private final static Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]{0,63}");
+    private final static int MAGIC = 0x55535242; // "USRB"
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_LENGTH = 8;
+    private final static int BLOCK_HEADER_LENGTH = 8;
+    private final static int TRAILER_LENGTH = 8;
+    private final static int RECORD_HEADER_LENGTH = 24;
+    // Largest block written, a batch going over it is split. Larger lengths read are not trusted
+    private final static int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+    private final static LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    @SuppressWarnings("rawtypes")
+    private final static RedisScript<List> READ_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/backup_read.lua"), List.class);
+
+    private final ReactiveRedisOperations<String, User> redisOperations;
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final UserRepository repository;
+    private final UserChangeLog changeLog;
+    private final UserBloomFilter bloomFilter;
+    private final Path directory;
+    private final int batchSize;
+    private final int concurrency;
+
+    public UserBackup(ReactiveRedisOperations<String, User> redisOperations, ReactiveStringRedisTemplate redisTemplate,
+                      UserRepository repository,
+                      UserChangeLog changeLog, UserBloomFilter bloomFilter,
+                      @Value("${app.backup.directory:backups}") String directory,
+                      @Value("${app.backup.batch-size:1000}") int batchSize,
+                      @Value("${app.backup.concurrency:4}") int concurrency) {
+        this.redisOperations = redisOperations;
+        this.redisTemplate = redisTemplate;
+        this.repository = repository;
+        this.changeLog = changeLog;
+        this.bloomFilter = bloomFilter;
+        this.directory = Paths.get(directory);
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+    }
+
+    // Backup files, by name
+    public List<Backup> list() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> NAME_PATTERN.matcher(file.getFileName().toString()).matches())
+                    .filter(file -> !file.getFileName().toString().endsWith(".tmp"))
+                    .map(file -> {
+                        try {
+                            return new Backup(file.getFileName().toString(), Files.size(file));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .sorted((a, b) -> a.getName().compareTo(b.getName()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Writes all users of the current tenant to the named backup, replacing an older one
+    public Mono<Result> export(String name) {
+        return Mono.fromCallable(() -> {
+                    Path file = file(name);
+                    Files.createDirectories(directory);
+                    return file;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(file -> TenantKeys.current().flatMap(keys -> {
+                    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+                    long start = System.nanoTime();
+                    return redisOperations.execute(connection -> export(connection, keys, temporary)).next()
+                            .publishOn(Schedulers.boundedElastic())
+                            .map(records -> {
+                                move(temporary, file);
+                                return new Result(name, keys.getTenant(), records, size(file), System.nanoTime() - start);
+                            })
+                            .doOnError(e -> delete(temporary));
+                }))
+                .doOnNext(result -> LOG.info("Exported {}", result));
+    }
+
+    // Replaces all users of the current tenant with the ones of the named backup
+    public Mono<Result> restore(String name) {
+        return Mono.fromCallable(() -> {
+                    Path file = file(name);
+                    validate(file); // Nothing is deleted for a file that is not a complete backup
+                    return file;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(file -> TenantKeys.current().flatMap(keys -> {
+                    long start = System.nanoTime();
+                    return repository.deleteAll()
+                            .then(redisOperations.execute(connection -> restore(connection, keys, file)).next())
+                            .map(records -> new Result(name, keys.getTenant(), records, size(file), System.nanoTime() - start));
+                }))
+                .doOnNext(result -> LOG.info("Restored {}", result));
+    }
+
+    // Reads every block and user of the file, as the restore will
+    private void validate(Path file) throws IOException {
+        RedisSerializationContext.SerializationPair<User> values =
+                redisOperations.getSerializationContext().getHashValueSerializationPair();
+        Reader reader = new Reader(FileChannel.open(file, StandardOpenOption.READ));
+        try {
+            for (List<Record> records = reader.read(); records != null; records = reader.read()) {
+                for (Record record : records) {
+                    try {
+                        values.read(ByteBuffer.wrap(record.value));
+                    } catch (RuntimeException e) {
+                        throw new IOException("Backup is corrupted: a user cannot be read.", e);
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Mono<Long> export(ReactiveRedisConnection connection, TenantKeys keys, Path file) {
+        return Mono.using(
+                () -> new Writer(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)),
+                writer -> connection.hashCommands()
+                        .hScan(bytes(keys.getUsers()), ScanOptions.scanOptions().count(batchSize).build())
+                        .buffer(batchSize)
+                        .flatMapSequential(entries -> records(keys, entries), concurrency)
+                        .publishOn(Schedulers.boundedElastic(), concurrency)
+                        .doOnNext(writer::write)
+                        .then(Mono.fromCallable(writer::finish)),
+                Writer::close);
+    }
+
+    // Versions and expiry times of a batch of users with one script call
+    @SuppressWarnings("unchecked")
+    private Mono<List<Record>> records(TenantKeys keys, List<Map.Entry<ByteBuffer, ByteBuffer>> entries) {
+        List<String> ids = entries.stream().map(entry -> string(entry.getKey())).collect(Collectors.toList());
+        return redisTemplate.execute(READ_SCRIPT, Arrays.asList(keys.getVersions(), keys.getExpiry(), keys.getFixedExpiry()), ids)
+                .next()
+                .map(result -> {
+                    List<String> values = (List<String>) result;
+                    List<Record> records = new ArrayList<>(entries.size());
+                    for (int i = 0; i < entries.size(); i++) {
+                        String version = values.get(2 * i);
+                        String expiresAt = values.get(2 * i + 1);
+                        records.add(new Record(array(entries.get(i).getKey()),
+                                version.isEmpty() ? 0 : Integer.parseInt(version),
+                                expiresAt.isEmpty() ? 0 : (long) Double.parseDouble(expiresAt),
+                                array(entries.get(i).getValue())));
+                    }
+                    return records;
+                });
+    }
+
+    private Mono<Long> restore(ReactiveRedisConnection connection, TenantKeys keys, Path file) {
+        RedisSerializationContext.SerializationPair<User> values =
+                redisOperations.getSerializationContext().getHashValueSerializationPair();
+        long[] bytes = new long[1];
+
+        return Flux.using(() -> new Reader(FileChannel.open(file, StandardOpenOption.READ)),
+                        reader -> Flux.<List<Record>>generate(sink -> {
+                            List<Record> records = reader.read();
+                            if (records != null) {
+                                sink.next(records);
+                            } else {
+                                sink.complete();
+                            }
+                        }),
+                        Reader::close)
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(records -> {
+                    synchronized (bytes) {
+                        records.forEach(record -> bytes[0] += record.value.length);
+                    }
+                    return write(connection, keys, values, records).thenReturn((long) records.size());
+                }, concurrency)
+                .reduce(0L, Long::sum)
+                .flatMap(records -> connection.stringCommands().set(bytes(keys.getBytes()), bytes(String.valueOf(bytes[0])))
+                        .then(connection.stringCommands().set(bytes(keys.getUniqueReady()), bytes("1")))
+                        .then(keys.isDefault() ? Mono.empty()
+                                : connection.setCommands().sAdd(bytes(TenantKeys.TENANTS_KEY), bytes(keys.getTenant())))
+                        .thenReturn(records));
+    }
+
+    private Mono<Void> write(ReactiveRedisConnection connection, TenantKeys keys,
+                             RedisSerializationContext.SerializationPair<User> values, List<Record> records) {
+        Map<ByteBuffer, ByteBuffer> users = new HashMap<>(records.size() * 2);
+        Map<ByteBuffer, ByteBuffer> versions = new HashMap<>(records.size() * 2);
+        List<RedisZSetCommands.Tuple> expiryTimes = new ArrayList<>();
+        List<ByteBuffer> fixedExpiry = new ArrayList<>();
+        List<String> ids = new ArrayList<>(records.size());
+        for (Record record : records) {
+            users.put(ByteBuffer.wrap(record.id), ByteBuffer.wrap(record.value));
+            versions.put(ByteBuffer.wrap(record.id), bytes(String.valueOf(record.version)));
+            if (record.expiresAt != 0) {
+                expiryTimes.add(new DefaultTuple(record.id, (double) Math.abs(record.expiresAt)));
+            }
+            if (record.expiresAt < 0) {
+                fixedExpiry.add(ByteBuffer.wrap(record.id));
+            }
+            ids.add(new String(record.id, StandardCharsets.UTF_8));
+        }
+
+        // Values are read back for the usernames and emails they claim, and for the Bloom filter
+        List<User> added = records.stream()
+                .map(record -> values.read(ByteBuffer.wrap(record.value)))
+                .collect(Collectors.toList());
+        Map<ByteBuffer, ByteBuffer> claims = new HashMap<>(added.size() * 8);
+        for (User user : added) {
+            claims.put(bytes("username:" + user.getUsername()), bytes(user.getId()));
+            claims.put(bytes("email:" + user.getEmail()), bytes(user.getId()));
+            claims.put(bytes("id:" + user.getId() + ":username"), bytes(user.getUsername()));
+            claims.put(bytes("id:" + user.getId() + ":email"), bytes(user.getEmail()));
+        }
+
+        return Mono.when(connection.hashCommands().hMSet(bytes(keys.getUsers()), users),
+                connection.hashCommands().hMSet(bytes(keys.getVersions()), versions),
+                claims.isEmpty() ? Mono.empty() : connection.hashCommands().hMSet(bytes(keys.getUnique()), claims),
+                expiryTimes.isEmpty() ? Mono.empty() : connection.zSetCommands().zAdd(bytes(keys.getExpiry()), expiryTimes),
+                fixedExpiry.isEmpty() ? Mono.empty() : connection.setCommands().sAdd(bytes(keys.getFixedExpiry()), fixedExpiry),
+                bloomFilter.add(keys, added),
+                keys.isDefault() ? changeLog.record(ids) : Mono.empty());
+    }
+
+    private Path file(String name) {
+        if (name == null || !NAME_PATTERN.matcher(name).matches() || name.endsWith(".tmp")) {
+            throw new IllegalArgumentException("Invalid backup name: " + name);
+        }
+        return directory.resolve(name);
+    }
+
+    private static void readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header);
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+            throw new IOException("Not a users backup, or of an unknown format version.");
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Backup is truncated.");
+            }
+        }
+        buffer.flip();
+    }
+
+    private void move(Path temporary, Path file) {
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Cannot delete {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    private static byte[] array(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    // Appends blocks to the file, one at a time, reusing its buffers
+    private static class Writer {
+
+        private final FileChannel channel;
+        private final LZ4Compressor compressor = LZ4.fastCompressor();
+        private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+        private ByteBuffer compressed = ByteBuffer.allocate(BLOCK_HEADER_LENGTH + compressor.maxCompressedLength(block.capacity()));
+        private long records;
+
+        Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            writeFully(header);
+        }
+
+        void write(List<Record> batch) {
+            block.clear();
+            for (Record record : batch) {
+                long length = (long) RECORD_HEADER_LENGTH + record.id.length + record.value.length;
+                if (length > MAX_BLOCK_LENGTH) {
+                    throw new IllegalStateException("User " + new String(record.id, StandardCharsets.UTF_8)
+                            + " is too large for a backup block.");
+                }
+                if (block.position() + length > MAX_BLOCK_LENGTH) {
+                    flush();
+                }
+                if (block.remaining() < length) {
+                    block = grow(block, block.position() + (int) length);
+                }
+                block.putInt(record.id.length).put(record.id)
+                        .putInt(record.version)
+                        .putLong(record.expiresAt)
+                        .putInt(record.value.length).put(record.value);
+            }
+            flush();
+            records += batch.size();
+        }
+
+        // Writes the records put in the block since the last flush as one compressed block
+        private void flush() {
+            if (block.position() == 0) {
+                return;
+            }
+            block.flip();
+
+            int maxLength = BLOCK_HEADER_LENGTH + compressor.maxCompressedLength(block.remaining());
+            if (compressed.capacity() < maxLength) {
+                compressed = ByteBuffer.allocate(maxLength);
+            }
+            compressed.clear();
+            compressed.putInt(block.remaining()).putInt(0);
+            int compressedLength = compressor.compress(block, block.position(), block.remaining(),
+                    compressed, BLOCK_HEADER_LENGTH, compressed.capacity() - BLOCK_HEADER_LENGTH);
+            compressed.putInt(4, compressedLength);
+            compressed.limit(BLOCK_HEADER_LENGTH + compressedLength).position(0);
+            try {
+                writeFully(compressed);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            block.clear();
+        }
+
+        long finish() throws IOException {
+            ByteBuffer trailer = ByteBuffer.allocate(4 + TRAILER_LENGTH).putInt(0).putLong(records);
+            trailer.flip();
+            writeFully(trailer);
+            channel.force(true);
+            return records;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(minCapacity, Math.min(buffer.capacity() * 2, MAX_BLOCK_LENGTH)));
+            buffer.flip();
+            return grown.put(buffer);
+        }
+    }
+
+    // Reads the file one block at a time, checking the trailer at the end
+    private static class Reader {
+
+        private final FileChannel channel;
+        private final LZ4SafeDecompressor decompressor = LZ4.safeDecompressor();
+        private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+        private long records;
+
+        Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            readHeader(channel);
+        }
+
+        // Records of the next block, null after the last one
+        List<Record> read() {
+            try {
+                blockHeader.clear().limit(4);
+                readFully(channel, blockHeader);
+                int length = blockHeader.getInt();
+                if (length == 0) {
+                    ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+                    readFully(channel, trailer);
+                    if (trailer.getLong() != records) {
+                        throw new IOException("Backup is corrupted: the number of records does not match.");
+                    }
+                    return null;
+                }
+                // Lengths are checked before anything is allocated for them
+                if (length < 0 || length > MAX_BLOCK_LENGTH) {
+                    throw new IOException("Backup is corrupted: a block length is invalid.");
+                }
+                blockHeader.clear().limit(4);
+                readFully(channel, blockHeader);
+                int compressedLength = blockHeader.getInt();
+                if (compressedLength <= 0 || compressedLength > LZ4.fastCompressor().maxCompressedLength(length)) {
+                    throw new IOException("Backup is corrupted: a block length is invalid.");
+                }
+                ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+                readFully(channel, compressed);
+
+                ByteBuffer block = ByteBuffer.allocate(length);
+                try {
+                    if (decompressor.decompress(compressed, 0, compressedLength, block, 0, length) != length) {
+                        throw new IOException("Backup is corrupted: a block is shorter than its length.");
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Backup is corrupted: a block cannot be decompressed.", e);
+                }
+
+                List<Record> batch = new ArrayList<>();
+                try {
+                    while (block.hasRemaining()) {
+                        byte[] id = new byte[block.getInt()];
+                        block.get(id);
+                        int version = block.getInt();
+                        long expiresAt = block.getLong();
+                        byte[] value = new byte[block.getInt()];
+                        block.get(value);
+                        batch.add(new Record(id, version, expiresAt, value));
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Backup is corrupted: a record cannot be read.", e);
+                }
+                records += batch.size();
+                return batch;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class Record {
+
+        private final byte[] id;
+        private final int version;
+        private final long expiresAt;
+        private final byte[] value;
+
+        Record(byte[] id, int version, long expiresAt, byte[] value) {
+            this.id = id;
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.value = value;
+        }
+    }
+
+    public static class Backup {
+
+        private final String name;
+        private final long size;
+
+        Backup(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    public static class Result {
+
+        private final String name;
+        private final String tenant;
+        private final long users;
+        private final long size;
+        private final long elapsedMillis;
+
+        Result(String name, String tenant, long users, long size, long elapsedNanos) {
+            this.name = name;
+            this.tenant = tenant;
+            this.users = users;
+            this.size = size;
+            this.elapsedMillis = elapsedNanos / 1_000_000;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTenant() {
+            return tenant;
+        }
+
+        public long getUsers() {
+            return users;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d users of tenant %s as %s (%d bytes) in %d ms", users, tenant, name, size,
+                    elapsedMillis);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bloom filters of the usernames and emails in use, one per tenant, so the uniqueness check of most new
+ * users can be answered without scanning all users.
+ *
+ * The bits live in a Redis bitset per tenant shared by all instances, checked in one round trip. The bitset
+ * is built from the users of the tenant by the first instance using it, which marks it complete once done,
+ * so a build cut short is finished by the next instance rather than trusted. Until then every value might
+ * be present. Deleted users cannot be removed from a Bloom filter, their values only add false positives
+ * until the filter is rebuilt. At most max-tenants filters are held, the least recently used one is dropped
+ * for a new tenant and built again when it is used next.
+ *
+ * With app.bloom-filter.redis-enabled=false the filters are kept in memory and only know the users written
+ * by this instance. They then only skip the uniqueness scan of a save, whose claims the save script checks
+ * again, and never answer existsByUsername or existsByEmail.
+ */
+@Component
+public class UserBloomFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UserBloomFilter.class);
+
+    private final static String USERNAME_PREFIX = "username:";
+    private final static String EMAIL_PREFIX = "email:";
+
+    private final static RedisScript<Long> BLOOM_ADD_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/bloom_add.lua"), Long.class);
+    private final static RedisScript<Long> BLOOM_CHECK_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/bloom_check.lua"), Long.class);
+
+    private final ReactiveRedisOperations<String, User> redisOperations;
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final boolean enabled;
+    private final boolean redisEnabled;
+    private final long expectedUsers;
+    private final double falsePositiveProbability;
+    private final int rebuildBatchSize;
+    private final int maxTenants;
+    private final Map<String, TenantFilter> filters = new ConcurrentHashMap<>();
+
+    private final Counter negatives;
+    private final Counter truePositives;
+    private final Counter falsePositives;
+
+    public UserBloomFilter(ReactiveRedisOperations<String, User> redisOperations,
+                           ReactiveStringRedisTemplate redisTemplate,
+                           MeterRegistry meterRegistry,
+                           @Value("${app.bloom-filter.enabled:true}") boolean enabled,
+                           @Value("${app.bloom-filter.redis-enabled:true}") boolean redisEnabled,
+                           @Value("${app.bloom-filter.expected-users:1000000}") long expectedUsers,
+                           @Value("${app.bloom-filter.false-positive-probability:0.01}") double falsePositiveProbability,
+                           @Value("${app.bloom-filter.rebuild-batch-size:500}") int rebuildBatchSize,
+                           @Value("${app.bloom-filter.max-tenants:64}") int maxTenants) {
+        this.redisOperations = redisOperations;
+        this.redisTemplate = redisTemplate;
+        this.enabled = enabled;
+        this.redisEnabled = redisEnabled;
+        this.expectedUsers = expectedUsers;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.rebuildBatchSize = rebuildBatchSize;
+        this.maxTenants = maxTenants;
+
+        this.negatives = lookups(meterRegistry, "negative");
+        this.truePositives = lookups(meterRegistry, "true_positive");
+        this.falsePositives = lookups(meterRegistry, "false_positive");
+        Gauge.builder("users.bloom.false.positive.rate", this, UserBloomFilter::getFalsePositiveRate)
+                .description("Share of lookups for absent values the filter could not rule out")
+                .register(meterRegistry);
+        if (enabled && !redisEnabled) {
+            Gauge.builder("users.bloom.expected.false.positive.rate", this, UserBloomFilter::getExpectedFalsePositiveRate)
+                    .description("Highest false positive probability for the bits set in the local filters")
+                    .register(meterRegistry);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        // The default tenant is rebuilt right away, other tenants on first use
+        if (enabled) {
+            filter(TenantKeys.of(TenantKeys.DEFAULT_TENANT));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        filters.values().forEach(filter -> filter.rebuild.dispose());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // False only when no user of the tenant can have the username nor the email
+    public Mono<Boolean> mightContain(TenantKeys keys, String username, String email) {
+        List<String> values = new ArrayList<>(2);
+        if (username != null) values.add(USERNAME_PREFIX + username);
+        if (email != null) values.add(EMAIL_PREFIX + email);
+        return mightContain(keys, values);
+    }
+
+    // Only the shared filter knows the users of all instances, a local one cannot rule a value out here
+    public Mono<Boolean> mightContainUsername(TenantKeys keys, String username) {
+        return redisEnabled ? mightContain(keys, Collections.singletonList(USERNAME_PREFIX + username)) : Mono.just(true);
+    }
+
+    public Mono<Boolean> mightContainEmail(TenantKeys keys, String email) {
+        return redisEnabled ? mightContain(keys, Collections.singletonList(EMAIL_PREFIX + email)) : Mono.just(true);
+    }
+
+    // Outcome of the full check made after the filter could not rule a value out
+    public void recordLookup(boolean found) {
+        (found ? truePositives : falsePositives).increment();
+    }
+
+    public Mono<Void> add(TenantKeys keys, User user) {
+        return add(keys, Collections.singletonList(user));
+    }
+
+    // Bits of a user the save script sets in the shared bitset along with the user, so users it refuses
+    // are not added. Empty for a local filter, which adds the user with saved once it is stored
+    public List<String> saveOffsets(TenantKeys keys, User user) {
+        if (!enabled || !redisEnabled) {
+            return Collections.emptyList();
+        }
+        TenantFilter filter = filter(keys);
+        List<String> offsets = new ArrayList<>(2 * filter.hashes.getHashes());
+        addOffsets(filter, offsets, USERNAME_PREFIX + user.getUsername());
+        addOffsets(filter, offsets, EMAIL_PREFIX + user.getEmail());
+        return offsets;
+    }
+
+    public void saved(TenantKeys keys, User user) {
+        if (enabled && !redisEnabled) {
+            add(keys, filter(keys), Collections.singletonList(user));
+        }
+    }
+
+    public Mono<Void> add(TenantKeys keys, List<User> users) {
+        if (!enabled || users.isEmpty()) {
+            return Mono.empty();
+        }
+        return add(keys, filter(keys), users);
+    }
+
+    // Called once all users of the tenant are deleted. The shared bitset is dropped with its marker, the
+    // next instance to use it builds it again from the users saved since
+    public Mono<Void> clear(TenantKeys keys) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        TenantFilter filter = filters.get(keys.getTenant());
+        if (filter != null && filter.local != null) {
+            filter.local.clear();
+        }
+        return redisEnabled ? RedisUnlink.unlink(redisTemplate, keys.getBloom(), keys.getBloomReady()).then() : Mono.empty();
+    }
+
+    double getFalsePositiveRate() {
+        double falsePositive = falsePositives.count();
+        double total = falsePositive + negatives.count();
+        return total == 0 ? 0 : falsePositive / total;
+    }
+
+    double getExpectedFalsePositiveRate() {
+        return filters.values().stream()
+                .filter(filter -> filter.local != null)
+                .mapToDouble(filter -> filter.local.expectedFalsePositiveProbability())
+                .max()
+                .orElse(0);
+    }
+
+    private Mono<Boolean> mightContain(TenantKeys keys, List<String> values) {
+        if (!enabled || values.isEmpty()) {
+            return Mono.just(true);
+        }
+        TenantFilter filter = filter(keys);
+        if (!filter.ready) {
+            return Mono.just(true);
+        }
+        Mono<Boolean> result;
+        if (redisEnabled) {
+            List<String> args = new ArrayList<>(1 + values.size() * filter.hashes.getHashes());
+            args.add(String.valueOf(filter.hashes.getHashes()));
+            values.forEach(value -> addOffsets(filter, args, value));
+            result = redisTemplate.execute(BLOOM_CHECK_SCRIPT, Collections.singletonList(keys.getBloom()), args)
+                    .next()
+                    .map(present -> present == 1);
+        } else {
+            result = Mono.just(values.stream().anyMatch(value -> filter.local.mightContain(filter.local.offsets(value))));
+        }
+        return result.doOnNext(mightContain -> {
+            if (!mightContain) negatives.increment();
+        });
+    }
+
+    private TenantFilter filter(TenantKeys keys) {
+        TenantFilter filter = filters.get(keys.getTenant());
+        if (filter != null) {
+            filter.lastUsed = System.nanoTime();
+            return filter;
+        }
+        // Every user adds its username and its email
+        TenantFilter created = new TenantFilter(new BloomFilter(2 * expectedUsers, falsePositiveProbability, !redisEnabled));
+        filter = filters.putIfAbsent(keys.getTenant(), created);
+        if (filter != null) {
+            return filter;
+        }
+        evict(keys.getTenant());
+        created.rebuild = rebuild(keys, created)
+                .subscribe(added -> {
+                    created.ready = true;
+                    LOG.info("Users Bloom filter of tenant {} ready with {} users ({} bits, {} hashes)",
+                            keys.getTenant(), added, created.hashes.getBits(), created.hashes.getHashes());
+                }, e -> LOG.warn("Users Bloom filter rebuild of tenant {} failed, uniqueness checks scan all users: {}",
+                        keys.getTenant(), e.getMessage()));
+        return created;
+    }
+
+    // Drops the least recently used filters over max-tenants, other than the default tenant's and the new one
+    private void evict(String added) {
+        while (filters.size() > maxTenants) {
+            Map.Entry<String, TenantFilter> oldest = null;
+            for (Map.Entry<String, TenantFilter> entry : filters.entrySet()) {
+                String tenant = entry.getKey();
+                if (!tenant.equals(TenantKeys.DEFAULT_TENANT) && !tenant.equals(added)
+                        && (oldest == null || entry.getValue().lastUsed < oldest.getValue().lastUsed)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            if (filters.remove(oldest.getKey(), oldest.getValue())) {
+                oldest.getValue().rebuild.dispose();
+            }
+        }
+    }
+
+    int size() {
+        return filters.size();
+    }
+
+    private Mono<Void> add(TenantKeys keys, TenantFilter filter, List<User> users) {
+        List<String> values = new ArrayList<>(users.size() * 2);
+        users.forEach(user -> {
+            values.add(USERNAME_PREFIX + user.getUsername());
+            values.add(EMAIL_PREFIX + user.getEmail());
+        });
+        if (!redisEnabled) {
+            values.forEach(value -> filter.local.put(filter.local.offsets(value)));
+            return Mono.empty();
+        }
+        List<String> offsets = new ArrayList<>(values.size() * filter.hashes.getHashes());
+        values.forEach(value -> addOffsets(filter, offsets, value));
+        return redisTemplate.execute(BLOOM_ADD_SCRIPT, Collections.singletonList(keys.getBloom()), offsets).then();
+    }
+
+    // Adds all users of the tenant with HSCAN, a shared filter marked complete is kept as is. Users saved
+    // meanwhile are added to the same bitset by their saves, so marking it complete at the end loses none.
+    private Mono<Long> rebuild(TenantKeys keys, TenantFilter filter) {
+        Mono<Boolean> needed = redisEnabled ? redisTemplate.hasKey(keys.getBloomReady()).map(ready -> !ready) : Mono.just(true);
+        return needed.flatMap(missing -> !missing ? Mono.just(0L) :
+                redisOperations.<String, User>opsForHash().scan(keys.getUsers())
+                        .map(entry -> entry.getValue())
+                        .buffer(rebuildBatchSize)
+                        .concatMap(users -> add(keys, filter, users).thenReturn((long) users.size()))
+                        .reduce(0L, Long::sum)
+                        .flatMap(added -> redisEnabled
+                                ? redisTemplate.opsForValue().set(keys.getBloomReady(), "1").thenReturn(added)
+                                : Mono.just(added)));
+    }
+
+    private void addOffsets(TenantFilter filter, List<String> args, String value) {
+        for (long offset : filter.hashes.offsets(value)) {
+            args.add(String.valueOf(offset));
+        }
+    }
+
+    private static Counter lookups(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("users.bloom.lookups")
+                .description("Uniqueness lookups by outcome of the Bloom filter")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static class TenantFilter {
+
+        // Computes the offsets, and holds the bits unless they are kept in Redis
+        private final BloomFilter hashes;
+        private final BloomFilter local;
+        private volatile boolean ready;
+        private volatile long lastUsed = System.nanoTime();
+        private volatile Disposable rebuild = Disposables.disposed();
+
+        TenantFilter(BloomFilter filter) {
+            this.hashes = filter;
+            this.local = filter.hasBits() ? filter : null;
+        }
+    }
+}
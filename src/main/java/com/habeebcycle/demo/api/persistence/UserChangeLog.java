@@ -0,0 +1,123 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Log of the ids of changed users, kept in Redis so every instance can catch up with the writes made
+ * since its last read without reloading all users.
+ *
+ * Each write appends the changed ids under a new sequence number. The log keeps one entry per id and is
+ * trimmed to a maximum size; readers behind the trimmed part, or behind a deleteAll (which starts a new
+ * epoch), have to reload everything.
+ */
+@Component
+public class UserChangeLog {
+
+    private final static String KEY = UserRepoImpl.KEY + ":CHANGES";
+    private final static String SEQUENCE_KEY = KEY + ":SEQ";
+    private final static String FLOOR_KEY = KEY + ":FLOOR";
+    private final static String EPOCH_KEY = KEY + ":EPOCH";
+
+    private final static RedisScript<Long> RECORD_CHANGES_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/record_changes.lua"), Long.class);
+    @SuppressWarnings("rawtypes")
+    private final static RedisScript<List> READ_CHANGES_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/read_changes.lua"), List.class);
+    private final static RedisScript<Long> RESET_CHANGES_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/reset_changes.lua"), Long.class);
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+    private final boolean enabled;
+    private final long maxEntries;
+
+    public UserChangeLog(ReactiveStringRedisTemplate redisTemplate,
+                         @Value("${app.snapshot.enabled:false}") boolean enabled,
+                         @Value("${app.snapshot.change-log-max-entries:100000}") long maxEntries) {
+        this.redisTemplate = redisTemplate;
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Mono<Void> record(String id) {
+        return record(Arrays.asList(id));
+    }
+
+    public Mono<Void> record(Collection<String> ids) {
+        if (!enabled || ids.isEmpty()) {
+            return Mono.empty();
+        }
+        List<String> args = new ArrayList<>(ids.size() + 1);
+        args.add(String.valueOf(maxEntries));
+        args.addAll(ids);
+        return redisTemplate.execute(RECORD_CHANGES_SCRIPT, Arrays.asList(KEY, SEQUENCE_KEY, FLOOR_KEY), args)
+                .then();
+    }
+
+    // Called once all users are deleted
+    public Mono<Void> reset() {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return redisTemplate.execute(RESET_CHANGES_SCRIPT, Arrays.asList(KEY, FLOOR_KEY, EPOCH_KEY))
+                .then();
+    }
+
+    public Mono<Changes> readSince(long watermark) {
+        return redisTemplate.execute(READ_CHANGES_SCRIPT, Arrays.asList(KEY, SEQUENCE_KEY, FLOOR_KEY, EPOCH_KEY),
+                Arrays.asList(String.valueOf(watermark)))
+                .next()
+                .map(result -> {
+                    @SuppressWarnings("unchecked")
+                    List<String> values = (List<String>) result;
+                    return new Changes(Long.parseLong(values.get(0)), Long.parseLong(values.get(1)),
+                            Long.parseLong(values.get(2)), values.subList(3, values.size()));
+                });
+    }
+
+    public static class Changes {
+
+        private final long epoch;
+        private final long floor;
+        private final long sequence;
+        private final List<String> ids;
+
+        Changes(long epoch, long floor, long sequence, List<String> ids) {
+            this.epoch = epoch;
+            this.floor = floor;
+            this.sequence = sequence;
+            this.ids = ids;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        // Readers with a watermark below the floor missed trimmed changes
+        public long getFloor() {
+            return floor;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        // Ids changed after the watermark, up to and including sequence
+        public List<String> getIds() {
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+
+/**
+ * Removes expired users in small batches in the background, so expiry never needs a full scan
+ * of the users hash nor a long running script blocking Redis.
+ */
+@Component
+public class UserExpirySweeper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UserExpirySweeper.class);
+
+    private final UserRepository repository;
+    private final boolean enabled;
+    private final Duration interval;
+    private final int batchSize;
+    private final int maxBatchesPerRun;
+
+    private Disposable sweeper;
+
+    public UserExpirySweeper(UserRepository repository,
+                             @Value("${app.user-expiry.sweeper-enabled:true}") boolean enabled,
+                             @Value("${app.user-expiry.sweep-interval:5s}") Duration interval,
+                             @Value("${app.user-expiry.batch-size:100}") int batchSize,
+                             @Value("${app.user-expiry.max-batches-per-run:50}") int maxBatchesPerRun) {
+        this.repository = repository;
+        this.enabled = enabled;
+        this.interval = interval;
+        this.batchSize = batchSize;
+        this.maxBatchesPerRun = maxBatchesPerRun;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            sweeper = Flux.interval(interval, interval)
+                    .onBackpressureDrop()
+                    .concatMap(tick -> sweep(), 1)
+                    .subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.dispose();
+        }
+    }
+
+    // Sweeps the default tenant, then every other tenant that stored users
+    public Mono<Long> sweep() {
+        return repository.findTenants()
+                .startWith(TenantKeys.DEFAULT_TENANT)
+                .concatMap(this::sweep)
+                .reduce(0L, Long::sum);
+    }
+
+    // Keeps evicting while full batches come back, up to maxBatchesPerRun batches per run
+    private Mono<Long> sweep(String tenant) {
+        return repository.evictExpired(batchSize)
+                .expand(removed -> removed == batchSize ? repository.evictExpired(batchSize) : Mono.empty())
+                .take(maxBatchesPerRun)
+                .reduce(0L, Long::sum)
+                .contextWrite(TenantKeys.withTenant(tenant))
+                .doOnNext(removed -> {
+                    if (removed > 0) LOG.debug("Evicted {} expired users of tenant {}", removed, tenant);
+                })
+                .onErrorResume(e -> {
+                    LOG.warn("Expired users sweep failed: {}", e.getMessage());
+                    return Mono.just(0L);
+                });
+    }
+}
@@ -0,0 +1,24 @@
+package com.habeebcycle.demo.api.persistence;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * A change applied to every stored user by the {@link MigrationRunner}, such as rebuilding an index or
+ * rewriting the users after a serializer change.
+ *
+ * Batches are applied concurrently, and after a restart the batches read since the last checkpoint are
+ * applied again, so a migration has to be idempotent. Users may be updated by requests while it runs.
+ */
+public interface UserMigration {
+
+    // Unique name, the migration is started with and checkpointed under it
+    String getName();
+
+    Mono<Void> migrate(TenantKeys keys, MigrationBatch batch);
+
+    // Called once every user of the tenant was migrated, before its segment is checkpointed as done.
+    // Called again when the migration is interrupted in between.
+    default Mono<Void> complete(TenantKeys keys) {
+        return Mono.empty();
+    }
+}
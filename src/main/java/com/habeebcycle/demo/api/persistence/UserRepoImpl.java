@@ -4,133 +4,324 @@ import com.habeebcycle.demo.api.model.User;
 import com.habeebcycle.demo.api.repository.UserRepository;
 import org.reactivestreams.Publisher;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.ConcurrencyFailureException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.core.ReactiveHashOperations;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveSetOperations;
+import org.springframework.data.redis.core.ReactiveZSetOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisElementReader;
+import org.springframework.data.redis.serializer.RedisElementWriter;
+import org.springframework.data.redis.serializer.RedisSerializationContext;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.UUID;
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.LOOKUP;
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.UNIQUENESS;
+import static com.habeebcycle.demo.api.persistence.RequestTrace.Phase.WRITE;
+import static com.habeebcycle.demo.api.persistence.RequestTrace.trace;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Repository
+@ConditionalOnProperty(name = "app.repository.mode", havingValue = "reactive", matchIfMissing = true)
 public class UserRepoImpl implements UserRepository {
 
-    private final static String KEY = "USERS";
+    // Users hash of the default tenant, the keys of every tenant are in TenantKeys
+    final static String KEY = "USERS";
+
+    // Returned by the reservation script while the first request with the same key is still running, or
+    // when the user it created is gone. Stored users are JSON or compressed, so they can never be equal to them.
+    final static String IN_PROGRESS = "IN_PROGRESS";
+    final static String GONE = "GONE";
+    private final static User IN_PROGRESS_USER = new User();
+    private final static User GONE_USER = new User();
+
+    // Users read per HSCAN call when iterating over all users, each call is one round trip
+    final static ScanOptions SCAN_OPTIONS = ScanOptions.scanOptions().count(100).build();
+
+    final static RedisScript<User> FIND_USER_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/find_user.lua"), User.class);
+    final static RedisScript<String> FIND_VERSION_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/find_version.lua"), String.class);
+    @SuppressWarnings("rawtypes")
+    final static RedisScript<List> EVICT_EXPIRED_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/evict_expired_users.lua"), List.class);
+    final static RedisScript<User> RESERVE_IDEMPOTENCY_KEY_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/reserve_idempotency_key.lua"), User.class);
+    final static RedisScript<Long> SETTLE_IDEMPOTENCY_KEY_SCRIPT =
+            RedisScript.of(new ClassPathResource("scripts/settle_idempotency_key.lua"), Long.class);
 
     private final ReactiveRedisOperations<String, User> redisOperations;
     private final ReactiveHashOperations<String, String, User> hashOperations;
+    private final ReactiveZSetOperations<String, String> expiryOperations;
+    private final ReactiveSetOperations<String, String> tenantOperations;
+    private final ReactiveHashOperations<String, String, String> claimOperations;
+    private final RedisElementWriter<String> argsWriter = RedisElementWriter.from(RedisSerializer.string());
+    private final RedisElementWriter<byte[]> bytesWriter = RedisElementWriter.from(RedisSerializer.byteArray());
+    private final RedisElementWriter<User> userWriter;
+    private final RedisElementReader<User> userReader;
+    private final RedisElementReader<User> reservationReader;
+    private final UserChangeLog changeLog;
+    private final UserBloomFilter bloomFilter;
+    private final TenantQuota quota;
+    private final IdGenerator idGenerator;
+    private final Duration idleTtl;
+    private final Duration idempotencyTtl;
+    private final Duration inProgressTtl;
 
     @Autowired
-    public UserRepoImpl(ReactiveRedisOperations<String, User> redisOperations) {
+    public UserRepoImpl(ReactiveRedisOperations<String, User> redisOperations,
+                        UserChangeLog changeLog,
+                        UserBloomFilter bloomFilter,
+                        TenantQuota quota,
+                        IdGenerator idGenerator,
+                        @Value("${app.user-expiry.idle-ttl:0s}") Duration idleTtl,
+                        @Value("${app.idempotency.ttl:24h}") Duration idempotencyTtl,
+                        @Value("${app.idempotency.in-progress-ttl:30s}") Duration inProgressTtl) {
         this.redisOperations = redisOperations;
         this.hashOperations = redisOperations.opsForHash();
+        this.expiryOperations = redisOperations.opsForZSet(RedisSerializationContext.string());
+        this.tenantOperations = redisOperations.opsForSet(RedisSerializationContext.string());
+        this.claimOperations = redisOperations.opsForHash(RedisSerializationContext.string());
+        this.userWriter = redisOperations.getSerializationContext().<User>getHashValueSerializationPair().getWriter();
+        this.userReader = redisOperations.getSerializationContext().<User>getHashValueSerializationPair().getReader();
+        this.reservationReader = buffer -> isMarker(buffer, IN_PROGRESS) ? IN_PROGRESS_USER
+                : isMarker(buffer, GONE) ? GONE_USER : userReader.read(buffer);
+        this.changeLog = changeLog;
+        this.bloomFilter = bloomFilter;
+        this.quota = quota;
+        this.idGenerator = idGenerator;
+        this.idleTtl = idleTtl;
+        this.idempotencyTtl = idempotencyTtl;
+        this.inProgressTtl = inProgressTtl;
     }
 
     @Override
     public Mono<User> findById(String id) {
-        return hashOperations.get(KEY, id);
+        return TenantKeys.current().flatMap(keys -> findById(keys, id));
+    }
+
+    @Override
+    public Mono<Integer> findVersionById(String id) {
+        return TenantKeys.current().flatMap(keys -> trace(LOOKUP, "EVALSHA find_version", keys.getVersions(),
+                redisOperations.execute(FIND_VERSION_SCRIPT,
+                        Arrays.asList(keys.getVersions(), keys.getExpiry(), keys.getFixedExpiry()),
+                        Arrays.asList(id, String.valueOf(System.currentTimeMillis()), String.valueOf(idleTtl.toMillis())),
+                        argsWriter, RedisElementReader.from(RedisSerializer.string()))
+                        .next()))
+                .map(Integer::valueOf);
     }
 
     @Override
     public Flux<User> findAll() {
-        return hashOperations.values(KEY);
+        // Cursor driven, the next batch is only read on demand. A user may be returned twice when the hash
+        // is resized during the scan, but every user stored for the whole scan is returned. Users already
+        // expired when the scan starts are left out.
+        return TenantKeys.current().flatMapMany(keys -> expiredIds(keys)
+                .flatMapMany(expired -> trace(LOOKUP, "HSCAN", keys.getUsers(),
+                        hashOperations.scan(keys.getUsers(), SCAN_OPTIONS))
+                        .filter(entry -> !expired.contains(entry.getKey()))))
+                .map(Map.Entry::getValue);
     }
 
     @Override
     public Mono<User> save(User user) {
+        return save(user, null);
+    }
+
+    @Override
+    public Mono<User> save(User user, Duration ttl) {
         if(user.getUsername().isEmpty() || user.getEmail().isEmpty())
             return Mono.error(new IllegalArgumentException("Cannot be saved: username and email are required, but one or both is empty."))
                     .thenReturn(user);
 
+        return TenantKeys.current().flatMap(keys -> saveUser(keys, user, ttl));
+    }
+
+    private Mono<User> saveUser(TenantKeys keys, User user, Duration ttl) {
         if (user.getId() == null || user.getId().isEmpty()) {
-            String userId = UUID.randomUUID().toString().replaceAll("-", "");
-            user.setId(userId);
-            user.setVersion(0);
-
-            return Mono.defer(() -> addOrUpdateUser(user, existsByUsername(user.getUsername())
-                    .mergeWith(existsByEmail(user.getEmail()))
-                    .any(b -> b)));
-        } else {
-            return findById(user.getId())
-                    .flatMap(u -> {
-                        if (u.getVersion() != user.getVersion()) {
-                            return Mono.error(
-                                    new OptimisticLockingFailureException(
-                                            "This record has already been updated earlier by another object."));
-                        } else {
-                            user.setVersion(user.getVersion() + 1);
-
-                            return Mono.defer(() -> {
-                                Mono<Boolean> exists = Mono.just(false);
-
-                                if (!u.getUsername().equals(user.getUsername())) {
-                                    exists = existsByUsername(user.getUsername());
-                                }
-                                if (!u.getEmail().equals(user.getEmail())) {
-                                    exists = existsByEmail(user.getEmail());
-                                }
-
-                                return addOrUpdateUser(user, exists);
-                            });
-                        }
-                    })
-                    .switchIfEmpty(Mono.defer(() -> addOrUpdateUser(user, existsByUsername(user.getUsername())
-                            .mergeWith(existsByEmail(user.getEmail()))
-                            .any(b -> b))));
+            return createUser(keys, user, ttl);
+        }
+        // The stored version and the uniqueness check do not depend on each other, both go out together
+        return Mono.zip(findById(keys, user.getId()).map(Optional::of).defaultIfEmpty(Optional.empty()),
+                isTakenByOtherUser(keys, user))
+                .flatMap(result -> {
+                    Optional<User> stored = result.getT1();
+                    if (stored.isPresent() && stored.get().getVersion() != user.getVersion()) {
+                        return Mono.error(
+                                new OptimisticLockingFailureException(
+                                        "This record has already been updated earlier by another object."));
+                    }
+                    if (stored.isPresent()) {
+                        user.setVersion(user.getVersion() + 1);
+                    }
+                    return addOrUpdateUser(keys, user, stored.isPresent(), result.getT2(), ttl);
+                });
+    }
+
+    @Override
+    public Mono<User> create(User user, Duration ttl, String idempotencyKey) {
+        if (idempotencyKey == null || idempotencyKey.isEmpty()) {
+            return save(user, ttl);
         }
+        if(user.getUsername().isEmpty() || user.getEmail().isEmpty())
+            return Mono.error(new IllegalArgumentException("Cannot be saved: username and email are required, but one or both is empty."));
+
+        return TenantKeys.current().flatMap(keys -> create(keys, user, ttl, idempotencyKey));
+    }
+
+    private Mono<User> create(TenantKeys keys, User user, Duration ttl, String idempotencyKey) {
+        // Reserve the key for the id of the new user, or get back the user created by an earlier attempt
+        String key = keys.getIdempotencyPrefix() + idempotencyKey;
+        String userId = idGenerator.nextId();
+
+        return trace(WRITE, "EVALSHA reserve_idempotency_key", key,
+                redisOperations.execute(RESERVE_IDEMPOTENCY_KEY_SCRIPT, Arrays.asList(key, keys.getUsers()),
+                        Arrays.asList(userId, String.valueOf(inProgressTtl.toMillis()), IN_PROGRESS, GONE),
+                        argsWriter, reservationReader)
+                        .next())
+                .flatMap(u -> replay(u, idempotencyKey))
+                .switchIfEmpty(Mono.defer(() -> {
+                    user.setId(userId);
+                    return createUser(keys, user, ttl)
+                            // Keep the id for the full TTL, or release the key so a corrected request can use it again
+                            .flatMap(created -> settle(key, userId, userId).thenReturn(created))
+                            .onErrorResume(e -> settle(key, userId, "").then(Mono.error(e)));
+                }));
+    }
+
+    private Mono<Long> settle(String key, String userId, String createdId) {
+        return trace(WRITE, "EVALSHA settle_idempotency_key", key,
+                redisOperations.execute(SETTLE_IDEMPOTENCY_KEY_SCRIPT, Collections.singletonList(key),
+                        Arrays.asList(IN_PROGRESS + ":" + userId, createdId, String.valueOf(idempotencyTtl.toMillis())),
+                        argsWriter, RedisElementReader.from(new GenericToStringSerializer<>(Long.class)))
+                        .next());
+    }
+
+    // The outcome of the first request with the key: its user, still running, or created and removed since
+    private static Mono<User> replay(User user, String idempotencyKey) {
+        if (user == IN_PROGRESS_USER) {
+            return Mono.error(new ConcurrencyFailureException("A request with the Idempotency-Key "
+                    + idempotencyKey + " is still being processed."));
+        }
+        if (user == GONE_USER) {
+            return Mono.error(new IdempotentUserGoneException("The user created by the request with the "
+                    + "Idempotency-Key " + idempotencyKey + " no longer exists."));
+        }
+        return Mono.just(user);
     }
 
     @Override
     public Mono<User> findByUsername(String username) {
-        return hashOperations.values(KEY)
+        return findAll()
                 .filter(u -> u.getUsername().equals(username))
+                .distinct(User::getId)
                 .singleOrEmpty();
     }
 
     @Override
     public Mono<User> findByEmail(String email) {
-        return hashOperations.values(KEY)
+        return findAll()
                 .filter(u -> u.getEmail().equals(email))
+                .distinct(User::getId)
                 .singleOrEmpty();
     }
 
     @Override
     public Mono<Boolean> existsById(String id) {
-        return hashOperations.hasKey(KEY, id);
+        return TenantKeys.current().flatMap(keys -> trace(LOOKUP, "HEXISTS", keys.getUsers(),
+                hashOperations.hasKey(keys.getUsers(), id)));
     }
 
     @Override
     public Mono<Boolean> existsByUsername(String username) {
-        return findByUsername(username)
-                .hasElement();
+        // Definite negatives of the Bloom filter need no scan
+        return TenantKeys.current().flatMap(keys -> trace(UNIQUENESS, "BLOOM username", keys.getBloom(),
+                bloomFilter.mightContainUsername(keys, username)))
+                .flatMap(mightExist -> !mightExist ? Mono.just(false) : findByUsername(username)
+                        .hasElement()
+                        .doOnNext(bloomFilter::recordLookup));
     }
 
     @Override
     public Mono<Boolean> existsByEmail(String email) {
-        return findByEmail(email)
-                .hasElement();
+        return TenantKeys.current().flatMap(keys -> trace(UNIQUENESS, "BLOOM email", keys.getBloom(),
+                bloomFilter.mightContainEmail(keys, email)))
+                .flatMap(mightExist -> !mightExist ? Mono.just(false) : findByEmail(email)
+                        .hasElement()
+                        .doOnNext(bloomFilter::recordLookup));
     }
 
     @Override
     public Mono<Long> count() {
-        return hashOperations.values(KEY).count();
+        return TenantKeys.current().flatMap(keys -> trace(LOOKUP, "HLEN", keys.getUsers(),
+                hashOperations.size(keys.getUsers())));
     }
 
     @Override
     public Mono<Void> deleteAll() {
-        return hashOperations.delete(KEY).then();
+        // Only the keys of the tenant, other tenants are not affected. The markers go along, so no index is
+        // trusted before it is built again
+        return TenantKeys.current().flatMap(keys -> trace(WRITE, "UNLINK", keys.getUsers(),
+                RedisUnlink.unlink(redisOperations, keys.getUsers(), keys.getExpiry(), keys.getFixedExpiry(),
+                        keys.getVersions(), keys.getBytes(), keys.getBytesCounted(), keys.getUnique(), keys.getUniqueReady()))
+                .then(bloomFilter.clear(keys))
+                .then(keys.isDefault() ? changeLog.reset() : Mono.empty()));
     }
 
     @Override
     public Mono<Void> delete(User user) {
-        return hashOperations.remove(KEY, user.getId()).then();
+        return deleteById(user.getId());
     }
 
     @Override
     public Mono<Void> deleteById(String id) {
-        return hashOperations.remove(KEY, id).then();
+        return TenantKeys.current().flatMap(keys -> trace(WRITE, "EVALSHA delete_user", keys.getUsers(),
+                redisOperations.execute(TenantQuota.DELETE_USER_SCRIPT, quota.deleteKeys(keys), Collections.singletonList(id))
+                        .then())
+                .then(recordChanges(keys, Collections.singletonList(id))));
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Mono<Long> evictExpired(int batchSize) {
+        return TenantKeys.current().flatMap(keys -> {
+            // Elements of the returned list are read with the result reader
+            Flux<List<String>> evicted = redisOperations.execute((RedisScript) EVICT_EXPIRED_SCRIPT,
+                    Arrays.asList(keys.getUsers(), keys.getExpiry(), keys.getVersions(), keys.getBytes(), keys.getUnique(),
+                            keys.getFixedExpiry(), keys.getBytesCounted()),
+                    Arrays.asList(String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize)),
+                    argsWriter, (RedisElementReader) RedisElementReader.from(RedisSerializer.string()));
+            return evicted.next()
+                    .flatMap(ids -> recordChanges(keys, ids).thenReturn((long) ids.size()));
+        }).defaultIfEmpty(0L);
+    }
+
+    @Override
+    public Flux<String> findTenants() {
+        return tenantOperations.members(TenantKeys.TENANTS_KEY);
     }
 
 
@@ -158,7 +349,16 @@ public class UserRepoImpl implements UserRepository {
 
     @Override
     public Flux<User> findAllById(Iterable<String> iterable) {
-        return null;
+        List<String> ids = new ArrayList<>();
+        iterable.forEach(ids::add);
+        if (ids.isEmpty()) {
+            return Flux.empty();
+        }
+        // Missing users come back as null entries, the ones past their expiry are skipped like findAll does
+        return TenantKeys.current().flatMap(keys -> Mono.zip(expiredIds(keys),
+                trace(LOOKUP, "HMGET", keys.getUsers(), hashOperations.multiGet(keys.getUsers(), ids))))
+                .flatMapMany(found -> Flux.fromStream(found.getT2().stream()
+                        .filter(user -> user != null && !found.getT1().contains(user.getId()))));
     }
 
     @Override
@@ -182,18 +382,117 @@ public class UserRepoImpl implements UserRepository {
     }
 
 
-    // private utility method to add new user if not exist with username and email
-    private Mono<User> addOrUpdateUser(User user, Mono<Boolean> exists) {
-        return exists.flatMap(exist -> {
-            if (exist) {
-                return Mono.error(new DuplicateKeyException("Duplicate key, Username: " +
-                        user.getUsername() + " or Email: " + user.getEmail() + " exists."));
-            } else {
-                return hashOperations.put(KEY, user.getId(), user)
-                        .map(isSaved -> user);
-            }
-        })
-        .thenReturn(user);
+    // private utility method to find a user, skipping users past their expiry that the sweeper has not
+    // removed yet and refreshing the idle TTL
+    private Mono<User> findById(TenantKeys keys, String id) {
+        return trace(LOOKUP, "EVALSHA find_user", keys.getUsers(),
+                redisOperations.execute(FIND_USER_SCRIPT, Arrays.asList(keys.getUsers(), keys.getExpiry(), keys.getFixedExpiry()),
+                        Arrays.asList(id, String.valueOf(System.currentTimeMillis()), String.valueOf(idleTtl.toMillis())),
+                        argsWriter, userReader)
+                        .next());
+    }
+
+    // private utility method to create a new user, generating its id if it has none yet
+    private Mono<User> createUser(TenantKeys keys, User user, Duration ttl) {
+        if (user.getId() == null || user.getId().isEmpty()) {
+            user.setId(idGenerator.nextId());
+        }
+        user.setVersion(0);
+
+        return isTakenByOtherUser(keys, user)
+                .flatMap(exists -> addOrUpdateUser(keys, user, false, exists, ttl));
+    }
+
+    // private utility method to check username and email against all other users in a single scan,
+    // skipped when the user already holds both claims, as an update keeping them does, or when the Bloom
+    // filter rules both out. Expired users no longer hold theirs. Once every user holds its claims the save
+    // script checks them on its own, the scan is only left for users stored before.
+    private Mono<Boolean> isTakenByOtherUser(TenantKeys keys, User user) {
+        // Both lookups go out together
+        return Mono.zip(trace(UNIQUENESS, "HMGET claims", keys.getUnique(),
+                        claimOperations.multiGet(keys.getUnique(), TenantQuota.claimFields(user))),
+                trace(UNIQUENESS, "BLOOM username email", keys.getBloom(),
+                        bloomFilter.mightContain(keys, user.getUsername(), user.getEmail())))
+                .flatMap(result -> result.getT1().stream().allMatch(user.getId()::equals) || !result.getT2()
+                        ? Mono.just(false)
+                        : trace(UNIQUENESS, "EXISTS", keys.getUniqueReady(), redisOperations.hasKey(keys.getUniqueReady()))
+                        .flatMap(indexed -> {
+                            if (!indexed) {
+                                return scanForOtherUser(keys, user);
+                            }
+                            bloomFilter.recordLookup(result.getT1().stream().anyMatch(Objects::nonNull));
+                            return Mono.just(false);
+                        }));
+    }
+
+    private Mono<Boolean> scanForOtherUser(TenantKeys keys, User user) {
+        return expiredIds(keys)
+                .flatMap(expired -> trace(UNIQUENESS, "HVALS", keys.getUsers(), hashOperations.values(keys.getUsers()))
+                        .filter(other -> !expired.contains(other.getId()))
+                        .filter(other -> other.getUsername().equals(user.getUsername())
+                                || other.getEmail().equals(user.getEmail()))
+                        .collectList()
+                        .map(matches -> {
+                            bloomFilter.recordLookup(!matches.isEmpty());
+                            return matches.stream().anyMatch(other -> !other.getId().equals(user.getId()));
+                        }));
+    }
+
+    // private utility method to read the ids of the users past their expiry that the sweeper has not removed
+    // yet, it keeps them few
+    private Mono<Set<String>> expiredIds(TenantKeys keys) {
+        return trace(LOOKUP, "ZRANGEBYSCORE", keys.getExpiry(),
+                expiryOperations.rangeByScore(keys.getExpiry(),
+                        Range.closed(Double.NEGATIVE_INFINITY, (double) System.currentTimeMillis()))
+                        .collect(Collectors.toSet()));
+    }
+
+    private static boolean isMarker(ByteBuffer buffer, String marker) {
+        return buffer.remaining() == marker.length()
+                && StandardCharsets.UTF_8.decode(buffer.duplicate()).toString().equals(marker);
+    }
+
+    // private utility method to add new user if not exist with username and email. The script checks both
+    // again, and the version of an update, against saves racing this one
+    private Mono<User> addOrUpdateUser(TenantKeys keys, User user, boolean update, boolean exists, Duration ttl) {
+        if (exists) {
+            return Mono.error(new DuplicateKeyException("Duplicate key, Username: " +
+                    user.getUsername() + " or Email: " + user.getEmail() + " exists."));
+        }
+        // The user, its version, its expiry and its Bloom filter bits are stored within the tenant quotas by
+        // one script, so a save it refuses writes none of them. The tenant is listed by a command of its own
+        // pipelined with it, the set is on another slot of a cluster than the keys of the script. The change
+        // is logged once both succeeded.
+        return Mono.when(register(keys), store(keys, user, update, ttl))
+                .then(Mono.fromRunnable(() -> bloomFilter.saved(keys, user)))
+                .then(recordChanges(keys, Collections.singletonList(user.getId())))
+                .thenReturn(user);
+    }
+
+    private Mono<Void> store(TenantKeys keys, User user, boolean update, Duration ttl) {
+        List<String> saveArgs = quota.saveArgs(keys, user, update, ttl, idleTtl, bloomFilter.saveOffsets(keys, user));
+        List<byte[]> args = new ArrayList<>(1 + saveArgs.size());
+        ByteBuffer value = userWriter.write(user);
+        byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        args.add(bytes);
+        saveArgs.forEach(arg -> args.add(arg.getBytes(StandardCharsets.UTF_8)));
+        return trace(WRITE, "EVALSHA save_user", keys.getUsers(),
+                redisOperations.execute(TenantQuota.SAVE_USER_SCRIPT, quota.saveKeys(keys), args, bytesWriter,
+                        RedisElementReader.from(new GenericToStringSerializer<>(Long.class)))
+                        .next())
+                .doOnNext(result -> quota.checkSaved(keys, user, result))
+                .then();
+    }
+
+    private Mono<Long> register(TenantKeys keys) {
+        return keys.isDefault() ? Mono.empty() : trace(WRITE, "SADD", TenantKeys.TENANTS_KEY,
+                tenantOperations.add(TenantKeys.TENANTS_KEY, keys.getTenant()));
+    }
+
+    // private utility method to log changes, the snapshot only covers the default tenant
+    private Mono<Void> recordChanges(TenantKeys keys, List<String> ids) {
+        return keys.isDefault() ? trace(WRITE, "EVALSHA record_changes", KEY + ":CHANGES", changeLog.record(ids)) : Mono.empty();
     }
     /*
     private Mono<User> addNewUser(User user) {
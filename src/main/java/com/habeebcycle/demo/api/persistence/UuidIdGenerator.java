@@ -0,0 +1,33 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+
+/**
+ * Random UUIDs without dashes, the ids used before time-ordered ones. Every id draws from the shared
+ * SecureRandom.
+ */
+@Component
+@ConditionalOnProperty(name = "app.id.generator", havingValue = "uuid")
+public class UuidIdGenerator implements IdGenerator {
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Override
+    public String nextId() {
+        UUID uuid = UUID.randomUUID();
+        char[] chars = new char[32];
+        hex(uuid.getMostSignificantBits(), chars, 0);
+        hex(uuid.getLeastSignificantBits(), chars, 16);
+        return new String(chars);
+    }
+
+    private static void hex(long value, char[] chars, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            chars[offset + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+}
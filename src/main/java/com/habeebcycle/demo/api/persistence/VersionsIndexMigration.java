@@ -0,0 +1,36 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Adds the users missing from the versions hash, read by conditional requests without loading the user.
+ * Versions already there are kept, they are at least as recent as the ones read by the migration.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+public class VersionsIndexMigration implements UserMigration {
+
+    private final ReactiveStringRedisTemplate redisTemplate;
+
+    public VersionsIndexMigration(ReactiveStringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @Override
+    public String getName() {
+        return "versions-index";
+    }
+
+    @Override
+    public Mono<Void> migrate(TenantKeys keys, MigrationBatch batch) {
+        // Pipelined, every HSETNX is written without waiting for the previous one
+        return Flux.fromIterable(batch.getUsers())
+                .flatMap(user -> redisTemplate.opsForHash()
+                        .putIfAbsent(keys.getVersions(), user.getId(), String.valueOf(user.getVersion())), batch.size())
+                .then();
+    }
+}
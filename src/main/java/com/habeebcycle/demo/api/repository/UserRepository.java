@@ -2,12 +2,26 @@ package com.habeebcycle.demo.api.repository;
 
 import com.habeebcycle.demo.api.model.User;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+
 public interface UserRepository extends ReactiveCrudRepository<User, String> {
 
     Mono<User> findByUsername(String username);
     Mono<User> findByEmail(String name);
     Mono<Boolean> existsByUsername(String username);
     Mono<Boolean> existsByEmail(String email);
+
+    // Version of the user, read without loading the user itself
+    Mono<Integer> findVersionById(String id);
+    // Saves the user and removes it once ttl has elapsed without it being refreshed (null keeps the default)
+    Mono<User> save(User user, Duration ttl);
+    // Creates the user once per idempotency key; retries with the same key get the user created first
+    Mono<User> create(User user, Duration ttl, String idempotencyKey);
+    // Removes at most batchSize expired users, returns how many were removed
+    Mono<Long> evictExpired(int batchSize);
+    // Tenants other than the default one that stored users, for background jobs
+    Flux<String> findTenants();
 }
@@ -0,0 +1,71 @@
+package com.habeebcycle.demo.api.service;
+
+import com.habeebcycle.demo.api.filter.TenantFilter;
+import com.habeebcycle.demo.api.persistence.TenantKeys;
+import com.habeebcycle.demo.api.persistence.UserBackup;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+
+/**
+ * Backups of the users at /actuator/backups. POST /actuator/backups/{name} with an operation of export
+ * or restore, and optionally a tenant, writes the users of the tenant to the backup or replaces them with
+ * the ones of the backup. The tenant must be one TenantFilter serves.
+ *
+ * It replaces stored users, so it is not exposed with the other endpoints. Expose it on a management port
+ * that only operators reach, see management in application.yaml.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+@Endpoint(id = "backups")
+public class BackupEndpoint {
+
+    private final UserBackup backup;
+    private final HotUserCache hotUserCache;
+    private final TenantFilter tenantFilter;
+
+    public BackupEndpoint(UserBackup backup, HotUserCache hotUserCache, TenantFilter tenantFilter) {
+        this.backup = backup;
+        this.hotUserCache = hotUserCache;
+        this.tenantFilter = tenantFilter;
+    }
+
+    @ReadOperation
+    public List<UserBackup.Backup> backups() throws IOException {
+        return backup.list();
+    }
+
+    @WriteOperation
+    public Mono<UserBackup.Result> run(@Selector String name, String operation, @Nullable String tenant) {
+        if (tenant != null && !tenantFilter.isAllowed(tenant)) {
+            return Mono.error(new InvalidEndpointRequestException("Unknown tenant: " + tenant, "unknown tenant"));
+        }
+        Mono<UserBackup.Result> result;
+        if ("export".equals(operation)) {
+            result = backup.export(name);
+        } else if ("restore".equals(operation)) {
+            // Hot users cached before the restore are outdated
+            result = backup.restore(name).doOnNext(restored -> hotUserCache.invalidateAll());
+        } else {
+            return Mono.error(new InvalidEndpointRequestException("Unknown operation: " + operation,
+                    "operation must be export or restore"));
+        }
+        return result
+                .onErrorMap(IllegalArgumentException.class, e -> new InvalidEndpointRequestException(e.getMessage(), e.getMessage()))
+                .onErrorMap(NoSuchFileException.class, e -> new InvalidEndpointRequestException("No backup named " + name,
+                        "no backup named " + name))
+                .onErrorMap(UncheckedIOException.class, UncheckedIOException::getCause)
+                .contextWrite(TenantKeys.withTenant(tenant != null ? tenant : TenantKeys.DEFAULT_TENANT));
+    }
+}
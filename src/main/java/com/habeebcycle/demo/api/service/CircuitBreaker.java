@@ -0,0 +1,252 @@
+package com.habeebcycle.demo.api.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Operators;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Fails calls to Redis fast once too many of them failed.
+ *
+ * Closed, the outcome of the last windowSize calls is kept and the breaker opens when at least
+ * minimumCalls of them completed and the failure rate reaches the threshold. Open, calls are rejected
+ * without reaching Redis for openDuration, then up to halfOpenCalls trial calls go through: the breaker
+ * closes once all of them succeed and opens again on the first failure.
+ *
+ * Only timeouts and connection or server errors count as failures, not business errors like duplicate keys.
+ */
+@Component
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {CLOSED, HALF_OPEN, OPEN}
+
+    private final boolean enabled;
+    private final double failureRateThreshold;
+    private final int minimumCalls;
+    private final long openDurationNanos;
+    private final int halfOpenCalls;
+
+    // Outcomes of the last calls while closed, true for a failure
+    private final boolean[] window;
+    private int windowPosition;
+    private int windowCalls;
+    private int windowFailures;
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    private final Counter successes;
+    private final Counter failures;
+    private final Counter rejections;
+
+    public CircuitBreaker(MeterRegistry meterRegistry,
+                          @Value("${app.circuit-breaker.enabled:true}") boolean enabled,
+                          @Value("${app.circuit-breaker.window-size:100}") int windowSize,
+                          @Value("${app.circuit-breaker.minimum-calls:20}") int minimumCalls,
+                          @Value("${app.circuit-breaker.failure-rate-threshold:0.5}") double failureRateThreshold,
+                          @Value("${app.circuit-breaker.open-duration:5s}") Duration openDuration,
+                          @Value("${app.circuit-breaker.half-open-calls:5}") int halfOpenCalls) {
+        this.enabled = enabled;
+        this.window = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationNanos = openDuration.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+        this.successes = calls(meterRegistry, "success");
+        this.failures = calls(meterRegistry, "failure");
+        this.rejections = calls(meterRegistry, "rejected");
+        Gauge.builder("redis.circuit.breaker.state", this, breaker -> breaker.getState().ordinal())
+                .description("0 closed, 1 half open, 2 open")
+                .register(meterRegistry);
+    }
+
+    private static Counter calls(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("redis.circuit.breaker.calls")
+                .description("Redis calls by outcome, rejected calls did not reach Redis")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    public <T> Mono<T> protect(Mono<T> call, Duration timeout) {
+        return Mono.defer(() -> {
+            if (!tryAcquire()) {
+                return Mono.error(rejected());
+            }
+            return call.timeout(timeout)
+                    .doOnSuccess(value -> onSuccess())
+                    .doOnError(this::onError)
+                    .doOnCancel(this::onCancel)
+                    .onErrorMap(TimeoutException.class, e -> timedOut(timeout, e));
+        });
+    }
+
+    // The timeout applies to the first value and to the gap between two values, only counting the time
+    // the subscriber waits for them. A subscriber that stops requesting, like a slow client, is not a failure.
+    public <T> Flux<T> protect(Flux<T> call, Duration timeout) {
+        return Flux.defer(() -> {
+            if (!tryAcquire()) {
+                return Flux.error(rejected());
+            }
+            Demand demand = new Demand();
+            return call.doOnNext(value -> demand.delivered())
+                    .timeout(demand.timeout(timeout), value -> demand.timeout(timeout))
+                    .doOnRequest(demand::requested)
+                    .doOnComplete(this::onSuccess)
+                    .doOnError(this::onError)
+                    .doOnCancel(this::onCancel)
+                    .onErrorMap(TimeoutException.class, e -> timedOut(timeout, e));
+        });
+    }
+
+    public State getState() {
+        if (state == State.OPEN) {
+            synchronized (this) {
+                return state == State.OPEN && System.nanoTime() - openedAt >= openDurationNanos ? State.HALF_OPEN : state;
+            }
+        }
+        return state;
+    }
+
+    synchronized boolean tryAcquire() {
+        if (!enabled || state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDurationNanos) {
+                rejections.increment();
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (halfOpenPermits >= halfOpenCalls) {
+            rejections.increment();
+            return false;
+        }
+        halfOpenPermits++;
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        successes.increment();
+        if (!enabled) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            if (++halfOpenSuccesses >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure() {
+        failures.increment();
+        if (!enabled) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (windowCalls >= minimumCalls && windowFailures >= failureRateThreshold * windowCalls) {
+                transition(State.OPEN);
+            }
+        }
+    }
+
+    private void onError(Throwable e) {
+        if (isFailure(e)) {
+            onFailure();
+        } else {
+            onSuccess(); // Redis answered
+        }
+    }
+
+    // A trial call given up by its subscriber does not tell anything, its permit is given back
+    private synchronized void onCancel() {
+        if (state == State.HALF_OPEN && halfOpenPermits > halfOpenSuccesses) {
+            halfOpenPermits--;
+        }
+    }
+
+    private void record(boolean failure) {
+        if (windowCalls == window.length) {
+            if (window[windowPosition]) windowFailures--;
+        } else {
+            windowCalls++;
+        }
+        window[windowPosition] = failure;
+        if (failure) windowFailures++;
+        windowPosition = (windowPosition + 1) % window.length;
+    }
+
+    private void transition(State next) {
+        LOG.info("Redis circuit breaker {} -> {}", state, next);
+        state = next;
+        openedAt = System.nanoTime();
+        halfOpenPermits = 0;
+        halfOpenSuccesses = 0;
+        windowPosition = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+
+    // Values requested from a stream and not delivered yet, its timeout only runs while there are some
+    private static final class Demand {
+
+        private long outstanding;
+        private Sinks.Empty<Void> requested = Sinks.empty();
+
+        synchronized void requested(long n) {
+            outstanding = Operators.addCap(outstanding, n);
+            requested.tryEmitEmpty();
+        }
+
+        synchronized void delivered() {
+            if (outstanding != Long.MAX_VALUE && --outstanding == 0) {
+                requested = Sinks.empty();
+            }
+        }
+
+        private synchronized Mono<Void> awaitRequested() {
+            return requested.asMono();
+        }
+
+        Mono<Long> timeout(Duration timeout) {
+            return Mono.defer(this::awaitRequested).then(Mono.delay(timeout));
+        }
+    }
+
+    private static boolean isFailure(Throwable e) {
+        return e instanceof TimeoutException
+                || e instanceof DataAccessResourceFailureException
+                || e instanceof QueryTimeoutException
+                || e instanceof RedisSystemException;
+    }
+
+    private static RedisUnavailableException rejected() {
+        return new RedisUnavailableException("Redis is unavailable, the circuit breaker is open.");
+    }
+
+    private static RedisUnavailableException timedOut(Duration timeout, TimeoutException e) {
+        return new RedisUnavailableException("Redis did not answer within " + timeout.toMillis() + " ms.", e);
+    }
+}
@@ -0,0 +1,109 @@
+package com.habeebcycle.demo.api.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate top-K of the most frequent keys in a stream, in constant memory.
+ *
+ * Every key is counted in a count-min sketch, whose estimates can only be too high and are within a few
+ * percent of the total count. The K keys with the highest estimates are kept aside; a key only replaces
+ * the lowest of them when its estimate is higher. Counts are halved by decay(), so the top follows the
+ * recent traffic.
+ */
+class HeavyHitters {
+
+    private final int width;
+    private final int depth;
+    private final int k;
+    private final AtomicLongArray counters;
+    private final Map<String, Long> top;
+
+    // Lowest estimate in a full top, keys below it are not compared with the top
+    private volatile long floor;
+
+    HeavyHitters(int width, int depth, int k) {
+        this.width = width;
+        this.depth = depth;
+        this.k = k;
+        this.counters = new AtomicLongArray(width * depth);
+        this.top = new ConcurrentHashMap<>(k * 2);
+    }
+
+    // Counts one occurrence of the key and returns its estimated count
+    long add(String key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int column = Math.floorMod(h1 + row * h2, width);
+            estimate = Math.min(estimate, counters.incrementAndGet(row * width + column));
+        }
+
+        if (top.replace(key, estimate) == null && (top.size() < k || estimate > floor)) {
+            promote(key, estimate);
+        }
+        return estimate;
+    }
+
+    // Estimated count of a key of the top, 0 for other keys
+    long estimate(String key) {
+        return top.getOrDefault(key, 0L);
+    }
+
+    List<Map.Entry<String, Long>> top() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(top.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+        return entries;
+    }
+
+    // Halves every count, keys that are not accessed anymore leave the top
+    synchronized void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            long count = counters.get(i);
+            counters.addAndGet(i, -(count - count / 2));
+        }
+        top.replaceAll((key, count) -> count / 2);
+        top.values().removeIf(count -> count == 0);
+        floor = top.size() < k ? 0 : minimum().getValue();
+    }
+
+    private synchronized void promote(String key, long estimate) {
+        if (top.size() >= k) {
+            Map.Entry<String, Long> lowest = minimum();
+            if (lowest.getValue() >= estimate) {
+                return;
+            }
+            top.remove(lowest.getKey());
+        }
+        top.put(key, estimate);
+        floor = top.size() < k ? 0 : minimum().getValue();
+    }
+
+    private Map.Entry<String, Long> minimum() {
+        return top.entrySet().stream()
+                .min(Map.Entry.comparingByValue())
+                .orElse(null);
+    }
+
+    // 64-bit FNV-1a, then the murmur3 finalizer to spread the bits over both halves
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,26 @@
+package com.habeebcycle.demo.api.service;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Current hot user ids at /actuator/hotkeys, as tracked by the {@link HotUserCache}.
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeysEndpoint {
+
+    private final HotUserCache hotUserCache;
+
+    public HotKeysEndpoint(HotUserCache hotUserCache) {
+        this.hotUserCache = hotUserCache;
+    }
+
+    @ReadOperation
+    public List<HotUserCache.HotKey> hotKeys() {
+        return hotUserCache.getHotKeys();
+    }
+}
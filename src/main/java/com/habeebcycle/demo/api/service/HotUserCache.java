@@ -0,0 +1,206 @@
+package com.habeebcycle.demo.api.service;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.persistence.ReplicaReads;
+import com.habeebcycle.demo.api.persistence.TenantKeys;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Local cache of the few users read most often by id.
+ *
+ * Reads by id are counted by a {@link HeavyHitters} tracker; the users among its top-K read at least
+ * minHits times in the current window are kept for a short ttl, so a celebrity user is read from Redis
+ * once per ttl instead of on every request. Writes through this instance drop the cached user, other
+ * instances see them within the ttl. Reads carrying a consistency token skip the cache.
+ *
+ * Expired copies are kept for staleTtl more, to be served while Redis is unavailable.
+ */
+@Component
+public class HotUserCache {
+
+    private final boolean enabled;
+    private final long minHits;
+    private final Duration window;
+    private final long ttlNanos;
+    private final long staleTtlNanos;
+    private final HeavyHitters heavyHitters;
+    private final Map<String, CachedUser> cache = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+
+    private Disposable decay;
+
+    public HotUserCache(MeterRegistry meterRegistry,
+                        @Value("${app.hot-keys.enabled:true}") boolean enabled,
+                        @Value("${app.hot-keys.top-k:32}") int topK,
+                        @Value("${app.hot-keys.min-hits:100}") long minHits,
+                        @Value("${app.hot-keys.window:10s}") Duration window,
+                        @Value("${app.hot-keys.cache-ttl:1s}") Duration ttl,
+                        @Value("${app.hot-keys.stale-ttl:5m}") Duration staleTtl,
+                        @Value("${app.hot-keys.sketch-width:4096}") int sketchWidth,
+                        @Value("${app.hot-keys.sketch-depth:4}") int sketchDepth) {
+        this.enabled = enabled;
+        this.minHits = minHits;
+        this.window = window;
+        this.ttlNanos = ttl.toNanos();
+        this.staleTtlNanos = staleTtl.toNanos();
+        this.heavyHitters = new HeavyHitters(sketchWidth, sketchDepth, topK);
+        this.hits = lookups(meterRegistry, "hit");
+        this.misses = lookups(meterRegistry, "miss");
+        Gauge.builder("users.hot.cache.size", cache, Map::size)
+                .description("Hot users cached locally")
+                .register(meterRegistry);
+    }
+
+    private static Counter lookups(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("users.hot.cache.lookups")
+                .description("Reads by id of hot users answered from the local cache or not")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            decay = Flux.interval(window, window)
+                    .subscribe(tick -> {
+                        heavyHitters.decay();
+                        long now = System.nanoTime();
+                        cache.values().removeIf(cached -> cached.isExpired(now - staleTtlNanos));
+                    });
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (decay != null) {
+            decay.dispose();
+        }
+    }
+
+    // Counts the read and answers it from the cache for hot users, loads it otherwise
+    public Mono<User> get(String id, Supplier<Mono<User>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        return TenantKeys.current().zipWith(ReplicaReads.hasToken()).flatMap(current -> {
+            String key = key(current.getT1(), id);
+            boolean hot = heavyHitters.add(key) >= minHits && heavyHitters.estimate(key) > 0;
+            if (!hot || current.getT2()) {
+                return loader.get();
+            }
+            CachedUser cached = cache.get(key);
+            if (cached != null && !cached.isExpired(System.nanoTime())) {
+                hits.increment();
+                return Mono.just(copy(cached.user));
+            }
+            misses.increment();
+            return loader.get()
+                    .doOnNext(user -> cache.put(key, new CachedUser(copy(user), System.nanoTime() + ttlNanos)));
+        });
+    }
+
+    // Last copy of a hot user, even expired, empty once it is older than the stale ttl
+    public Mono<User> getStale(String id) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return TenantKeys.current()
+                .flatMap(keys -> Mono.justOrEmpty(cache.get(key(keys, id))))
+                .filter(cached -> !cached.isExpired(System.nanoTime() - staleTtlNanos))
+                .map(cached -> copy(cached.user));
+    }
+
+    public Mono<Void> invalidate(String id) {
+        return TenantKeys.current()
+                .doOnNext(keys -> cache.remove(key(keys, id)))
+                .then();
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    // Tracked ids by estimated reads in the current window, highest first
+    public List<HotKey> getHotKeys() {
+        return heavyHitters.top().stream()
+                .map(entry -> new HotKey(entry.getKey(), entry.getValue(),
+                        entry.getValue() >= minHits, cache.containsKey(entry.getKey())))
+                .collect(Collectors.toList());
+    }
+
+    private static String key(TenantKeys keys, String id) {
+        return keys.getTenant() + ":" + id;
+    }
+
+    // Callers may change the users they get
+    private static User copy(User user) {
+        User copy = new User(user.getUsername(), user.getEmail(), user.getName());
+        copy.setId(user.getId());
+        copy.setVersion(user.getVersion());
+        return copy;
+    }
+
+    private static class CachedUser {
+
+        private final User user;
+        private final long expiresAt;
+
+        CachedUser(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+
+    public static class HotKey {
+
+        private final String key;
+        private final long estimatedReads;
+        private final boolean hot;
+        private final boolean cached;
+
+        HotKey(String key, long estimatedReads, boolean hot, boolean cached) {
+            this.key = key;
+            this.estimatedReads = estimatedReads;
+            this.hot = hot;
+            this.cached = cached;
+        }
+
+        // tenant:userId
+        public String getKey() {
+            return key;
+        }
+
+        public long getEstimatedReads() {
+            return estimatedReads;
+        }
+
+        public boolean isHot() {
+            return hot;
+        }
+
+        public boolean isCached() {
+            return cached;
+        }
+    }
+}
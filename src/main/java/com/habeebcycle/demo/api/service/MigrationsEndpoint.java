@@ -0,0 +1,48 @@
+package com.habeebcycle.demo.api.service;
+
+import com.habeebcycle.demo.api.persistence.MigrationRunner;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Migrations of the stored users at /actuator/migrations, with the progress of the ones run by this
+ * instance. POST /actuator/migrations/{name} starts one in the background.
+ *
+ * Starting one rewrites stored users, so it is not exposed with the other endpoints. Expose it on a
+ * management port that only operators reach, see management in application.yaml.
+ */
+@Component
+@ConditionalOnExpression("'${app.repository.mode:reactive}' != 'in-memory'")
+@Endpoint(id = "migrations")
+public class MigrationsEndpoint {
+
+    private final MigrationRunner migrationRunner;
+
+    public MigrationsEndpoint(MigrationRunner migrationRunner) {
+        this.migrationRunner = migrationRunner;
+    }
+
+    @ReadOperation
+    public Map<String, Object> migrations() {
+        Map<String, Object> migrations = new LinkedHashMap<>();
+        migrations.put("migrations", migrationRunner.getMigrations());
+        migrations.put("progress", migrationRunner.getProgress());
+        return migrations;
+    }
+
+    @WriteOperation
+    public Mono<MigrationRunner.Progress> start(@Selector String name) {
+        return migrationRunner.start(name)
+                .onErrorMap(IllegalArgumentException.class, e -> new InvalidEndpointRequestException(e.getMessage(), e.getMessage()))
+                .onErrorMap(IllegalStateException.class, e -> new InvalidEndpointRequestException(e.getMessage(), e.getMessage()));
+    }
+}
@@ -0,0 +1,20 @@
+package com.habeebcycle.demo.api.service;
+
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Redis did not answer in time, or the circuit breaker does not let calls through.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class RedisUnavailableException extends TransientDataAccessResourceException {
+
+    public RedisUnavailableException(String msg) {
+        super(msg);
+    }
+
+    public RedisUnavailableException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+}
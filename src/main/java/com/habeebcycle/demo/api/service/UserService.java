@@ -1,66 +1,176 @@
 package com.habeebcycle.demo.api.service;
 
-import com.habeebcycle.demo.api.persistence.UserRepoImpl;
 import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.model.UserLookup;
+import com.habeebcycle.demo.api.persistence.ReplicaReads;
+import com.habeebcycle.demo.api.persistence.TenantKeys;
 import com.habeebcycle.demo.api.repository.UserRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 @Service
 public class UserService {
 
     private final UserRepository repository;
-
-    public UserService(UserRepository repository) {
+    private final UserSnapshotCache snapshotCache;
+    private final ReplicaReads replicaReads;
+    private final HotUserCache hotUserCache;
+    private final CircuitBreaker circuitBreaker;
+    private final int lookupChunkSize;
+    private final int lookupConcurrency;
+    private final Duration readTimeout;
+    private final Duration writeTimeout;
+    private final Duration scanTimeout;
+    private final Counter fallbacksServed;
+    private final Counter fallbacksUnavailable;
+
+    public UserService(UserRepository repository, UserSnapshotCache snapshotCache, ReplicaReads replicaReads,
+                       HotUserCache hotUserCache, CircuitBreaker circuitBreaker, MeterRegistry meterRegistry,
+                       @Value("${app.lookup.chunk-size:100}") int lookupChunkSize,
+                       @Value("${app.lookup.concurrency:4}") int lookupConcurrency,
+                       @Value("${app.circuit-breaker.read-timeout:500ms}") Duration readTimeout,
+                       @Value("${app.circuit-breaker.write-timeout:1s}") Duration writeTimeout,
+                       @Value("${app.circuit-breaker.scan-timeout:5s}") Duration scanTimeout) {
         this.repository = repository;
+        this.snapshotCache = snapshotCache;
+        this.replicaReads = replicaReads;
+        this.hotUserCache = hotUserCache;
+        this.circuitBreaker = circuitBreaker;
+        this.lookupChunkSize = lookupChunkSize;
+        this.lookupConcurrency = lookupConcurrency;
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        this.scanTimeout = scanTimeout;
+        this.fallbacksServed = fallbacks(meterRegistry, "served");
+        this.fallbacksUnavailable = fallbacks(meterRegistry, "unavailable");
+    }
+
+    private static Counter fallbacks(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("users.fallback")
+                .description("Reads by id Redis could not answer, served from a local copy or not")
+                .tag("operation", "findById")
+                .tag("result", result)
+                .register(meterRegistry);
     }
 
     public Mono<User> saveUser(User user) {
-        return repository.save(user);
+        return write(repository.save(user)).flatMap(this::invalidate);
+    }
+
+    public Mono<User> saveUser(User user, Duration ttl) {
+        return write(repository.save(user, ttl)).flatMap(this::invalidate);
+    }
+
+    public Mono<User> createUser(User user, Duration ttl, String idempotencyKey) {
+        return write(repository.create(user, ttl, idempotencyKey));
     }
 
     public Mono<User> getUserById(String userId) {
-        return repository.findById(userId);
+        // Hot users are served from a short lived local copy. Without Redis, the last copy of a hot user
+        // or the snapshot are served even when outdated, until the breaker lets reads through again.
+        return hotUserCache.get(userId, () -> read(replicaReads.repository().flatMap(reads -> reads.findById(userId))))
+                .onErrorResume(RedisUnavailableException.class, e -> hotUserCache.getStale(userId)
+                        .switchIfEmpty(getAllUsersSnapshot().flatMap(snapshot -> Mono.justOrEmpty(snapshot.getUser(userId))))
+                        .doOnNext(user -> fallbacksServed.increment())
+                        .switchIfEmpty(Mono.fromRunnable(fallbacksUnavailable::increment).then(Mono.error(e))));
+    }
+
+    public Mono<Integer> getUserVersion(String userId) {
+        return read(replicaReads.repository().flatMap(reads -> reads.findVersionById(userId)));
+    }
+
+    // One result per requested id in request order, each chunk of ids is read with a single HMGET
+    public Flux<UserLookup> lookupUsers(List<String> userIds) {
+        return Flux.fromIterable(userIds)
+                .buffer(lookupChunkSize)
+                .flatMapSequential(ids -> read(replicaReads.repository()
+                        .flatMapMany(reads -> reads.findAllById(ids))
+                        .collectMap(User::getId))
+                        .flatMapIterable(found -> lookups(ids, found)), lookupConcurrency);
     }
 
     public Flux<User> getAllUsers() {
-        return repository.findAll();
+        return scan(replicaReads.repository().flatMapMany(UserRepository::findAll));
+    }
+
+    // Local copy of all users, empty when the snapshot is disabled or not loaded yet
+    // The snapshot only holds the users of the default tenant
+    public Mono<UserSnapshotCache.Snapshot> getAllUsersSnapshot() {
+        return TenantKeys.current()
+                .filter(TenantKeys::isDefault)
+                .flatMap(keys -> snapshotCache.getSnapshot());
     }
 
     public Mono<User> getUserByEmail(String email) {
-        return repository.findByEmail(email);
+        return scan(replicaReads.repository().flatMap(reads -> reads.findByEmail(email)));
     }
 
     public Mono<User> getUserByUsername(String username) {
-        return repository.findByUsername(username);
+        return scan(replicaReads.repository().flatMap(reads -> reads.findByUsername(username)));
     }
 
     public Mono<Boolean> userExistsById(String userId) {
-        return repository.existsById(userId);
+        return read(replicaReads.repository().flatMap(reads -> reads.existsById(userId)));
     }
 
     public Mono<Boolean> userExistsByEmail(String email) {
-        return repository.existsByEmail(email);
+        return scan(replicaReads.repository().flatMap(reads -> reads.existsByEmail(email)));
     }
 
     public Mono<Boolean> userExistsByUsername(String username) {
-        return repository.existsByUsername(username);
+        return scan(replicaReads.repository().flatMap(reads -> reads.existsByUsername(username)));
     }
 
     public Mono<Void> deleteUserById(String userId) {
-        return repository.deleteById(userId);
+        return write(repository.deleteById(userId)).then(hotUserCache.invalidate(userId));
     }
 
     public Mono<Void> deleteUser(User user) {
-        return repository.delete(user);
+        return write(repository.delete(user)).then(hotUserCache.invalidate(user.getId()));
     }
 
     public Mono<Void> deleteAllUsers() {
-        return repository.deleteAll();
+        return scan(repository.deleteAll()).doOnSuccess(done -> hotUserCache.invalidateAll());
     }
 
     public Mono<Long> userCount() {
-        return repository.count();
+        return read(replicaReads.repository().flatMap(reads -> reads.count()));
+    }
+
+    private Mono<User> invalidate(User saved) {
+        return hotUserCache.invalidate(saved.getId()).thenReturn(saved);
+    }
+
+    // Every call to Redis goes through the circuit breaker with the timeout of its kind
+    private <T> Mono<T> read(Mono<T> call) {
+        return circuitBreaker.protect(call, readTimeout);
+    }
+
+    private <T> Mono<T> write(Mono<T> call) {
+        return circuitBreaker.protect(call, writeTimeout);
+    }
+
+    private <T> Mono<T> scan(Mono<T> call) {
+        return circuitBreaker.protect(call, scanTimeout);
+    }
+
+    // Streams time out when Redis takes longer than the scan timeout for the next user requested
+    private <T> Flux<T> scan(Flux<T> call) {
+        return circuitBreaker.protect(call, scanTimeout);
+    }
+
+    private static List<UserLookup> lookups(List<String> ids, Map<String, User> found) {
+        return ids.stream()
+                .map(id -> new UserLookup(id, found.get(id)))
+                .collect(Collectors.toList());
     }
 }
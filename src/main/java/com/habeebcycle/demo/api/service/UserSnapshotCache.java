@@ -0,0 +1,142 @@
+package com.habeebcycle.demo.api.service;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.persistence.UserChangeLog;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local, versioned copy of all users for findAll heavy consumers.
+ *
+ * The copy is refreshed in the background from the {@link UserChangeLog}: only the users changed since the
+ * last refresh are read back from Redis, and everything is reloaded only after a deleteAll or when this
+ * instance fell behind the trimmed part of the log. Requests are served from the copy without touching Redis.
+ */
+@Component
+public class UserSnapshotCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UserSnapshotCache.class);
+
+    private final UserRepository repository;
+    private final UserChangeLog changeLog;
+    private final Duration refreshInterval;
+    private final int batchSize;
+
+    private volatile Snapshot snapshot;
+    private Disposable refresher;
+
+    public UserSnapshotCache(UserRepository repository, UserChangeLog changeLog,
+                             @Value("${app.snapshot.refresh-interval:1s}") Duration refreshInterval,
+                             @Value("${app.snapshot.batch-size:500}") int batchSize) {
+        this.repository = repository;
+        this.changeLog = changeLog;
+        this.refreshInterval = refreshInterval;
+        this.batchSize = batchSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (changeLog.isEnabled()) {
+            refresher = Flux.interval(Duration.ZERO, refreshInterval)
+                    .onBackpressureDrop()
+                    .concatMap(tick -> refresh()
+                            .onErrorResume(e -> {
+                                LOG.warn("Users snapshot refresh failed: {}", e.getMessage());
+                                return Mono.empty();
+                            }), 1)
+                    .subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (refresher != null) {
+            refresher.dispose();
+        }
+    }
+
+    // Empty until the first refresh completed, or when the snapshot is disabled
+    public Mono<Snapshot> getSnapshot() {
+        return Mono.justOrEmpty(snapshot);
+    }
+
+    public Mono<Snapshot> refresh() {
+        Snapshot current = snapshot;
+        long watermark = current != null ? current.watermark : 0;
+
+        return changeLog.readSince(watermark)
+                .flatMap(changes -> {
+                    if (current == null || current.epoch != changes.getEpoch() || watermark < changes.getFloor()) {
+                        return reload(changes);
+                    }
+                    if (changes.getIds().isEmpty()) {
+                        return Mono.just(current);
+                    }
+                    return apply(current, changes);
+                })
+                .doOnNext(refreshed -> snapshot = refreshed);
+    }
+
+    private Mono<Snapshot> reload(UserChangeLog.Changes changes) {
+        // Changes made while reading are newer than the watermark and get applied again by the next refresh
+        return repository.findAll()
+                .collectMap(User::getId, user -> user, HashMap::new)
+                .map(users -> new Snapshot(changes.getEpoch(), changes.getSequence(), users));
+    }
+
+    private Mono<Snapshot> apply(Snapshot current, UserChangeLog.Changes changes) {
+        Map<String, User> users = new HashMap<>(current.users);
+        return Flux.fromIterable(changes.getIds())
+                .buffer(batchSize)
+                .concatMap(ids -> {
+                    ids.forEach(users::remove); // Deleted users are not found again
+                    return repository.findAllById(ids);
+                })
+                .doOnNext(user -> users.put(user.getId(), user))
+                .then(Mono.fromCallable(() -> new Snapshot(changes.getEpoch(), changes.getSequence(), users)));
+    }
+
+    public static class Snapshot {
+
+        private final long epoch;
+        private final long watermark;
+        private final Map<String, User> users;
+        private final List<User> values;
+        private final String eTag;
+
+        Snapshot(long epoch, long watermark, Map<String, User> users) {
+            this.epoch = epoch;
+            this.watermark = watermark;
+            this.users = users;
+            this.values = Collections.unmodifiableList(new ArrayList<>(users.values()));
+            this.eTag = "\"" + epoch + "-" + watermark + "\"";
+        }
+
+        public List<User> getUsers() {
+            return values;
+        }
+
+        public User getUser(String id) {
+            return users.get(id);
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+-- Reads the version and the expiry time of users for a backup.
+-- KEYS[1]: versions hash, KEYS[2]: expiry sorted set, KEYS[3]: set of the users with an explicit expiry
+-- ARGV: user ids
+-- Returns the version and the expiry time of every user in turn, '' when it has none. An explicit expiry
+-- time is negated.
+
+local versions = redis.call('HMGET', KEYS[1], unpack(ARGV))
+local result = {}
+for i, id in ipairs(ARGV) do
+    result[2 * i - 1] = versions[i] or ''
+    local expiresAt = redis.call('ZSCORE', KEYS[2], id)
+    if expiresAt and redis.call('SISMEMBER', KEYS[3], id) == 1 then
+        expiresAt = '-' .. expiresAt
+    end
+    result[2 * i] = expiresAt or ''
+end
+return result
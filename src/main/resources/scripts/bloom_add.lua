@@ -0,0 +1,8 @@
+-- Sets the Bloom filter bits in ARGV.
+-- KEYS[1]: Bloom filter bitset
+-- ARGV: bit offsets
+
+for i = 1, #ARGV do
+    redis.call('SETBIT', KEYS[1], ARGV[i], 1)
+end
+return #ARGV
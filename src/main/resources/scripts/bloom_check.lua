@@ -0,0 +1,19 @@
+-- Checks values against the Bloom filter, each value given as ARGV[1] consecutive bit offsets.
+-- KEYS[1]: Bloom filter bitset
+-- ARGV[1]: number of bits per value, ARGV[2..n]: the bit offsets of every value
+-- Returns 1 when any of the values might be present, 0 when all of them are definitely absent.
+
+local k = tonumber(ARGV[1])
+for first = 2, #ARGV, k do
+    local present = 1
+    for i = first, first + k - 1 do
+        if redis.call('GETBIT', KEYS[1], ARGV[i]) == 0 then
+            present = 0
+            break
+        end
+    end
+    if present == 1 then
+        return 1
+    end
+end
+return 0
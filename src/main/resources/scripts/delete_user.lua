@@ -0,0 +1,30 @@
+-- Removes a user with its version, expiry and claims, and takes its size off the stored bytes counter.
+-- KEYS[1]: users hash, KEYS[2]: versions hash, KEYS[3]: expiry index, KEYS[4]: stored bytes counter,
+-- KEYS[5]: unique hash, KEYS[6]: set of the users with an explicit expiry,
+-- KEYS[7]: set of the users the stored bytes counter holds while it is being built
+-- ARGV[1]: userId. Returns 1 when the user existed, 0 otherwise.
+
+local id = ARGV[1]
+local old = redis.call('HGET', KEYS[1], id)
+redis.call('HDEL', KEYS[2], id)
+redis.call('ZREM', KEYS[3], id)
+redis.call('SREM', KEYS[6], id)
+
+local claimed = redis.call('HMGET', KEYS[5], 'id:' .. id .. ':username', 'id:' .. id .. ':email')
+for i, prefix in ipairs({'username:', 'email:'}) do
+    if claimed[i] and redis.call('HGET', KEYS[5], prefix .. claimed[i]) == id then
+        redis.call('HDEL', KEYS[5], prefix .. claimed[i])
+    end
+end
+redis.call('HDEL', KEYS[5], 'id:' .. id .. ':username', 'id:' .. id .. ':email')
+
+if not old then
+    return 0
+end
+redis.call('HDEL', KEYS[1], id)
+-- While the counter is being built, a user it does not hold yet is not taken off it
+if redis.call('EXISTS', KEYS[4]) == 1
+        and (redis.call('EXISTS', KEYS[7]) == 0 or redis.call('SREM', KEYS[7], id) == 1) then
+    redis.call('DECRBY', KEYS[4], #old)
+end
+return 1
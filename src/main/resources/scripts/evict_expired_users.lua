@@ -0,0 +1,34 @@
+-- Removes up to ARGV[2] users whose expiry (ARGV[1], millis) has passed, with their claims.
+-- KEYS[1]: users hash, KEYS[2]: expiry index, KEYS[3]: versions hash, KEYS[4]: stored bytes counter,
+-- KEYS[5]: unique hash, KEYS[6]: set of the users with an explicit expiry,
+-- KEYS[7]: set of the users the stored bytes counter holds while it is being built.
+-- Returns the ids of the users removed.
+
+local ids = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+if #ids > 0 then
+    -- While the counter is being built, the users it does not hold yet are not taken off it
+    local building = redis.call('EXISTS', KEYS[7]) == 1
+    local bytes = 0
+    for i, stored in ipairs(redis.call('HMGET', KEYS[1], unpack(ids))) do
+        if stored and (not building or redis.call('SREM', KEYS[7], ids[i]) == 1) then
+            bytes = bytes + #stored
+        end
+    end
+    for _, id in ipairs(ids) do
+        local claimed = redis.call('HMGET', KEYS[5], 'id:' .. id .. ':username', 'id:' .. id .. ':email')
+        for i, prefix in ipairs({'username:', 'email:'}) do
+            if claimed[i] and redis.call('HGET', KEYS[5], prefix .. claimed[i]) == id then
+                redis.call('HDEL', KEYS[5], prefix .. claimed[i])
+            end
+        end
+        redis.call('HDEL', KEYS[5], 'id:' .. id .. ':username', 'id:' .. id .. ':email')
+    end
+    redis.call('HDEL', KEYS[1], unpack(ids))
+    redis.call('HDEL', KEYS[3], unpack(ids))
+    redis.call('ZREM', KEYS[2], unpack(ids))
+    redis.call('SREM', KEYS[6], unpack(ids))
+    if redis.call('EXISTS', KEYS[4]) == 1 then
+        redis.call('DECRBY', KEYS[4], bytes)
+    end
+end
+return ids
@@ -0,0 +1,18 @@
+-- Expiry-aware user lookup. KEYS[1]: users hash, KEYS[2]: expiry index (sorted set scored by expiry millis),
+-- KEYS[3]: set of the users with an explicit expiry
+-- ARGV: userId, nowMillis, idleTtlMillis (0 disables the refresh on read)
+-- Returns the stored user, or nil when missing or already expired but not yet swept.
+-- Users saved with an explicit ttl keep their expiry, only idle ones are pushed back.
+
+local id, now, idleTtl = ARGV[1], tonumber(ARGV[2]), tonumber(ARGV[3])
+
+local expiresAt = redis.call('ZSCORE', KEYS[2], id)
+if expiresAt and tonumber(expiresAt) <= now then
+    return nil
+end
+
+local user = redis.call('HGET', KEYS[1], id)
+if user and idleTtl > 0 and redis.call('SISMEMBER', KEYS[3], id) == 0 then
+    redis.call('ZADD', KEYS[2], now + idleTtl, id)
+end
+return user
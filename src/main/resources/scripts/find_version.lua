@@ -0,0 +1,17 @@
+-- Expiry-aware lookup of the version of a user, without reading the user itself.
+-- KEYS[1]: versions hash, KEYS[2]: expiry index, KEYS[3]: set of the users with an explicit expiry
+-- ARGV: userId, nowMillis, idleTtlMillis (0 disables the refresh on read)
+-- Returns the version, or nil when unknown or expired.
+
+local id, now, idleTtl = ARGV[1], tonumber(ARGV[2]), tonumber(ARGV[3])
+
+local expiresAt = redis.call('ZSCORE', KEYS[2], id)
+if expiresAt and tonumber(expiresAt) <= now then
+    return nil
+end
+
+local version = redis.call('HGET', KEYS[1], id)
+if version and idleTtl > 0 and redis.call('SISMEMBER', KEYS[3], id) == 0 then
+    redis.call('ZADD', KEYS[2], now + idleTtl, id)
+end
+return version
@@ -0,0 +1,14 @@
+-- Extends or releases the lock of a migration, only while this instance holds it.
+-- KEYS[1]: lock key
+-- ARGV: instance id, ttlMillis (0 releases the lock)
+-- Returns 1 when extended or released, 0 when the lock expired or another instance holds it.
+
+if redis.call('GET', KEYS[1]) ~= ARGV[1] then
+    return 0
+end
+if tonumber(ARGV[2]) == 0 then
+    redis.call('DEL', KEYS[1])
+else
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 1
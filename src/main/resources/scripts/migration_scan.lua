@@ -0,0 +1,6 @@
+-- One HSCAN step of a migration, so the cursor can be checkpointed and resumed from.
+-- KEYS[1]: users hash
+-- ARGV: cursor, count
+-- Returns the next cursor (0 once done) and the fields and values read.
+
+return redis.call('HSCAN', KEYS[1], ARGV[1], 'COUNT', ARGV[2])
@@ -0,0 +1,38 @@
+-- Token bucket check for a client bucket (KEYS[1]) and the global bucket (KEYS[2]), hash tagged to one slot.
+-- Tokens are only taken when both buckets can serve the request, so a rejected
+-- request never drains the other bucket.
+-- ARGV: clientRate, clientBurst, globalRate, globalBurst, nowMillis
+-- Returns 0 when allowed, 1 when the client limit is hit, 2 when the global limit is hit.
+
+local function refill(key, rate, burst, now)
+    local bucket = redis.call('HMGET', key, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1]) or burst
+    local ts = tonumber(bucket[2]) or now
+    return math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+end
+
+local function store(key, tokens, rate, burst, now)
+    redis.call('HMSET', key, 'tokens', tokens, 'ts', now)
+    redis.call('PEXPIRE', key, math.ceil(burst / rate * 1000) + 1000)
+end
+
+local clientRate, clientBurst = tonumber(ARGV[1]), tonumber(ARGV[2])
+local globalRate, globalBurst = tonumber(ARGV[3]), tonumber(ARGV[4])
+local now = tonumber(ARGV[5])
+
+local clientTokens = refill(KEYS[1], clientRate, clientBurst, now)
+local globalTokens = refill(KEYS[2], globalRate, globalBurst, now)
+
+local result = 0
+if clientTokens < 1 then
+    result = 1
+elseif globalTokens < 1 then
+    result = 2
+else
+    clientTokens = clientTokens - 1
+    globalTokens = globalTokens - 1
+end
+
+store(KEYS[1], clientTokens, clientRate, clientBurst, now)
+store(KEYS[2], globalTokens, globalRate, globalBurst, now)
+return result
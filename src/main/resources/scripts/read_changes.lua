@@ -0,0 +1,14 @@
+-- Reads the ids changed after the watermark in ARGV[1].
+-- KEYS[1]: change log, KEYS[2]: sequence counter, KEYS[3]: floor, KEYS[4]: epoch (bumped when all users are deleted)
+-- Returns {epoch, floor, sequence, id1, id2, ...} where the ids changed in (watermark, sequence].
+
+local epoch = redis.call('GET', KEYS[4]) or '0'
+local floor = redis.call('GET', KEYS[3]) or '0'
+local seq = redis.call('GET', KEYS[2]) or '0'
+
+local result = { epoch, floor, seq }
+local ids = redis.call('ZRANGEBYSCORE', KEYS[1], '(' .. ARGV[1], seq)
+for i = 1, #ids do
+    result[#result + 1] = ids[i]
+end
+return result
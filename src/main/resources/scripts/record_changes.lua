@@ -0,0 +1,17 @@
+-- Appends the ids in ARGV[2..n] to the change log under a new sequence number.
+-- KEYS[1]: change log (sorted set of ids scored by the sequence of their last change),
+-- KEYS[2]: sequence counter, KEYS[3]: floor, the highest sequence trimmed from the log.
+-- ARGV[1]: maximum number of entries kept. Returns the new sequence number.
+
+local seq = redis.call('INCR', KEYS[2])
+for i = 2, #ARGV do
+    redis.call('ZADD', KEYS[1], seq, ARGV[i])
+end
+
+local excess = redis.call('ZCARD', KEYS[1]) - tonumber(ARGV[1])
+if excess > 0 then
+    local trimmed = redis.call('ZRANGE', KEYS[1], excess - 1, excess - 1, 'WITHSCORES')
+    redis.call('ZREMRANGEBYRANK', KEYS[1], 0, excess - 1)
+    redis.call('SET', KEYS[3], trimmed[2])
+end
+return seq
@@ -0,0 +1,26 @@
+-- Reserves an idempotency key for a new user, or replays the outcome of the request that used it first.
+-- While the user is being created the key holds the in-progress marker and the id, for a short TTL so a
+-- crashed request does not hold it for long; once created it holds the id for the full TTL.
+-- KEYS[1]: idempotency key, KEYS[2]: users hash
+-- ARGV: id of the user about to be created, in-progress ttlMillis, in-progress marker, gone marker
+-- Returns nil when the key was reserved, the stored user when it was already used, the in-progress
+-- marker while the first request is still creating the user, or the gone marker when the user it
+-- created no longer exists.
+
+local value = redis.call('GET', KEYS[1])
+if not value then
+    redis.call('SET', KEYS[1], ARGV[3] .. ':' .. ARGV[1], 'PX', ARGV[2])
+    return nil
+end
+
+local prefix = ARGV[3] .. ':'
+local inProgress = string.sub(value, 1, #prefix) == prefix
+local id = inProgress and string.sub(value, #prefix + 1) or value
+local user = redis.call('HGET', KEYS[2], id)
+if user then
+    return user
+end
+if inProgress then
+    return ARGV[3]
+end
+return ARGV[4]
@@ -0,0 +1,5 @@
+-- Starts a new change log epoch, readers seeing a new epoch reload every user.
+-- KEYS[1]: change log, KEYS[2]: floor, KEYS[3]: epoch
+
+redis.call('DEL', KEYS[1], KEYS[2])
+return redis.call('INCR', KEYS[3])
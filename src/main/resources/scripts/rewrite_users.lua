@@ -0,0 +1,21 @@
+-- Rewrites users in the current serialization, skipping the ones changed since they were read.
+-- KEYS[1]: users hash, KEYS[2]: stored bytes counter,
+-- KEYS[3]: set of the users the stored bytes counter holds while it is being built
+-- ARGV: id, value read and new value of every user in turn
+-- Returns the number of users rewritten.
+
+local rewritten = 0
+local counted = redis.call('EXISTS', KEYS[2]) == 1
+local building = redis.call('EXISTS', KEYS[3]) == 1
+for i = 1, #ARGV, 3 do
+    local id, old, new = ARGV[i], ARGV[i + 1], ARGV[i + 2]
+    if redis.call('HGET', KEYS[1], id) == old then
+        redis.call('HSET', KEYS[1], id, new)
+        -- Users the counter does not hold are counted in their new size by the stored-bytes migration
+        if counted and (not building or redis.call('SISMEMBER', KEYS[3], id) == 1) then
+            redis.call('INCRBY', KEYS[2], #new - #old)
+        end
+        rewritten = rewritten + 1
+    end
+end
+return rewritten
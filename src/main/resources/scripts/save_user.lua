@@ -0,0 +1,95 @@
+-- Stores a user and its version within the quotas of its tenant, claiming its username and email.
+-- KEYS[1]: users hash, KEYS[2]: versions hash, KEYS[3]: stored bytes counter, KEYS[4]: unique hash,
+-- KEYS[5]: expiry index, KEYS[6]: set of the users the stored bytes counter holds while it is being built,
+-- KEYS[7]: marker of a unique hash holding the claims of every user, KEYS[8]: set of the users with an
+-- explicit expiry, KEYS[9]: shared Bloom filter bitset
+-- ARGV: serialized user, id, version, maxUsers, maxBytes (0 disables a quota), username, email,
+-- version the update was read at ('' for a new user), nowMillis, expiresAtMillis ('' for none),
+-- '1' for an explicit ttl, '0' for the idle ttl, then the Bloom filter bit offsets of the username and email
+-- Returns 1 when saved, -1 when over the users quota, -2 when over the bytes quota, -3 when the username
+-- or email belongs to another user, -4 when the user was updated since it was read.
+
+local value, id = ARGV[1], ARGV[2]
+local maxUsers, maxBytes = tonumber(ARGV[4]), tonumber(ARGV[5])
+local username, email = 'username:' .. ARGV[6], 'email:' .. ARGV[7]
+
+local old = redis.call('HGET', KEYS[1], id)
+if old and ARGV[8] ~= '' then
+    local stored = redis.call('HGET', KEYS[2], id)
+    if stored and stored ~= ARGV[8] then
+        return -4
+    end
+end
+
+-- A user past its expiry gives up its claims, the sweeper only releases the ones it still holds
+for _, owner in ipairs(redis.call('HMGET', KEYS[4], username, email)) do
+    if owner and owner ~= id then
+        local expiresAt = redis.call('ZSCORE', KEYS[5], owner)
+        if not expiresAt or tonumber(expiresAt) > tonumber(ARGV[9]) then
+            return -3
+        end
+    end
+end
+
+local count = redis.call('HLEN', KEYS[1])
+if not old and maxUsers > 0 and count >= maxUsers then
+    return -1
+end
+
+-- The counter starts with the first user of a tenant. Users stored before it existed are counted by the
+-- stored-bytes migration, while it runs a user it has not counted yet is counted by its next save instead.
+local bytes = redis.call('GET', KEYS[3])
+if not bytes and count == 0 then
+    bytes = 0
+end
+local delta = #value - (old and #old or 0)
+if bytes and redis.call('EXISTS', KEYS[6]) == 1 then
+    if redis.call('SADD', KEYS[6], id) == 1 then
+        delta = #value
+    end
+end
+if bytes and delta > 0 and maxBytes > 0 and tonumber(bytes) + delta > maxBytes then
+    return -2
+end
+
+-- Every user of a new tenant claims its username and email, the unique-index migration claims the ones of
+-- users stored before
+if count == 0 then
+    redis.call('SET', KEYS[7], 1)
+end
+redis.call('HSET', KEYS[1], id, value)
+redis.call('HSET', KEYS[2], id, ARGV[3])
+if bytes then
+    redis.call('INCRBY', KEYS[3], delta)
+end
+
+-- Reads only push back the expiry of the users without an explicit one. Stored again without one, a user
+-- past its expiry or one that was removed does not keep its former expiry
+if ARGV[10] ~= '' then
+    redis.call('ZADD', KEYS[5], ARGV[10], id)
+    if ARGV[11] == '1' then
+        redis.call('SADD', KEYS[8], id)
+    else
+        redis.call('SREM', KEYS[8], id)
+    end
+else
+    local expiresAt = redis.call('ZSCORE', KEYS[5], id)
+    if expiresAt and (not old or tonumber(expiresAt) <= tonumber(ARGV[9])) then
+        redis.call('ZREM', KEYS[5], id)
+        redis.call('SREM', KEYS[8], id)
+    end
+end
+for i = 12, #ARGV do
+    redis.call('SETBIT', KEYS[9], ARGV[i], 1)
+end
+
+-- A renamed user gives up its previous username and email, unless another user has taken them over since
+local claimed = redis.call('HMGET', KEYS[4], 'id:' .. id .. ':username', 'id:' .. id .. ':email')
+for i, field in ipairs({username, email}) do
+    local prefix = i == 1 and 'username:' or 'email:'
+    if claimed[i] and prefix .. claimed[i] ~= field and redis.call('HGET', KEYS[4], prefix .. claimed[i]) == id then
+        redis.call('HDEL', KEYS[4], prefix .. claimed[i])
+    end
+end
+redis.call('HMSET', KEYS[4], username, id, email, id, 'id:' .. id .. ':username', ARGV[6], 'id:' .. id .. ':email', ARGV[7])
+return 1
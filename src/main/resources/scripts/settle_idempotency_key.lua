@@ -0,0 +1,18 @@
+-- Settles an idempotency key reserved by reserve_idempotency_key.lua, only while this request holds it.
+-- KEYS[1]: idempotency key
+-- ARGV: in-progress value set by the reservation, id of the user created ('' releases the key), ttlMillis
+-- Returns 1 when settled, 0 when another request holds the key.
+
+local value = redis.call('GET', KEYS[1])
+if ARGV[2] == '' then
+    if value == ARGV[1] then
+        redis.call('DEL', KEYS[1])
+        return 1
+    end
+    return 0
+end
+if not value or value == ARGV[1] then
+    redis.call('SET', KEYS[1], ARGV[2], 'PX', ARGV[3])
+    return 1
+end
+return 0
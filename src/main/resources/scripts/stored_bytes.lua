@@ -0,0 +1,32 @@
+-- Counts users stored before the stored bytes counter of their tenant existed.
+-- The first batch starts the build: the counter starts at 0 and the set of the users it holds is created,
+-- with an empty member so it exists while empty. Saves and deletes meanwhile only change the counter for
+-- the users in the set, and a save adds its user. A counter that exists without the set is complete.
+-- KEYS[1]: users hash, KEYS[2]: stored bytes counter, KEYS[3]: set of the users the counter holds
+-- ARGV: ids of the users read, empty to complete the build
+-- Returns the number of users counted.
+
+local building = redis.call('EXISTS', KEYS[3]) == 1
+if #ARGV == 0 then
+    redis.call('DEL', KEYS[3])
+    return 0
+end
+if not building then
+    if redis.call('EXISTS', KEYS[2]) == 1 then
+        return 0
+    end
+    redis.call('SET', KEYS[2], 0)
+    redis.call('SADD', KEYS[3], '')
+end
+
+local counted, bytes = 0, 0
+for _, id in ipairs(ARGV) do
+    local value = redis.call('HGET', KEYS[1], id)
+    -- Users deleted since they were read are gone, the ones saved since were counted by their save
+    if value and redis.call('SADD', KEYS[3], id) == 1 then
+        bytes = bytes + #value
+        counted = counted + 1
+    end
+end
+redis.call('INCRBY', KEYS[2], bytes)
+return counted
@@ -0,0 +1,17 @@
+-- Claims the usernames and emails of users stored before they were claimed by the save script.
+-- KEYS[1]: users hash, KEYS[2]: unique hash
+-- ARGV: id, username and email of every user in turn
+-- Returns the number of users claimed.
+
+local claimed = 0
+for i = 1, #ARGV, 3 do
+    local id, username, email = ARGV[i], ARGV[i + 1], ARGV[i + 2]
+    -- Users saved or deleted since they were read are left as the save or delete did
+    if redis.call('HEXISTS', KEYS[1], id) == 1 and redis.call('HEXISTS', KEYS[2], 'id:' .. id .. ':username') == 0 then
+        redis.call('HSETNX', KEYS[2], 'username:' .. username, id)
+        redis.call('HSETNX', KEYS[2], 'email:' .. email, id)
+        redis.call('HMSET', KEYS[2], 'id:' .. id .. ':username', username, 'id:' .. id .. ':email', email)
+        claimed = claimed + 1
+    end
+end
+return claimed
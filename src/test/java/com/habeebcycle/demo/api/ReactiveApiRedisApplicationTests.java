@@ -5,16 +5,24 @@ import com.habeebcycle.demo.api.service.UserService;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
 import reactor.test.StepVerifier;
 import redis.embedded.RedisServer;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 @SpringBootTest(
 		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
-		properties = {"spring.redis.password="}
+		properties = {"spring.redis.password=", "app.lookup.chunk-size=2"}
 )
 class ReactiveApiRedisApplicationTests {
 
@@ -24,6 +32,9 @@ class ReactiveApiRedisApplicationTests {
 	@Autowired
 	private UserService userService;
 
+	@LocalServerPort
+	private int port;
+
 	private static final RedisServer REDISSERVER = new RedisServer(6379);
 
 	@BeforeAll
@@ -113,6 +124,126 @@ class ReactiveApiRedisApplicationTests {
 				.verifyComplete();
 	}
 
+	@Test
+	void lookupUsersTest() {
+		postAndVerifyUser(new User("username1", "email1@aol.com", "name1"), HttpStatus.OK);
+		postAndVerifyUser(new User("username2", "email2@aol.com", "name2"), HttpStatus.OK);
+		postAndVerifyUser(new User("username3", "email3@aol.com", "name3"), HttpStatus.OK);
+
+		String id1 = userService.getUserByUsername("username1").map(User::getId).block();
+		String id2 = userService.getUserByUsername("username2").map(User::getId).block();
+		String id3 = userService.getUserByUsername("username3").map(User::getId).block();
+
+		// Results follow the requested order across chunks, unknown ids are reported as not found
+		client.post()
+				.uri("/user/lookup")
+				.bodyValue(Arrays.asList(id3, "unknown", id1, id2, id3))
+				.accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.length()").isEqualTo(5)
+				.jsonPath("$[0].id").isEqualTo(id3)
+				.jsonPath("$[0].user.username").isEqualTo("username3")
+				.jsonPath("$[1].id").isEqualTo("unknown")
+				.jsonPath("$[1].found").isEqualTo(false)
+				.jsonPath("$[1].user").doesNotExist()
+				.jsonPath("$[2].user.username").isEqualTo("username1")
+				.jsonPath("$[3].user.username").isEqualTo("username2")
+				.jsonPath("$[4].found").isEqualTo(true)
+				.jsonPath("$[4].user.username").isEqualTo("username3");
+
+		client.get()
+				.uri("/user?ids=" + id2 + ",unknown")
+				.accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.length()").isEqualTo(2)
+				.jsonPath("$[0].user.username").isEqualTo("username2")
+				.jsonPath("$[1].found").isEqualTo(false);
+
+		client.post()
+				.uri("/user/lookup")
+				.bodyValue(Collections.nCopies(1001, id1))
+				.accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isBadRequest();
+	}
+
+	@Test
+	void idempotentCreateTest() {
+		User user = new User("username", "email@aol.com", "name");
+
+		String id = postUserWithIdempotencyKey(user, "key-1", HttpStatus.OK)
+				.returnResult().getResponseBody().getId();
+		Assertions.assertNotNull(id);
+
+		// A retry with the same key returns the user created by the first request
+		postUserWithIdempotencyKey(user, "key-1", HttpStatus.OK)
+				.value(retried -> Assertions.assertEquals(id, retried.getId()));
+
+		// A new key is a new request and fails on the duplicate username and email
+		postUserWithIdempotencyKey(user, "key-2", HttpStatus.INTERNAL_SERVER_ERROR);
+
+		// The failed key is released, so a corrected request can reuse it
+		User newUser = new User("new_username", "new_email@aol.com", "name");
+		postUserWithIdempotencyKey(newUser, "key-2", HttpStatus.OK)
+				.value(created -> Assertions.assertNotEquals(id, created.getId()));
+
+		StepVerifier.create(userService.userCount())
+				.expectNext(2L)
+				.verifyComplete();
+
+		// Once the user is removed, a retry learns it was created rather than creating it again
+		StepVerifier.create(userService.deleteUserById(id)).verifyComplete();
+		postUserWithIdempotencyKey(user, "key-1", HttpStatus.GONE);
+		StepVerifier.create(userService.userCount())
+				.expectNext(1L)
+				.verifyComplete();
+	}
+
+	@Test
+	void compressedUsersListTest() {
+		for (int i = 0; i < 30; i++) {
+			postAndVerifyUser(new User("username" + i, "email" + i + "@aol.com", "name" + i), HttpStatus.OK);
+		}
+
+		// The list is larger than the minimum response size and is gzipped when the client accepts it.
+		// The default connector decompresses transparently, use one that leaves the encoding visible.
+		WebTestClient.bindToServer(new ReactorClientHttpConnector(HttpClient.create()))
+				.baseUrl("http://localhost:" + port)
+				.build()
+				.get()
+				.uri("/user")
+				.accept(MediaType.APPLICATION_JSON)
+				.header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip");
+
+		getAndVerifyUser("", HttpStatus.OK)
+				.jsonPath("$.length()").isEqualTo(30);
+	}
+
+	@Test
+	void streamedUsersListTest() {
+		// More users than one scan batch and one written chunk
+		Flux.range(0, 1_000)
+				.flatMap(i -> userService.createUser(new User("username" + i, "email" + i, "name" + i), null, null), 16)
+				.blockLast();
+
+		client.get()
+				.uri("/user")
+				.accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentType(MediaType.APPLICATION_JSON)
+				.expectHeader().doesNotExist(HttpHeaders.CONTENT_LENGTH)
+				.expectBodyList(User.class)
+				.value(users -> Assertions.assertEquals(1_000, users.stream().map(User::getId).distinct().count()));
+	}
+
 	@Test
 	void duplicateErrorTest() {
 		// Create and save userA, verify it has saved correctly
@@ -243,6 +374,56 @@ class ReactiveApiRedisApplicationTests {
 
 	}
 
+	@Test
+	void conditionalRequestTest() {
+		User user = new User("username", "email@aol.com", "name");
+
+		postAndVerifyUser(user, HttpStatus.OK);
+		String userId = userService.getUserByUsername(user.getUsername()).map(User::getId).block();
+		Assertions.assertNotNull(userId);
+
+		String eTag = getAndVerifyUserById(userId, HttpStatus.OK)
+				.jsonPath("$.version").isEqualTo(0)
+				.returnResult().getResponseHeaders().getETag();
+		Assertions.assertEquals("\"0\"", eTag);
+
+		// An unchanged user is not sent again
+		client.get()
+				.uri("/user/" + userId)
+				.ifNoneMatch(eTag)
+				.exchange()
+				.expectStatus().isNotModified()
+				.expectHeader().valueEquals(HttpHeaders.ETAG, eTag)
+				.expectBody().isEmpty();
+
+		// If-Match carries the version read by the client
+		User update = new User("username", "email@aol.com", "updated-name");
+		update.setId(userId);
+		update.setVersion(5);
+		updateWithIfMatch(update, eTag, HttpStatus.OK)
+				.expectHeader().valueEquals(HttpHeaders.ETAG, "\"1\"")
+				.expectBody()
+				.jsonPath("$.name").isEqualTo("updated-name")
+				.jsonPath("$.version").isEqualTo(1);
+
+		// The old ETag no longer matches, neither for reads nor for updates
+		client.get()
+				.uri("/user/" + userId)
+				.ifNoneMatch(eTag)
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().valueEquals(HttpHeaders.ETAG, "\"1\"")
+				.expectBody()
+				.jsonPath("$.name").isEqualTo("updated-name");
+
+		update.setName("stale-name");
+		updateWithIfMatch(update, eTag, HttpStatus.PRECONDITION_FAILED);
+
+		getAndVerifyUserById(userId, HttpStatus.OK)
+				.jsonPath("$.name").isEqualTo("updated-name")
+				.jsonPath("$.version").isEqualTo(1);
+	}
+
 	@Test
 	void updateUserTest() {
 		User user = new User("username", "email@aol.com", "name");
@@ -331,6 +512,18 @@ class ReactiveApiRedisApplicationTests {
 				.expectBody();
 	}
 
+	private WebTestClient.BodySpec<User, ?> postUserWithIdempotencyKey(User user, String idempotencyKey,
+																	   HttpStatus expectedStatus) {
+		return client.post()
+				.uri("/user")
+				.header("Idempotency-Key", idempotencyKey)
+				.body(Mono.just(user), User.class)
+				.accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isEqualTo(expectedStatus)
+				.expectBody(User.class);
+	}
+
 	private WebTestClient.BodyContentSpec deleteAndVerifyUserById(String userId, HttpStatus expectedStatus) {
 		return client.delete()
 				.uri("/user/" + userId)
@@ -340,6 +533,16 @@ class ReactiveApiRedisApplicationTests {
 				.expectBody();
 	}
 
+	private WebTestClient.ResponseSpec updateWithIfMatch(User user, String ifMatch, HttpStatus expectedStatus) {
+		return client.put()
+				.uri("/user/" + user.getId())
+				.header(HttpHeaders.IF_MATCH, ifMatch)
+				.body(Mono.just(user), User.class)
+				.accept(MediaType.APPLICATION_JSON)
+				.exchange()
+				.expectStatus().isEqualTo(expectedStatus);
+	}
+
 	private WebTestClient.BodyContentSpec updateAndVerifyUser(User user, HttpStatus expectedStatus) {
 		return client.put()
 				.uri("/user/" + user.getId())
@@ -0,0 +1,128 @@
+package com.habeebcycle.demo.api.config;
+
+import com.habeebcycle.demo.api.model.User;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CompressingRedisSerializerTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressingRedisSerializerTests.class);
+
+    private static final int THRESHOLD = 1024;
+    private static final int MAX_VALUE_BYTES = 64 * 1024;
+
+    private final GenericJackson2JsonRedisSerializer json = new GenericJackson2JsonRedisSerializer();
+    private final CompressingRedisSerializer<Object> serializer = new CompressingRedisSerializer<>(json, THRESHOLD, MAX_VALUE_BYTES);
+
+    @Test
+    void smallValueTest() {
+        User user = newUser(0, 10);
+
+        // Values below the threshold are stored as plain JSON
+        byte[] bytes = serializer.serialize(user);
+        Assertions.assertArrayEquals(json.serialize(user), bytes);
+        assertEqualUser(user, (User) serializer.deserialize(bytes));
+    }
+
+    @Test
+    void largeValueTest() {
+        User user = newUser(0, 4000);
+
+        byte[] plain = json.serialize(user);
+        byte[] bytes = serializer.serialize(user);
+        Assertions.assertEquals(CompressingRedisSerializer.LZ4_HEADER, bytes[0]);
+        Assertions.assertTrue(bytes.length < plain.length);
+        assertEqualUser(user, (User) serializer.deserialize(bytes));
+
+        // Values written before compression was enabled remain readable
+        assertEqualUser(user, (User) serializer.deserialize(plain));
+    }
+
+    @Test
+    void maxValueTest() {
+        // Values over the maximum are not written
+        Assertions.assertThrows(SerializationException.class, () -> serializer.serialize(newUser(0, MAX_VALUE_BYTES)));
+
+        // A header claiming more than the maximum, or more than the block can expand to, is not trusted
+        byte[] bytes = serializer.serialize(newUser(0, 4000));
+        byte[] oversized = bytes.clone();
+        oversized[1] = 0x7F;
+        Assertions.assertThrows(SerializationException.class, () -> serializer.deserialize(oversized));
+        byte[] truncated = {CompressingRedisSerializer.LZ4_HEADER, 0, 0, (byte) 0xFF, 0, 0};
+        Assertions.assertThrows(SerializationException.class, () -> serializer.deserialize(truncated));
+    }
+
+    @Test
+    @Tag("benchmark")
+    void compressionBenchmarkTest() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            users.add(newUser(i, 2_000));
+        }
+
+        // Warm up both paths before measuring
+        for (int i = 0; i < 3; i++) {
+            users.forEach(user -> json.deserialize(json.serialize(user)));
+            users.forEach(user -> serializer.deserialize(serializer.serialize(user)));
+        }
+
+        long plainBytes = 0, compressedBytes = 0;
+        List<byte[]> plain = new ArrayList<>();
+        long start = System.nanoTime();
+        for (User user : users) {
+            byte[] bytes = json.serialize(user);
+            plainBytes += bytes.length;
+            plain.add(bytes);
+        }
+        long plainNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        plain.forEach(json::deserialize);
+        long plainReadNanos = System.nanoTime() - start;
+
+        List<byte[]> compressed = new ArrayList<>();
+        start = System.nanoTime();
+        for (User user : users) {
+            byte[] bytes = serializer.serialize(user);
+            compressedBytes += bytes.length;
+            compressed.add(bytes);
+        }
+        long compressedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        compressed.forEach(serializer::deserialize);
+        long readNanos = System.nanoTime() - start;
+
+        LOG.info("Value compression: {} -> {} bytes ({}% saved), write {} -> {} ns/op, read {} -> {} ns/op",
+                plainBytes, compressedBytes, String.format("%.1f", 100.0 * (plainBytes - compressedBytes) / plainBytes),
+                plainNanos / users.size(), compressedNanos / users.size(),
+                plainReadNanos / users.size(), readNanos / users.size());
+
+        Assertions.assertTrue(compressedBytes < plainBytes);
+    }
+
+    private User newUser(int i, int nameLength) {
+        StringBuilder name = new StringBuilder();
+        while (name.length() < nameLength) {
+            name.append("name of user ").append(i).append(' ');
+        }
+        User user = new User("username" + i, "email" + i + "@aol.com", name.toString());
+        user.setId("id" + i);
+        return user;
+    }
+
+    private void assertEqualUser(User expectedUser, User actualUser) {
+        Assertions.assertEquals(expectedUser.getId(), actualUser.getId());
+        Assertions.assertEquals(expectedUser.getUsername(), actualUser.getUsername());
+        Assertions.assertEquals(expectedUser.getEmail(), actualUser.getEmail());
+        Assertions.assertEquals(expectedUser.getName(), actualUser.getName());
+    }
+}
@@ -0,0 +1,221 @@
+package com.habeebcycle.demo.api.config;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+import reactor.core.publisher.Flux;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// Server connection settings, run in memory so nothing but the server is measured by the load test
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "app.user-expiry.sweeper-enabled=false",
+                "app.rate-limit.enabled=false",
+                "app.concurrency-limit.enabled=false",
+                "server.http2.enabled=true",
+                "app.server.max-connections=" + NettyServerTests.MAX_CONNECTIONS,
+                "app.server.idle-timeout=1s"
+        }
+)
+@ActiveProfiles("in-memory")
+public class NettyServerTests {
+
+    private final static int REQUESTS = Integer.getInteger("benchmark.server.requests", 2_000);
+    final static int MAX_CONNECTIONS = 16;
+    private final static int CONCURRENCY = 32;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private UserRepository repository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private String userId;
+
+    @BeforeEach
+    void setUp() {
+        repository.deleteAll().block();
+        User user = repository.save(new User("username", "email", "name")).block();
+        Assertions.assertNotNull(user);
+        userId = user.getId();
+    }
+
+    @Test
+    void h2cTest() {
+        // Prior knowledge, without the HTTP/1.1 upgrade. A server without h2c fails the connection preface
+        HttpClient client = HttpClient.create(ConnectionProvider.newConnection())
+                .protocol(HttpProtocol.H2C)
+                .port(port);
+        String body = client.get().uri("/user/" + userId)
+                .responseSingle((response, content) -> {
+                    Assertions.assertEquals(HttpResponseStatus.OK, response.status());
+                    return content.asString();
+                })
+                .block(Duration.ofSeconds(5));
+        Assertions.assertNotNull(body);
+        Assertions.assertTrue(body.contains("\"username\":\"username\""));
+
+        // Routes without ids are tagged as they are, ids are left out
+        Assertions.assertNotNull(meterRegistry.find("reactor.netty.http.server.data.sent")
+                .tag("uri", "/user/{userId}").summary());
+        Assertions.assertEquals("/user/lookup", NettyServerConfiguration.uriTag("/user/lookup"));
+        Assertions.assertEquals("/user", NettyServerConfiguration.uriTag("/user?ids=a,b"));
+        Assertions.assertEquals("UNKNOWN", NettyServerConfiguration.uriTag("/random-" + userId));
+        Assertions.assertEquals("UNKNOWN", NettyServerConfiguration.uriTag("/user/" + userId + "/other"));
+    }
+
+    @Test
+    void maxConnectionsTest() throws IOException {
+        awaitConnections(0);
+        double rejected = meterRegistry.get("http.server.connections.rejected").counter().count();
+
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < MAX_CONNECTIONS; i++) {
+                Socket socket = new Socket("localhost", port);
+                sockets.add(socket);
+                Assertions.assertTrue(request(socket).startsWith("HTTP/1.1 200"));
+            }
+            awaitConnections(MAX_CONNECTIONS);
+
+            // One over the limit is closed without an answer
+            Socket socket = new Socket("localhost", port);
+            sockets.add(socket);
+            socket.setSoTimeout(5000);
+            write(socket);
+            Assertions.assertEquals(-1, readClosed(socket.getInputStream()));
+            Assertions.assertEquals(rejected + 1, meterRegistry.get("http.server.connections.rejected").counter().count());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    void idleTimeoutTest() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            Assertions.assertTrue(request(socket).startsWith("HTTP/1.1 200"));
+
+            // The keep-alive connection is closed once idle for the timeout
+            long start = System.nanoTime();
+            Assertions.assertEquals(-1, readClosed(socket.getInputStream()));
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            Assertions.assertTrue(elapsedMillis >= 900 && elapsedMillis < 5000, "Closed after " + elapsedMillis + " ms");
+        }
+    }
+
+    @Test
+    void loadTest() {
+        awaitConnections(0);
+        double accepted = meterRegistry.get("http.server.connections.accepted").functionCounter().count();
+        double rejected = meterRegistry.get("http.server.connections.rejected").counter().count();
+
+        // Many requests over all the keep-alive connections allowed, then over one multiplexed h2c connection
+        run("http/1.1", HttpProtocol.HTTP11, MAX_CONNECTIONS, MAX_CONNECTIONS);
+        awaitConnections(0);
+        run("h2c", HttpProtocol.H2C, 1, CONCURRENCY);
+
+        // Every connection was kept alive for the whole run
+        Assertions.assertEquals(accepted + MAX_CONNECTIONS + 1,
+                meterRegistry.get("http.server.connections.accepted").functionCounter().count());
+        Assertions.assertEquals(rejected, meterRegistry.get("http.server.connections.rejected").counter().count());
+    }
+
+    private void run(String name, HttpProtocol protocol, int connections, int concurrency) {
+        ConnectionProvider provider = ConnectionProvider.create("load-test-" + name, connections);
+        HttpClient client = HttpClient.create(provider).protocol(protocol).port(port);
+        long start = System.nanoTime();
+        Long ok;
+        try {
+            ok = Flux.range(0, REQUESTS)
+                    .flatMap(i -> client.get().uri("/user/" + userId)
+                            .responseSingle((response, content) -> content.then().thenReturn(response.status().code())),
+                            concurrency)
+                    .filter(status -> status == 200)
+                    .count()
+                    .block(Duration.ofMinutes(2));
+        } finally {
+            provider.dispose();
+        }
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        Assertions.assertEquals(REQUESTS, ok);
+        System.out.printf("Server %s: %d requests, %d concurrent on %d connections, in %d ms (%.0f requests/s)%n",
+                name, REQUESTS, concurrency, connections, elapsedMillis, REQUESTS * 1000.0 / elapsedMillis);
+    }
+
+    private void awaitConnections(long expected) {
+        Flux.interval(Duration.ofMillis(10))
+                .filter(tick -> meterRegistry.get("http.server.connections.active").gauge().value() == expected)
+                .blockFirst(Duration.ofSeconds(5));
+    }
+
+    // Sends a keep-alive request and returns the response headers
+    private String request(Socket socket) throws IOException {
+        write(socket);
+        InputStream in = socket.getInputStream();
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            int read = in.read();
+            if (read < 0) {
+                break;
+            }
+            headers.append((char) read);
+        }
+        int length = contentLength(headers.toString());
+        for (int i = 0; i < length; i++) {
+            in.read();
+        }
+        return headers.toString();
+    }
+
+    private void write(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET /user/" + userId + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static int contentLength(String headers) {
+        for (String header : headers.split("\r\n")) {
+            if (header.toLowerCase().startsWith("content-length:")) {
+                return Integer.parseInt(header.substring("content-length:".length()).trim());
+            }
+        }
+        return 0;
+    }
+
+    // Reads until the server closes the connection, a reset counts as closed
+    private static int readClosed(InputStream in) throws IOException {
+        try {
+            int read;
+            do {
+                read = in.read();
+            } while (read >= 0);
+            return read;
+        } catch (java.net.SocketException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.habeebcycle.demo.api.controller;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.habeebcycle.demo.api.model.User;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class JsonArrayStreamTests {
+
+    private final static int CHUNK_SIZE = 100;
+    private final static int MAX_IN_FLIGHT = 1000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JsonArrayStream stream = new JsonArrayStream(objectMapper, CHUNK_SIZE, MAX_IN_FLIGHT);
+
+    @Test
+    void encodeTest() throws Exception {
+        Assertions.assertEquals("[]", encode(0));
+
+        List<User> users = objectMapper.readValue(encode(250), new TypeReference<List<User>>() {});
+        Assertions.assertEquals(250, users.size());
+        Assertions.assertEquals("username0", users.get(0).getUsername());
+        Assertions.assertEquals("username249", users.get(249).getUsername());
+    }
+
+    @Test
+    void boundedMemoryTest() {
+        int users = 500_000;
+        AtomicLong produced = new AtomicLong();
+        Flux<User> source = Flux.range(0, users)
+                .map(JsonArrayStreamTests::user)
+                .doOnNext(user -> produced.incrementAndGet());
+
+        // Reads one chunk at a time like a slow connection, and checks what was read ahead and the heap in use
+        long[] heap = new long[2];
+        long[] chunks = {0};
+        stream.encode(source, User.class, DefaultDataBufferFactory.sharedInstance).subscribe(new BaseSubscriber<DataBuffer>() {
+
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(1);
+            }
+
+            @Override
+            protected void hookOnNext(DataBuffer buffer) {
+                DataBufferUtils.release(buffer);
+                long written = Math.min(chunks[0]++ * CHUNK_SIZE, users);
+                Assertions.assertTrue(produced.get() - written <= MAX_IN_FLIGHT + CHUNK_SIZE,
+                        "Read ahead " + (produced.get() - written) + " users");
+                if (chunks[0] == 100) heap[0] = usedHeap();
+                if (chunks[0] == 4_900) heap[1] = usedHeap();
+                request(1);
+            }
+        });
+
+        Assertions.assertEquals(users, produced.get());
+        Assertions.assertEquals(users / CHUNK_SIZE + 2, chunks[0]);
+        System.out.printf("JSON array stream: heap in use %d KB after 10000 users, %d KB after 490000 users%n",
+                heap[0] / 1024, heap[1] / 1024);
+        Assertions.assertTrue(heap[1] - heap[0] < 16 * 1024 * 1024);
+    }
+
+    private String encode(int count) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        stream.encode(Flux.range(0, count).map(JsonArrayStreamTests::user), User.class,
+                DefaultDataBufferFactory.sharedInstance)
+                .doOnNext(buffer -> {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    out.write(bytes, 0, bytes.length);
+                    DataBufferUtils.release(buffer);
+                })
+                .blockLast();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static User user(int i) {
+        User user = new User("username" + i, "email" + i, "name" + i);
+        user.setId("id" + i);
+        return user;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,133 @@
+package com.habeebcycle.demo.api.filter;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.persistence.RequestTrace;
+import com.habeebcycle.demo.api.service.UserService;
+import org.junit.jupiter.api.*;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import redis.embedded.RedisServer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.user-expiry.sweeper-enabled=false",
+                "app.access-log.slow-threshold=0ms"
+        }
+)
+public class AccessLogFilterTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    private final Logger logger = (Logger) LoggerFactory.getLogger("com.habeebcycle.demo.api.access");
+    private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private UserService userService;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        userService.deleteAllUsers().block();
+        appender.start();
+        logger.addAppender(appender);
+    }
+
+    @AfterEach
+    void tearDown() {
+        logger.detachAppender(appender);
+        appender.stop();
+    }
+
+    @Test
+    void slowRequestLogTest() {
+        client.post().uri("/user")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Mono.just(new User("username", "email", "name")), User.class)
+                .exchange()
+                .expectStatus().isOk();
+
+        // Every request is slow with a 0ms threshold, so it is logged with its commands. The line is
+        // written once the response completed, which can be after the client got it
+        ILoggingEvent event = Flux.interval(Duration.ofMillis(10))
+                .concatMapIterable(tick -> new ArrayList<>(appender.list))
+                .filter(e -> e.getFormattedMessage().startsWith("method=POST path=/user "))
+                .blockFirst(Duration.ofSeconds(5));
+        Assertions.assertNotNull(event);
+        String line = event.getFormattedMessage();
+        Assertions.assertEquals(Level.WARN, event.getLevel());
+        Assertions.assertTrue(line.contains(" status=200 "));
+        Assertions.assertTrue(line.contains(" uniqueness_ms="));
+        Assertions.assertTrue(line.contains(" slow=true "));
+        Assertions.assertTrue(line.contains("UNIQUENESS BLOOM username email"), line);
+        Assertions.assertTrue(line.contains("WRITE EVALSHA save_user USERS"), line);
+        Assertions.assertFalse(line.contains(" redis_commands=0 "));
+    }
+
+    @Test
+    void commandRingTest() {
+        // All calls are counted and timed, only the last ones are kept
+        RequestTrace trace = new RequestTrace(2);
+        StepVerifier.create(Flux.just("HGET", "HEXISTS", "EVALSHA save_user")
+                .concatMap(command -> RequestTrace.trace(RequestTrace.Phase.LOOKUP, command, "USERS", Mono.just(1)))
+                .contextWrite(RequestTrace.with(trace)))
+                .expectNextCount(3)
+                .verifyComplete();
+        Assertions.assertEquals(3, trace.getCommandCount());
+        Assertions.assertTrue(trace.getPhaseNanos(RequestTrace.Phase.LOOKUP) > 0);
+        Assertions.assertEquals(2, trace.getCommands().size());
+        Assertions.assertTrue(trace.getCommands().get(0).toString().contains("LOOKUP HEXISTS USERS"));
+        Assertions.assertTrue(trace.getCommands().get(1).toString().contains("LOOKUP EVALSHA save_user USERS"));
+    }
+
+    @Test
+    void samplerTest() {
+        AccessLogSampler sampler = new AccessLogSampler(10);
+
+        // Everything is logged while the load stays under the limit
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(sampler.sample(1_000));
+        }
+        for (int i = 0; i < 990; i++) {
+            sampler.sample(1_500);
+        }
+
+        // 1000 requests in the second before, so about 1% of them in the next one
+        int sampled = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (sampler.sample(2_000)) sampled++;
+        }
+        Assertions.assertEquals(0.01, sampler.getRate(), 1e-9);
+        Assertions.assertTrue(sampled > 30 && sampled < 200);
+
+        // An idle second starts over
+        Assertions.assertTrue(sampler.sample(5_000));
+        Assertions.assertEquals(1.0, sampler.getRate());
+    }
+}
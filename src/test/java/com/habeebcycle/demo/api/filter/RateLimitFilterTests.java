@@ -0,0 +1,130 @@
+package com.habeebcycle.demo.api.filter;
+
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import redis.embedded.RedisServer;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.rate-limit.client.rate=1",
+                "app.rate-limit.client.burst=3",
+                "app.rate-limit.trusted-proxies=127.0.0.1"
+        }
+)
+public class RateLimitFilterTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    @Autowired
+    private RateLimitFilter rateLimitFilter;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @Test
+    void clientLimitTest() {
+        // The burst allows three requests, the fourth one from the same client is rejected
+        for (int i = 0; i < 3; i++) {
+            getUsers("client-a").expectStatus().isOk();
+        }
+        getUsers("client-a")
+                .expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+                .expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "1");
+
+        // Other clients have their own bucket
+        getUsers("client-b").expectStatus().isOk();
+    }
+
+    @Test
+    void clientIdTest() {
+        // The header is only trusted from a proxy, other clients are told apart by their address
+        MockServerWebExchange proxied = MockServerWebExchange.from(MockServerHttpRequest.get("/user")
+                .remoteAddress(new InetSocketAddress("127.0.0.1", 8080))
+                .header("X-Client-Id", "client-a"));
+        Assertions.assertEquals("client-a", rateLimitFilter.clientId(proxied));
+
+        MockServerWebExchange direct = MockServerWebExchange.from(MockServerHttpRequest.get("/user")
+                .remoteAddress(new InetSocketAddress("10.0.0.1", 8080))
+                .header("X-Client-Id", "client-a"));
+        Assertions.assertEquals("10.0.0.1", rateLimitFilter.clientId(direct));
+    }
+
+    @Test
+    void trackedClientsTest() {
+        // Over the tracked clients, the clients without a bucket share one
+        RateLimiter rateLimiter = new RateLimiter(null, 1, 1, 1000, 1000, false, 1, Duration.ofHours(1));
+        Assertions.assertEquals(RateLimiter.Decision.ALLOWED, rateLimiter.acquire("client-a").block());
+        Assertions.assertEquals(RateLimiter.Decision.ALLOWED, rateLimiter.acquire("client-b").block());
+        Assertions.assertEquals(RateLimiter.Decision.CLIENT_LIMITED, rateLimiter.acquire("client-c").block());
+        Assertions.assertEquals(RateLimiter.Decision.CLIENT_LIMITED, rateLimiter.acquire("client-a").block());
+    }
+
+    @Test
+    void concurrencyLimitTest() {
+        int limit = concurrencyLimiter.getLimit();
+        Assertions.assertTrue(limit >= 8);
+
+        // Fill every permit and verify the next call is shed
+        for (int i = 0; i < limit; i++) {
+            Assertions.assertTrue(concurrencyLimiter.tryAcquire());
+        }
+        Assertions.assertFalse(concurrencyLimiter.tryAcquire());
+
+        // A slow call shrinks the limit
+        concurrencyLimiter.release(Long.MAX_VALUE);
+        Assertions.assertTrue(concurrencyLimiter.getLimit() < limit);
+
+        for (int i = 1; i < limit; i++) {
+            concurrencyLimiter.release(0);
+        }
+        Assertions.assertEquals(0, concurrencyLimiter.getInFlight());
+    }
+
+    @Test
+    void backoffWindowTest() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(64, 8, 1024, 100, 0.5, 60_000);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(limiter.tryAcquire());
+        }
+
+        // The other slow calls of the same window do not shrink the limit again
+        limiter.release(Long.MAX_VALUE);
+        Assertions.assertEquals(32, limiter.getLimit());
+        limiter.release(Long.MAX_VALUE);
+        limiter.release(Long.MAX_VALUE);
+        Assertions.assertEquals(32, limiter.getLimit());
+    }
+
+    private WebTestClient.ResponseSpec getUsers(String clientId) {
+        return client.get()
+                .uri("/user")
+                .header("X-Client-Id", clientId)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange();
+    }
+}
@@ -0,0 +1,132 @@
+package com.habeebcycle.demo.api.filter;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.persistence.TenantKeys;
+import com.habeebcycle.demo.api.service.UserService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import redis.embedded.RedisServer;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.user-expiry.sweeper-enabled=false",
+                "app.tenant.max-users=2",
+                "app.tenant.allowed=tenant-a,tenant-b"
+        }
+)
+public class TenantFilterTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUpDB() {
+        for (String tenant : new String[]{TenantKeys.DEFAULT_TENANT, "tenant-a", "tenant-b"}) {
+            userService.deleteAllUsers().contextWrite(TenantKeys.withTenant(tenant)).block();
+        }
+    }
+
+    @Test
+    void tenantIsolationTest() {
+        // The same username and email can be used by every tenant
+        createUser("tenant-a", new User("username", "email", "name")).expectStatus().isOk();
+        createUser("tenant-b", new User("username", "email", "name")).expectStatus().isOk();
+        createUser(null, new User("username", "email", "name")).expectStatus().isOk();
+        createUser("tenant-a", new User("username", "email", "name"))
+                .expectStatus().isEqualTo(HttpStatus.INTERNAL_SERVER_ERROR);
+
+        getUsers("tenant-a").expectBodyList(User.class).hasSize(1);
+        StepVerifier.create(userService.userCount().contextWrite(TenantKeys.withTenant("tenant-b")))
+                .expectNext(1L)
+                .verifyComplete();
+
+        // Users of one tenant are not found by another one
+        String id = userService.getAllUsers().contextWrite(TenantKeys.withTenant("tenant-a"))
+                .map(User::getId).blockFirst();
+        StepVerifier.create(userService.getUserById(id).contextWrite(TenantKeys.withTenant("tenant-b")))
+                .verifyComplete();
+        StepVerifier.create(userService.getUserById(id)).verifyComplete();
+
+        Assertions.assertTrue(meterRegistry.get("users.tenant.requests").tag("tenant", "tenant-a").timer().count() > 0);
+    }
+
+    @Test
+    void tenantQuotaTest() {
+        createUser("tenant-a", new User("username1", "email1", "name")).expectStatus().isOk();
+        createUser("tenant-a", new User("username2", "email2", "name")).expectStatus().isOk();
+        createUser("tenant-a", new User("username3", "email3", "name"))
+                .expectStatus().isEqualTo(HttpStatus.INSUFFICIENT_STORAGE);
+
+        // Updates of existing users stay within the quota, other tenants have their own
+        User user = userService.getUserByUsername("username1").contextWrite(TenantKeys.withTenant("tenant-a")).block();
+        Assertions.assertNotNull(user);
+        user.setName("updated-name");
+        client.put()
+                .uri("/user/" + user.getId())
+                .header("X-Tenant-Id", "tenant-a")
+                .body(Mono.just(user), User.class)
+                .exchange()
+                .expectStatus().isOk();
+        createUser("tenant-b", new User("username3", "email3", "name")).expectStatus().isOk();
+
+        // Deleting a user frees its place
+        client.delete().uri("/user/" + user.getId()).header("X-Tenant-Id", "tenant-a").exchange()
+                .expectStatus().isOk();
+        createUser("tenant-a", new User("username3", "email3", "name")).expectStatus().isOk();
+
+        Assertions.assertEquals(1, meterRegistry.get("users.tenant.quota.rejections")
+                .tag("tenant", "tenant-a").counter().count());
+    }
+
+    @Test
+    void invalidTenantTest() {
+        getUsers("not a tenant!").expectStatus().isBadRequest();
+        // Well formed but not listed
+        getUsers("tenant-c").expectStatus().isForbidden();
+    }
+
+    private WebTestClient.ResponseSpec createUser(String tenant, User user) {
+        WebTestClient.RequestBodySpec request = client.post().uri("/user");
+        if (tenant != null) {
+            request.header("X-Tenant-Id", tenant);
+        }
+        return request.contentType(MediaType.APPLICATION_JSON)
+                .body(Mono.just(user), User.class)
+                .exchange();
+    }
+
+    private WebTestClient.ResponseSpec getUsers(String tenant) {
+        return client.get()
+                .uri("/user")
+                .header("X-Tenant-Id", tenant)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange();
+    }
+}
@@ -0,0 +1,9 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+// Races the saves through the blocking repository, its checks run on its own threads but must hold the same way
+@SpringBootTest(properties = {"spring.redis.password=", "app.user-expiry.sweeper-enabled=false",
+        "app.repository.mode=blocking"})
+public class BlockingConcurrentSaveTests extends ConcurrentSaveTests {
+}
@@ -0,0 +1,9 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+// Runs every persistence test against the blocking repository to verify both have the same semantics
+@SpringBootTest(properties = {"spring.redis.password=", "app.user-expiry.sweeper-enabled=false",
+        "app.repository.mode=blocking"})
+public class BlockingPersistenceTests extends PersistenceTests {
+}
@@ -0,0 +1,202 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.junit.jupiter.api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.util.ClassUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+import reactor.util.retry.Retry;
+import redis.embedded.RedisServer;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Races many saves of colliding usernames, emails and ids, and checks that uniqueness holds and no update
+ * is lost. Logs the throughput of every run. Size the runs with -Dbenchmark.stress.operations.
+ */
+@SpringBootTest(properties = {"spring.redis.password=", "app.user-expiry.sweeper-enabled=false"})
+public class ConcurrentSaveTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrentSaveTests.class);
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    private final static int OPERATIONS = Integer.getInteger("benchmark.stress.operations", 1_000);
+    private final static int CONCURRENCY = 64;
+    // Few names shared by many saves, so most of them collide
+    private final static int NAMES = 16;
+    private final static int USERS = 8;
+
+    @Autowired
+    private UserRepository repository;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUpDB() {
+        StepVerifier.create(repository.deleteAll()).verifyComplete();
+    }
+
+    @Test
+    void concurrentCreateTest() {
+        // Usernames and emails collide in different combinations, so a create may lose on either
+        AtomicLong duplicates = new AtomicLong();
+        long created = run("creates", i -> repository.save(new User("username-" + i % NAMES,
+                        "email-" + (i * 7 + i / NAMES) % NAMES, "name-" + i))
+                .onErrorResume(DuplicateKeyException.class, e -> {
+                    duplicates.incrementAndGet();
+                    return Mono.empty();
+                }));
+
+        List<User> users = assertUnique();
+        Assertions.assertEquals(created, users.size());
+        Assertions.assertEquals(OPERATIONS, created + duplicates.get());
+        Assertions.assertTrue(created <= NAMES, created + " users created for " + NAMES + " usernames");
+    }
+
+    @Test
+    void concurrentUpdateTest() {
+        List<User> saved = createUsers();
+
+        // Every save increments a counter held in the name, a conflicting one reads the user again and retries
+        AtomicLong conflicts = new AtomicLong();
+        run("updates", i -> Mono.defer(() -> repository.findById(saved.get(i % USERS).getId()))
+                .flatMap(user -> {
+                    user.setName(String.valueOf(Integer.parseInt(user.getName()) + 1));
+                    return repository.save(user);
+                })
+                .doOnError(OptimisticLockingFailureException.class, e -> conflicts.incrementAndGet())
+                .retryWhen(Retry.indefinitely().filter(e -> e instanceof OptimisticLockingFailureException)));
+
+        List<User> users = assertUnique();
+        Assertions.assertEquals(USERS, users.size());
+        for (int i = 0; i < USERS; i++) {
+            User user = find(users, saved.get(i).getId());
+            int updates = OPERATIONS / USERS + (i < OPERATIONS % USERS ? 1 : 0);
+            Assertions.assertEquals(updates, Integer.parseInt(user.getName()), "Updates of " + user.getId());
+            Assertions.assertEquals(updates, user.getVersion(), "Version of " + user.getId());
+        }
+        LOG.info("Concurrent updates: {} conflicts retried", conflicts.get());
+    }
+
+    @Test
+    void concurrentSameVersionTest() {
+        User saved = createUsers().get(0);
+
+        // Copies of one user read at the same version, only the first save of them wins
+        long updated = run("same-version saves", i -> {
+            User copy = new User(saved.getUsername(), saved.getEmail(), "name-" + i);
+            copy.setId(saved.getId());
+            copy.setVersion(saved.getVersion());
+            return repository.save(copy)
+                    .onErrorResume(OptimisticLockingFailureException.class, e -> Mono.empty());
+        });
+
+        Assertions.assertEquals(1, updated);
+        StepVerifier.create(repository.findById(saved.getId()))
+                .expectNextMatches(user -> user.getVersion() == saved.getVersion() + 1 && user.getName().startsWith("name-"))
+                .verifyComplete();
+    }
+
+    @Test
+    void concurrentRenameTest() {
+        List<User> saved = createUsers();
+
+        // Users take usernames and emails from a small shared set, racing each other for them
+        run("renames", i -> Mono.defer(() -> repository.findById(saved.get(i % USERS).getId()))
+                .flatMap(user -> {
+                    user.setUsername("renamed-" + (i * 5) % NAMES);
+                    user.setEmail("renamed-" + (i * 3) % NAMES);
+                    return repository.save(user);
+                })
+                .onErrorResume(e -> e instanceof DuplicateKeyException || e instanceof OptimisticLockingFailureException,
+                        e -> Mono.empty()));
+
+        List<User> users = assertUnique();
+        Assertions.assertEquals(USERS, users.size());
+
+        // The usernames and emails given up by renames are free again, the ones held are not
+        Set<String> usernames = users.stream().map(User::getUsername).collect(Collectors.toSet());
+        Set<String> emails = users.stream().map(User::getEmail).collect(Collectors.toSet());
+        for (int i = 0; i < NAMES; i++) {
+            String name = "renamed-" + i;
+            assertSaved(new User(name, "free-" + i, "name"), !usernames.contains(name));
+            assertSaved(new User("free-" + i, name, "name"), !emails.contains(name));
+        }
+    }
+
+    private void assertSaved(User user, boolean free) {
+        if (free) {
+            StepVerifier.create(repository.save(user)).expectNextCount(1).verifyComplete();
+        } else {
+            StepVerifier.create(repository.save(user)).expectError(DuplicateKeyException.class).verify();
+        }
+    }
+
+    // Runs OPERATIONS saves CONCURRENCY at a time from all cores, returns how many completed with a user
+    private long run(String name, Function<Integer, Mono<User>> save) {
+        long start = System.nanoTime();
+        Long completed = Flux.range(0, OPERATIONS)
+                .flatMap(i -> Mono.defer(() -> save.apply(i)).subscribeOn(Schedulers.parallel()), CONCURRENCY)
+                .count()
+                .block(Duration.ofMinutes(2));
+        long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        Assertions.assertNotNull(completed);
+        LOG.info("Concurrent {} ({}): {} in {} ms ({} saves/s), {} saved",
+                name, ClassUtils.getUserClass(repository).getSimpleName(), OPERATIONS, elapsedMillis,
+                OPERATIONS * 1000 / elapsedMillis, completed);
+        return completed;
+    }
+
+    private List<User> createUsers() {
+        List<User> users = Flux.range(0, USERS)
+                .concatMap(i -> repository.save(new User("username-" + i, "email-" + i, "0")))
+                .collectList()
+                .block();
+        Assertions.assertNotNull(users);
+        return users;
+    }
+
+    // No two stored users share a username or an email
+    private List<User> assertUnique() {
+        List<User> users = repository.findAll().collectList().block();
+        Assertions.assertNotNull(users);
+        Map<String, Long> usernames = users.stream().collect(Collectors.groupingBy(User::getUsername, Collectors.counting()));
+        Map<String, Long> emails = users.stream().collect(Collectors.groupingBy(User::getEmail, Collectors.counting()));
+        Assertions.assertEquals(users.size(), usernames.size(), "Duplicate usernames: " + usernames);
+        Assertions.assertEquals(users.size(), emails.size(), "Duplicate emails: " + emails);
+        Assertions.assertEquals(users.size(), new HashSet<>(users.stream().map(User::getId).collect(Collectors.toList())).size());
+        StepVerifier.create(repository.count())
+                .expectNext((long) users.size())
+                .verifyComplete();
+        return users;
+    }
+
+    private static User find(List<User> users, String id) {
+        return users.stream().filter(user -> user.getId().equals(id)).findFirst().orElseThrow(AssertionError::new);
+    }
+}
@@ -0,0 +1,117 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+/**
+ * Checks the ids and compares the cost of the generators with the former
+ * UUID.randomUUID().toString().replaceAll("-", ""). Size the run with -Dbenchmark.ids.
+ */
+public class IdGeneratorTests {
+
+    private final static int IDS = Integer.getInteger("benchmark.ids", 200_000);
+    private final static int THREADS = 8;
+
+    @Test
+    void timeOrderedIdsTest() {
+        TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(7);
+        Instant before = Instant.now().minusMillis(1);
+
+        List<String> ids = new ArrayList<>();
+        ids.add(generator.nextId());
+        Instant after = Instant.now();
+        for (int i = 1; i < 100_000; i++) {
+            ids.add(generator.nextId());
+        }
+        List<String> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        Assertions.assertEquals(ids, sorted); // Generated in increasing order
+        Assertions.assertEquals(ids.size(), new HashSet<>(ids).size());
+        Assertions.assertTrue(ids.stream().allMatch(id -> id.length() == 26 && id.matches("[0-9A-HJKMNP-TV-Z]+")));
+
+        Instant timestamp = TimeOrderedIdGenerator.timestampOf(ids.get(0));
+        Assertions.assertFalse(timestamp.isBefore(before));
+        Assertions.assertFalse(timestamp.isAfter(after));
+
+        // Range bounds for pagination by creation time
+        Assertions.assertTrue(TimeOrderedIdGenerator.lowerBound(before).compareTo(ids.get(0)) < 0);
+        Assertions.assertTrue(TimeOrderedIdGenerator.lowerBound(Instant.now().plusSeconds(1))
+                .compareTo(ids.get(ids.size() - 1)) > 0);
+        Assertions.assertEquals(Instant.ofEpochMilli(before.toEpochMilli()),
+                TimeOrderedIdGenerator.timestampOf(TimeOrderedIdGenerator.lowerBound(before)));
+    }
+
+    @Test
+    void uuidIdsTest() {
+        String id = new UuidIdGenerator().nextId();
+        Assertions.assertTrue(id.matches("[0-9a-f]{32}"), id);
+    }
+
+    @Test
+    void idGeneratorBenchmarkTest() throws InterruptedException {
+        IdGenerator timeOrdered = new TimeOrderedIdGenerator(-1);
+        IdGenerator uuid = new UuidIdGenerator();
+        Supplier<String> former = () -> UUID.randomUUID().toString().replaceAll("-", "");
+
+        // Warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            long formerBytes = run("former uuid", former, report);
+            long uuidBytes = run("uuid", uuid::nextId, report);
+            long timeOrderedBytes = run("time-ordered", timeOrdered::nextId, report);
+            if (report) {
+                Assertions.assertTrue(uuidBytes < formerBytes);
+                Assertions.assertTrue(timeOrderedBytes < uuidBytes);
+            }
+        }
+    }
+
+    // Generates the ids on several threads, checks they are unique and returns the bytes allocated per id
+    private static long run(String name, Supplier<String> generator, boolean report) throws InterruptedException {
+        Set<String> ids = ConcurrentHashMap.newKeySet(IDS);
+        long[] allocated = new long[THREADS];
+        CountDownLatch done = new CountDownLatch(THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            new Thread(() -> {
+                String[] batch = new String[IDS / THREADS];
+                long allocatedBefore = allocatedBytes();
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = generator.get();
+                }
+                allocated[thread] = allocatedBytes() - allocatedBefore;
+                Collections.addAll(ids, batch);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        Assertions.assertEquals(IDS / THREADS * THREADS, ids.size());
+        long bytesPerId = 0;
+        for (long bytes : allocated) bytesPerId += bytes;
+        bytesPerId /= IDS;
+        if (report) {
+            System.out.printf("%s ids: %d in %d ms on %d threads (%.0f ids/s), %d bytes allocated per id%n",
+                    name, IDS, elapsed / 1_000_000, THREADS, IDS * 1e9 / elapsed, bytesPerId);
+        }
+        return bytesPerId;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,21 @@
+package com.habeebcycle.demo.api.persistence;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+// Races the saves through the in-memory repository, whose locks replace the save script
+@SpringBootTest(properties = {"app.user-expiry.sweeper-enabled=false"})
+@ActiveProfiles("in-memory")
+public class InMemoryConcurrentSaveTests extends ConcurrentSaveTests {
+
+    // Hide the Redis server of ConcurrentSaveTests, nothing to start
+    @BeforeAll
+    static void startUpRedisServer() {
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+    }
+}
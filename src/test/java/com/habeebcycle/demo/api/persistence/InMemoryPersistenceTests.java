@@ -0,0 +1,93 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.test.context.ActiveProfiles;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+
+// Runs every persistence test against the in-memory repository, without Redis, to verify it has the same semantics
+@SpringBootTest(properties = {"app.user-expiry.sweeper-enabled=false", "app.replica.enabled=true"})
+@ActiveProfiles("in-memory")
+public class InMemoryPersistenceTests extends PersistenceTests {
+
+    @Autowired
+    private UserRepository repository;
+
+    @Autowired
+    private ReplicaReads replicaReads;
+
+    @Autowired
+    private ApplicationContext context;
+
+    // Hide the Redis server of PersistenceTests, nothing to start
+    @BeforeAll
+    static void startUpRedisServer() {
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+    }
+
+    @Test
+    void redisFeaturesTest() {
+        // Backups and migrations of users stored in Redis do not exist, all reads use the in-memory users
+        Assertions.assertTrue(context.getBeansOfType(UserBackup.class).isEmpty());
+        Assertions.assertTrue(context.getBeansOfType(MigrationRunner.class).isEmpty());
+        Assertions.assertTrue(context.getBeansOfType(UserMigration.class).isEmpty());
+        Assertions.assertFalse(replicaReads.isEnabled());
+        StepVerifier.create(replicaReads.repository()).expectNext(repository).verifyComplete();
+    }
+
+    @Test
+    void expiredUserCountTest() throws InterruptedException {
+        User user = new User("username-count", "email-count", "name");
+        StepVerifier.create(repository.save(user, Duration.ofMillis(100)))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        Thread.sleep(200);
+
+        // Past its expiry the user no longer exists nor counts, even before the sweeper removes it
+        StepVerifier.create(repository.existsById(user.getId()))
+                .expectNext(false)
+                .verifyComplete();
+        StepVerifier.create(repository.count())
+                .expectNext(1L)
+                .verifyComplete();
+    }
+
+    @Test
+    void concurrentCreateTest() {
+        // Only one of the users racing for the same username is created
+        List<Boolean> created = Flux.range(0, 64)
+                .flatMap(i -> Mono.defer(() -> repository.save(new User("racing", "racing-" + i, "name")))
+                        .subscribeOn(Schedulers.parallel())
+                        .thenReturn(true)
+                        .onErrorResume(DuplicateKeyException.class, e -> Mono.just(false)))
+                .collectList()
+                .block();
+        Assertions.assertNotNull(created);
+        Assertions.assertEquals(1, created.stream().filter(c -> c).count());
+
+        StepVerifier.create(repository.findByUsername("racing"))
+                .expectNextMatches(user -> user.getEmail().startsWith("racing-"))
+                .verifyComplete();
+        StepVerifier.create(repository.count())
+                .expectNext(2L)
+                .verifyComplete();
+    }
+}
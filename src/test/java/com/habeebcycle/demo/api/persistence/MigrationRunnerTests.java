@@ -0,0 +1,294 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import redis.embedded.RedisServer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.user-expiry.sweeper-enabled=false",
+                "app.migration.batch-size=100",
+                "app.migration.resume-on-startup=false",
+                "management.endpoints.web.exposure.include=migrations"
+        }
+)
+public class MigrationRunnerTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    private final static int USERS = 2_000;
+
+    @Autowired
+    private UserRepository repository;
+
+    @Autowired
+    private MigrationRunner migrationRunner;
+
+    @Autowired
+    private ReactiveRedisOperations<String, User> redisOperations;
+
+    @Autowired
+    private ReactiveStringRedisTemplate redisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private WebTestClient client;
+
+    private final TenantKeys keys = TenantKeys.of(TenantKeys.DEFAULT_TENANT);
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUpDB() {
+        StepVerifier.create(repository.deleteAll()).verifyComplete();
+        StepVerifier.create(repository.deleteAll().contextWrite(TenantKeys.withTenant("tenant-a"))).verifyComplete();
+        redisTemplate.keys("MIGRATIONS:*").flatMap(redisTemplate::delete).blockLast();
+    }
+
+    @Test
+    void versionsIndexTest() {
+        saveUsers(USERS, TenantKeys.DEFAULT_TENANT);
+        saveUsers(USERS / 2, "tenant-a");
+        Map<String, String> versions = hash(keys.getVersions());
+        Map<String, String> tenantVersions = hash(TenantKeys.of("tenant-a").getVersions());
+        redisTemplate.delete(keys.getVersions(), TenantKeys.of("tenant-a").getVersions()).block();
+
+        MigrationRunner.Progress progress = migrationRunner.start("versions-index").block();
+        Assertions.assertNotNull(progress);
+        Assertions.assertEquals(USERS + USERS / 2, progress.getTotal());
+        awaitState(migrationRunner, "versions-index", "completed");
+
+        Assertions.assertEquals(USERS + USERS / 2, progress.getProcessed());
+        Assertions.assertEquals(progress.getSegments(), progress.getSegmentsDone());
+        Assertions.assertEquals(versions, hash(keys.getVersions()));
+        Assertions.assertEquals(tenantVersions, hash(TenantKeys.of("tenant-a").getVersions()));
+        System.out.printf("Migration versions-index: %s%n", progress);
+
+        // Completed, the next start runs it again from the beginning
+        MigrationRunner.Progress again = migrationRunner.start("versions-index").block();
+        Assertions.assertNotNull(again);
+        awaitState(migrationRunner, "versions-index", "completed");
+        Assertions.assertEquals(USERS + USERS / 2, again.getProcessed());
+    }
+
+    @Test
+    void uniqueIndexTest() {
+        saveUsers(USERS / 2, TenantKeys.DEFAULT_TENANT);
+        Map<String, String> claims = hash(keys.getUnique());
+        Assertions.assertEquals(4 * USERS / 2, claims.size());
+
+        // Stored before the save script claimed usernames and emails, one claimed since then is kept
+        redisTemplate.delete(keys.getUnique(), keys.getUniqueReady()).block();
+        User user = repository.save(new User("username", "email", "name")).block();
+        Assertions.assertNotNull(user);
+        StepVerifier.create(redisTemplate.hasKey(keys.getUniqueReady())).expectNext(false).verifyComplete();
+
+        migrationRunner.start("unique-index").block();
+        awaitState(migrationRunner, "unique-index", "completed");
+        StepVerifier.create(redisTemplate.hasKey(keys.getUniqueReady())).expectNext(true).verifyComplete();
+
+        claims.put("username:username", user.getId());
+        claims.put("email:email", user.getId());
+        claims.put("id:" + user.getId() + ":username", "username");
+        claims.put("id:" + user.getId() + ":email", "email");
+        Assertions.assertEquals(claims, hash(keys.getUnique()));
+    }
+
+    @Test
+    void rewriteUsersTest() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            name.append("name ").append(i % 10).append(' ');
+        }
+        User user = repository.save(new User("username", "email", name.toString())).block();
+        Assertions.assertNotNull(user);
+        saveUsers(100, TenantKeys.DEFAULT_TENANT);
+        int compressed = redisOperations.getSerializationContext().getHashValueSerializationPair().write(user).remaining();
+        String bytes = redisTemplate.opsForValue().get(keys.getBytes()).block();
+        Assertions.assertNotNull(bytes);
+
+        // Stored as plain JSON, as it was before compression was enabled
+        byte[] json = new GenericJackson2JsonRedisSerializer().serialize(user);
+        Assertions.assertNotNull(json);
+        redisTemplate.opsForHash().put(keys.getUsers(), user.getId(), new String(json, StandardCharsets.UTF_8)).block();
+        Assertions.assertTrue(json.length > compressed);
+        redisTemplate.opsForValue().increment(keys.getBytes(), json.length - compressed).block();
+
+        migrationRunner.start("rewrite-users").block();
+        awaitState(migrationRunner, "rewrite-users", "completed");
+
+        // Compressed again, the bytes counter is back to the compressed size
+        Assertions.assertEquals(bytes, redisTemplate.opsForValue().get(keys.getBytes()).block());
+        StepVerifier.create(repository.findById(user.getId()))
+                .expectNextMatches(found -> found.getName().equals(user.getName()))
+                .verifyComplete();
+    }
+
+    @Test
+    void storedBytesTest() {
+        saveUsers(USERS / 2, TenantKeys.DEFAULT_TENANT);
+        String bytes = redisTemplate.opsForValue().get(keys.getBytes()).block();
+        Assertions.assertNotNull(bytes);
+
+        // Stored before the counter existed, one saved and one deleted since are counted by their scripts
+        redisTemplate.delete(keys.getBytes()).block();
+        migrationRunner.start("stored-bytes").block();
+        User user = repository.save(new User("username", "email", "name")).block();
+        Assertions.assertNotNull(user);
+        StepVerifier.create(repository.deleteById(user.getId())).verifyComplete();
+        awaitState(migrationRunner, "stored-bytes", "completed");
+
+        Assertions.assertEquals(bytes, redisTemplate.opsForValue().get(keys.getBytes()).block());
+        StepVerifier.create(redisTemplate.hasKey(keys.getBytesCounted())).expectNext(false).verifyComplete();
+    }
+
+    @Test
+    void resumeTest() {
+        saveUsers(USERS, TenantKeys.DEFAULT_TENANT);
+
+        // Fails on its third batch, after two were checkpointed
+        AtomicInteger batches = new AtomicInteger();
+        Set<String> migrated = ConcurrentHashMap.newKeySet();
+        UserMigration failing = migration((keys, batch) -> batches.incrementAndGet() == 3
+                ? Mono.error(new IllegalStateException("failed"))
+                : Mono.fromRunnable(() -> migrated.addAll(batch.getIds())));
+        MigrationRunner runner = runner(failing);
+        runner.start("test").block();
+        awaitState(runner, "test", "failed");
+        int before = migrated.size();
+        Assertions.assertTrue(before > 0 && before < USERS);
+
+        // Another instance resumes from the checkpoints, without the batches done already
+        Set<String> resumed = ConcurrentHashMap.newKeySet();
+        MigrationRunner other = runner(migration((keys, batch) -> Mono.fromRunnable(() -> resumed.addAll(batch.getIds()))));
+        MigrationRunner.Progress progress = other.start("test").block();
+        Assertions.assertNotNull(progress);
+        awaitState(other, "test", "completed");
+
+        Assertions.assertEquals(USERS, progress.getProcessed());
+        Assertions.assertEquals(USERS - before, resumed.size());
+        migrated.addAll(resumed);
+        Assertions.assertEquals(USERS, migrated.size());
+    }
+
+    @Test
+    void lockTest() {
+        saveUsers(USERS, TenantKeys.DEFAULT_TENANT);
+        String lockKey = "MIGRATIONS:test:LOCK";
+
+        // Extended while it runs, for longer than the lock ttl
+        MigrationRunner runner = runner(migration((keys, batch) -> Mono.delay(Duration.ofMillis(50)).then()));
+        runner.start("test").block();
+        Mono.delay(Duration.ofMillis(600)).block();
+        StepVerifier.create(redisTemplate.hasKey(lockKey)).expectNext(true).verifyComplete();
+
+        // Taken over by another instance, it stops without touching the other lock or the state
+        redisTemplate.opsForValue().set(lockKey, "other-instance").block();
+        awaitState(runner, "test", "failed");
+        Assertions.assertEquals("other-instance", redisTemplate.opsForValue().get(lockKey).block());
+        Assertions.assertEquals("running", redisTemplate.<String, String>opsForHash().get("MIGRATIONS:test", "state").block());
+
+        // Resumed once the lock of the other instance expired
+        redisTemplate.expire(lockKey, Duration.ofMillis(300)).block();
+        MigrationRunner other = runner(migration((keys, batch) -> Mono.empty()));
+        other.resume();
+        try {
+            awaitState(other, "test", "completed");
+            StepVerifier.create(redisTemplate.hasKey(lockKey)).expectNext(false).verifyComplete();
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    void alreadyRunningTest() {
+        redisTemplate.opsForValue().set("MIGRATIONS:versions-index:LOCK", "other-instance").block();
+
+        StepVerifier.create(migrationRunner.start("versions-index"))
+                .expectError(IllegalStateException.class)
+                .verify();
+        StepVerifier.create(migrationRunner.start("unknown"))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+
+        client.post().uri("/actuator/migrations/versions-index")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.BAD_REQUEST);
+        client.get().uri("/actuator/migrations")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.migrations").value(migrations ->
+                        Assertions.assertTrue(migrations.toString().contains("rewrite-users")));
+    }
+
+    private void saveUsers(int users, String tenant) {
+        Flux.range(0, users)
+                .flatMap(i -> repository.save(new User(tenant + "username" + i, tenant + "email" + i, "name" + i)), 64)
+                .contextWrite(TenantKeys.withTenant(tenant))
+                .blockLast();
+    }
+
+    private MigrationRunner runner(UserMigration migration) {
+        return new MigrationRunner(redisOperations, redisTemplate, meterRegistry,
+                Collections.singletonList(migration), 100, 1, 1, 0, true, Duration.ofMillis(300));
+    }
+
+    private static UserMigration migration(java.util.function.BiFunction<TenantKeys, MigrationBatch, Mono<Void>> migrate) {
+        return new UserMigration() {
+            @Override
+            public String getName() {
+                return "test";
+            }
+
+            @Override
+            public Mono<Void> migrate(TenantKeys keys, MigrationBatch batch) {
+                return migrate.apply(keys, batch);
+            }
+        };
+    }
+
+    private static void awaitState(MigrationRunner runner, String name, String state) {
+        Flux.interval(Duration.ofMillis(10))
+                .filter(tick -> runner.getProgress().stream()
+                        .anyMatch(progress -> progress.getName().equals(name) && progress.getState().equals(state)))
+                .blockFirst(Duration.ofSeconds(30));
+    }
+
+    private Map<String, String> hash(String key) {
+        return redisTemplate.<String, String>opsForHash().entries(key)
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .block();
+    }
+}
@@ -12,8 +12,11 @@ import org.springframework.dao.OptimisticLockingFailureException;
 import reactor.test.StepVerifier;
 import redis.embedded.RedisServer;
 
+import java.time.Duration;
+import java.util.Arrays;
+
 //@DataRedisTest(properties = {"spring.redis.password="})
-@SpringBootTest(properties = {"spring.redis.password="})
+@SpringBootTest(properties = {"spring.redis.password=", "app.user-expiry.sweeper-enabled=false"})
 public class  PersistenceTests {
 
     private final static RedisServer REDISSERVER = new RedisServer(6379);
@@ -233,6 +236,104 @@ public class  PersistenceTests {
                 .verifyComplete();
     }
 
+    @Test
+    void rejectedSaveTest() throws InterruptedException {
+        User stale = repository.findById(savedUser.getId()).block();
+        Assertions.assertNotNull(stale);
+        savedUser.setName("updated-name");
+        StepVerifier.create(repository.save(savedUser)).expectNextCount(1).verifyComplete();
+
+        // A refused save schedules no expiry, neither for the user it lost to nor for a new one
+        stale.setName("stale-name");
+        StepVerifier.create(repository.save(stale, Duration.ofMillis(100)))
+                .expectError(OptimisticLockingFailureException.class)
+                .verify();
+        StepVerifier.create(repository.save(new User("username", "other-email", "name"), Duration.ofMillis(100)))
+                .expectError(DuplicateKeyException.class)
+                .verify();
+        Thread.sleep(300);
+
+        StepVerifier.create(repository.findById(savedUser.getId()))
+                .expectNextMatches(foundUser -> foundUser.getName().equals("updated-name"))
+                .verifyComplete();
+    }
+
+    @Test
+    void expiryTest() throws InterruptedException {
+        User user = new User("username-ttl", "email-ttl", "name");
+
+        // Save with a short time to live and verify it can be read before it elapses
+        StepVerifier.create(repository.save(user, Duration.ofMillis(300)))
+                .expectNextMatches(createdUser -> assertEqualUser(user, createdUser))
+                .verifyComplete();
+        StepVerifier.create(repository.findById(user.getId()))
+                .expectNextMatches(foundUser -> assertEqualUser(user, foundUser))
+                .verifyComplete();
+
+        Thread.sleep(500);
+
+        // Expired users are no longer returned even before the sweeper removes them
+        StepVerifier.create(repository.findById(user.getId()))
+                .verifyComplete();
+        StepVerifier.create(repository.findAll())
+                .expectNextMatches(foundUser -> assertEqualUser(savedUser, foundUser))
+                .verifyComplete();
+        StepVerifier.create(repository.findAllById(Arrays.asList(user.getId(), savedUser.getId())))
+                .expectNextMatches(foundUser -> assertEqualUser(savedUser, foundUser))
+                .verifyComplete();
+
+        // Its username and email are free again for another user
+        User newUser = new User("username-ttl", "email-ttl", "new name");
+        StepVerifier.create(repository.save(newUser))
+                .expectNextMatches(createdUser -> assertEqualUser(newUser, createdUser))
+                .verifyComplete();
+
+        // Only the expired user is evicted, savedUser and newUser have no expiry.
+        // The sweeper of another cached test context may have been faster.
+        StepVerifier.create(repository.evictExpired(100))
+                .expectNextMatches(removed -> removed <= 1L)
+                .verifyComplete();
+        StepVerifier.create(repository.evictExpired(100))
+                .expectNext(0L)
+                .verifyComplete();
+        StepVerifier.create(repository.count())
+                .expectNext(2L)
+                .verifyComplete();
+
+        // The eviction left the claims taken over by newUser alone
+        StepVerifier.create(repository.findByUsername("username-ttl"))
+                .expectNextMatches(foundUser -> assertEqualUser(newUser, foundUser))
+                .verifyComplete();
+        StepVerifier.create(repository.save(new User("username-ttl", "email-other", "name")))
+                .expectError(DuplicateKeyException.class)
+                .verify();
+    }
+
+    @Test
+    void expiredUserStoredAgainTest() throws InterruptedException {
+        User user = new User("username-again", "email-again", "name");
+
+        StepVerifier.create(repository.save(user, Duration.ofMillis(300)))
+                .expectNextMatches(createdUser -> assertEqualUser(user, createdUser))
+                .verifyComplete();
+
+        Thread.sleep(500);
+
+        // Stored again without a ttl before the sweeper ran, the user does not keep its former expiry
+        StepVerifier.create(repository.save(user))
+                .expectNextMatches(createdUser -> assertEqualUser(user, createdUser))
+                .verifyComplete();
+        StepVerifier.create(repository.findById(user.getId()))
+                .expectNextMatches(foundUser -> assertEqualUser(user, foundUser))
+                .verifyComplete();
+        StepVerifier.create(repository.evictExpired(100))
+                .expectNext(0L)
+                .verifyComplete();
+        StepVerifier.create(repository.findById(user.getId()))
+                .expectNextMatches(foundUser -> assertEqualUser(user, foundUser))
+                .verifyComplete();
+    }
+
     // Personal method used in the tests above to compare the User entity.
     private boolean assertEqualUser(User expectedUser, User actualUser) {
         Assertions.assertEquals(expectedUser.getId(), actualUser.getId());
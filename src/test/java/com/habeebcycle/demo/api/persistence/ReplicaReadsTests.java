@@ -0,0 +1,106 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.filter.ConsistencyTokenFilter;
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.service.UserService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Mono;
+import redis.embedded.RedisServer;
+
+import java.time.Duration;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.user-expiry.sweeper-enabled=false",
+                "app.replica.enabled=true",
+                "app.replica.port=6380",
+                "app.replica.offset-refresh-interval=20ms"
+        }
+)
+public class ReplicaReadsTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+    private final static RedisServer REPLICA = RedisServer.builder().port(6380).slaveOf("localhost", 6379).build();
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private ReplicaReads replicaReads;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+        REPLICA.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REPLICA.stop();
+        REDISSERVER.stop();
+    }
+
+    @Test
+    void readYourWritesTest() {
+        User user = client.post()
+                .uri("/user")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Mono.just(new User("username", "email", "name")), User.class)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().exists(ConsistencyTokenFilter.CONSISTENCY_TOKEN_HEADER)
+                .returnResult(User.class)
+                .getResponseBody()
+                .blockFirst();
+        Assertions.assertNotNull(user);
+
+        // A replica behind the token is not used, the primary has the user
+        double primaryReads = reads("primary");
+        getUser(user.getId(), Long.MAX_VALUE).jsonPath("$.username").isEqualTo("username");
+        Assertions.assertEquals(primaryReads + 1, reads("primary"));
+
+        // Once the replica caught up with the write, it serves the read
+        long token = replicaReads.token().block();
+        Mono.fromCallable(replicaReads::getReplicaOffset)
+                .filter(offset -> offset >= token)
+                .repeatWhenEmpty(attempts -> attempts.delayElements(Duration.ofMillis(20)))
+                .block(Duration.ofSeconds(10));
+        double replicaReadsBefore = reads("replica");
+        getUser(user.getId(), token).jsonPath("$.username").isEqualTo("username");
+        Assertions.assertEquals(replicaReadsBefore + 1, reads("replica"));
+
+        client.get().uri("/user/" + user.getId())
+                .header(ConsistencyTokenFilter.CONSISTENCY_TOKEN_HEADER, "not-a-token")
+                .exchange()
+                .expectStatus().isBadRequest();
+
+        userService.deleteAllUsers().block();
+    }
+
+    private WebTestClient.BodyContentSpec getUser(String id, long token) {
+        return client.get()
+                .uri("/user/" + id)
+                .header(ConsistencyTokenFilter.CONSISTENCY_TOKEN_HEADER, String.valueOf(token))
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody();
+    }
+
+    private double reads(String target) {
+        return meterRegistry.get("users.reads").tag("target", target).counter().count();
+    }
+}
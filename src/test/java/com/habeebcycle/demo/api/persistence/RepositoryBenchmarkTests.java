@@ -0,0 +1,140 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.junit.jupiter.api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import redis.embedded.RedisServer;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs the same mix of reads and updates through the reactive and the blocking repository and logs
+ * throughput, latency percentiles and allocated bytes. Only run by mvn test -Pbenchmark, size the run
+ * with -Dbenchmark.operations.
+ */
+@Tag("benchmark")
+@SpringBootTest(properties = {"spring.redis.password=", "app.user-expiry.sweeper-enabled=false"})
+public class RepositoryBenchmarkTests {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryBenchmarkTests.class);
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    private final static int USERS = 200;
+    private final static int OPERATIONS = Integer.getInteger("benchmark.operations", 5_000);
+    private final static int CONCURRENCY = 64;
+
+    @Autowired
+    private ReactiveRedisOperations<String, User> redisOperations;
+
+    @Autowired
+    private RedisTemplate<String, User> userRedisTemplate;
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private UserChangeLog changeLog;
+
+    @Autowired
+    private UserBloomFilter bloomFilter;
+
+    @Autowired
+    private TenantQuota quota;
+
+    @Autowired
+    private IdGenerator idGenerator;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @Test
+    void reactiveVsBlockingBenchmarkTest() {
+        UserRepository reactive = new UserRepoImpl(redisOperations, changeLog, bloomFilter, quota, idGenerator,
+                Duration.ZERO, Duration.ofHours(1), Duration.ofSeconds(30));
+        BlockingUserRepoImpl blocking = new BlockingUserRepoImpl(userRedisTemplate, stringRedisTemplate, changeLog,
+                bloomFilter, quota, idGenerator, Duration.ZERO, Duration.ofHours(1), Duration.ofSeconds(30), CONCURRENCY);
+        try {
+            // Warm up both paths, then measure each one on the same data set
+            run("reactive", reactive, false);
+            run("blocking", blocking, false);
+            run("reactive", reactive, true);
+            run("blocking", blocking, true);
+        } finally {
+            blocking.dispose();
+        }
+    }
+
+    private void run(String name, UserRepository repository, boolean report) {
+        repository.deleteAll().block();
+        List<String> ids = Flux.range(0, USERS)
+                .concatMap(i -> repository.save(new User("username" + i, "email" + i, "name" + i)))
+                .map(User::getId)
+                .collectList()
+                .block();
+        Assertions.assertNotNull(ids);
+
+        long[] latencies = new long[OPERATIONS];
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        // 90% reads by id, 10% updates of the name (which re-read the stored version)
+        Flux.range(0, OPERATIONS)
+                .flatMap(i -> {
+                    String id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+                    Mono<User> operation = i % 10 == 0
+                            ? repository.findById(id).flatMap(u -> {
+                                u.setName("name-" + i);
+                                return repository.save(u);
+                            }).onErrorResume(e -> Mono.empty()) // Concurrent updates of one user may conflict
+                            : repository.findById(id);
+                    return Mono.defer(() -> {
+                        long operationStart = System.nanoTime();
+                        return operation.doFinally(s -> latencies[i] = System.nanoTime() - operationStart);
+                    });
+                }, CONCURRENCY)
+                .blockLast();
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        if (report) {
+            Arrays.sort(latencies);
+            LOG.info("{} repository: {} ops in {} ms ({} ops/s), p50 {} us, p99 {} us, max {} us, ~{} KB allocated",
+                    name, OPERATIONS, elapsed / 1_000_000, Math.round(OPERATIONS * 1e9 / elapsed),
+                    latencies[OPERATIONS / 2] / 1_000, latencies[OPERATIONS * 99 / 100] / 1_000,
+                    latencies[OPERATIONS - 1] / 1_000, allocated / 1024);
+        }
+        repository.deleteAll().block();
+    }
+
+    // Bytes allocated so far by the live threads, threads that die during a run are not accounted
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) total += allocated;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,182 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import io.lettuce.core.protocol.CommandHandler;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+import io.lettuce.core.resource.NettyCustomizer;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the commands and round trips a save costs on the wire. Commands written while an earlier
+ * one still waits for its response share its round trip, so this measures how much of the save is
+ * sequential.
+ */
+@SpringBootTest(properties = {"spring.redis.password=", "app.user-expiry.sweeper-enabled=false"})
+public class SaveRoundTripTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    private final static CommandCounter COUNTER = new CommandCounter();
+
+    @Autowired
+    private ReactiveRedisOperations<String, User> redisOperations;
+
+    @Autowired
+    private UserChangeLog changeLog;
+
+    @Autowired
+    private UserBloomFilter bloomFilter;
+
+    @Autowired
+    private TenantQuota quota;
+
+    @Autowired
+    private IdGenerator idGenerator;
+
+    private ClientResources clientResources;
+    private LettuceConnectionFactory connectionFactory;
+    private UserRepoImpl repository;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        clientResources = DefaultClientResources.builder()
+                .nettyCustomizer(COUNTER)
+                .build();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("localhost", 6379),
+                LettuceClientConfiguration.builder().clientResources(clientResources).build());
+        connectionFactory.afterPropertiesSet();
+
+        repository = new UserRepoImpl(
+                new ReactiveRedisTemplate<>(connectionFactory, redisOperations.getSerializationContext()),
+                changeLog, bloomFilter, quota, idGenerator, Duration.ZERO, Duration.ofHours(1),
+                Duration.ofSeconds(30));
+        repository.deleteAll().block();
+    }
+
+    @AfterEach
+    void tearDown() {
+        connectionFactory.destroy();
+        clientResources.shutdown();
+    }
+
+    @Test
+    void createRoundTripsTest() {
+        repository.save(new User("username0", "email0", "name0")).block();
+
+        COUNTER.reset();
+        User user = repository.save(new User("username", "email", "name")).block();
+        Assertions.assertNotNull(user);
+        print("create", COUNTER);
+
+        // Uniqueness checks, then the writes
+        Assertions.assertTrue(COUNTER.roundTrips.get() <= 2);
+    }
+
+    @Test
+    void updateRoundTripsTest() {
+        User user = repository.save(new User("username", "email", "name")).block();
+        Assertions.assertNotNull(user);
+        user.setName("updated-name");
+        user = repository.save(user).block(); // Loads the lookup script on this connection
+        Assertions.assertNotNull(user);
+
+        user.setUsername("updated-username");
+        user.setEmail("updated-email");
+        COUNTER.reset();
+        User updated = repository.save(user).block();
+        Assertions.assertNotNull(updated);
+        Assertions.assertEquals(2, updated.getVersion());
+        print("update", COUNTER);
+
+        // Version read and uniqueness checks together, then the writes
+        Assertions.assertTrue(COUNTER.roundTrips.get() <= 2);
+    }
+
+    @Test
+    void unchangedUpdateRoundTripsTest() {
+        User user = repository.save(new User("username", "email", "name")).block();
+        Assertions.assertNotNull(user);
+        user.setName("updated-name");
+        user = repository.save(user).block(); // Loads the lookup script on this connection
+        Assertions.assertNotNull(user);
+
+        // The user holds its username and email already, the Bloom filter cannot rule them out
+        user.setName("other-name");
+        COUNTER.reset();
+        User updated = repository.save(user).block();
+        Assertions.assertNotNull(updated);
+        Assertions.assertEquals(2, updated.getVersion());
+        print("unchanged update", COUNTER);
+
+        // Version read and claims lookup together, then the writes, no scan of the other users
+        Assertions.assertTrue(COUNTER.roundTrips.get() <= 2);
+    }
+
+    private static void print(String operation, CommandCounter counter) {
+        System.out.printf("Save (%s): %d commands in %d round trips%n",
+                operation, counter.commands.get(), counter.roundTrips.get());
+    }
+
+    // Sits next to the socket where every write is one encoded command. Responses are handed on with a
+    // delay, like over a network, and a command written while no other one waits for its response
+    // starts a new round trip
+    static class CommandCounter implements NettyCustomizer {
+
+        private final static long LATENCY_MILLIS = 5;
+
+        private final AtomicInteger commands = new AtomicInteger();
+        private final AtomicInteger roundTrips = new AtomicInteger();
+
+        void reset() {
+            commands.set(0);
+            roundTrips.set(0);
+        }
+
+        @Override
+        public void afterChannelInitialized(Channel channel) {
+            channel.pipeline().addFirst(new ChannelDuplexHandler() {
+
+                @Override
+                public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                    commands.incrementAndGet();
+                    if (ctx.pipeline().get(CommandHandler.class).getStack().isEmpty()) {
+                        roundTrips.incrementAndGet();
+                    }
+                    super.write(ctx, msg, promise);
+                }
+
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    ctx.executor().schedule(() -> ctx.fireChannelRead(msg), LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.user-expiry.sweeper-enabled=false",
+                "app.backup.directory=target/test-backups",
+                "app.backup.batch-size=500",
+                "management.endpoints.web.exposure.include=backups"
+        }
+)
+public class UserBackupTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    private final static int USERS = Integer.getInteger("benchmark.backup.users", 20_000);
+
+    @Autowired
+    private UserRepository repository;
+
+    @Autowired
+    private UserBackup backup;
+
+    @Autowired
+    private ReactiveStringRedisTemplate redisTemplate;
+
+    @Autowired
+    private WebTestClient client;
+
+    private final TenantKeys keys = TenantKeys.of(TenantKeys.DEFAULT_TENANT);
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUpDB() {
+        StepVerifier.create(repository.deleteAll()).verifyComplete();
+    }
+
+    @Test
+    void exportRestoreTest() {
+        Flux.range(0, USERS)
+                .flatMap(i -> i % 10 == 0
+                        ? repository.save(new User("username" + i, "email" + i, "name" + i), Duration.ofHours(1))
+                        : repository.save(new User("username" + i, "email" + i, "name" + i)), 64)
+                .blockLast();
+        User updated = repository.findAll().blockFirst();
+        Assertions.assertNotNull(updated);
+        updated.setName("updated-name");
+        updated = repository.save(updated).block();
+        Assertions.assertNotNull(updated);
+
+        Map<String, String> versions = hash(keys.getVersions());
+        String bytes = redisTemplate.opsForValue().get(keys.getBytes()).block();
+        Long expiring = redisTemplate.opsForZSet().size(keys.getExpiry()).block();
+
+        UserBackup.Result exported = backup.export("users").block();
+        Assertions.assertNotNull(exported);
+        Assertions.assertEquals(USERS, exported.getUsers());
+        print("export", exported);
+
+        // Accidental deleteAll, then everything comes back
+        StepVerifier.create(repository.deleteAll()).verifyComplete();
+        UserBackup.Result restored = backup.restore("users").block();
+        Assertions.assertNotNull(restored);
+        Assertions.assertEquals(USERS, restored.getUsers());
+        print("restore", restored);
+
+        StepVerifier.create(repository.count()).expectNext((long) USERS).verifyComplete();
+        StepVerifier.create(repository.findById(updated.getId()))
+                .expectNextMatches(user -> user.getName().equals("updated-name") && user.getVersion() == 1)
+                .verifyComplete();
+        Assertions.assertEquals(versions, hash(keys.getVersions()));
+        Assertions.assertEquals(bytes, redisTemplate.opsForValue().get(keys.getBytes()).block());
+        Assertions.assertEquals(expiring, redisTemplate.opsForZSet().size(keys.getExpiry()).block());
+
+        // The Bloom filter knows the restored users again
+        StepVerifier.create(repository.save(new User("username1", "other", "name")))
+                .expectError(DuplicateKeyException.class)
+                .verify();
+    }
+
+    @Test
+    void corruptedBackupTest() throws IOException {
+        repository.save(new User("username", "email", "name")).block();
+        backup.export("corrupted").block();
+
+        Path file = Paths.get("target/test-backups/corrupted");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 4);
+        }
+        // The trailer is missing, the restore fails before anything is deleted
+        StepVerifier.create(backup.restore("corrupted")).expectError().verify();
+        StepVerifier.create(repository.count()).expectNext(1L).verifyComplete();
+
+        // A file that is not a backup is refused before anything is deleted
+        Files.write(file, "not a backup".getBytes());
+        repository.save(new User("other", "other", "name")).block();
+        StepVerifier.create(backup.restore("corrupted")).expectError().verify();
+        StepVerifier.create(repository.count()).expectNext(2L).verifyComplete();
+
+        // A block length over the largest block written is refused before it is allocated
+        backup.export("corrupted").block();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), 12);
+        }
+        StepVerifier.create(backup.restore("corrupted"))
+                .expectErrorMatches(e -> e.getMessage().contains("Backup is corrupted"))
+                .verify();
+        StepVerifier.create(repository.count()).expectNext(2L).verifyComplete();
+
+        StepVerifier.create(backup.export("../outside")).expectError(IllegalArgumentException.class).verify();
+    }
+
+    @Test
+    void backupEndpointTest() {
+        repository.save(new User("username", "email", "name")).block();
+
+        client.post().uri("/actuator/backups/endpoint")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Collections.singletonMap("operation", "export"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.users").isEqualTo(1);
+
+        client.get().uri("/actuator/backups")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$[?(@.name == 'endpoint')]").exists();
+
+        repository.deleteAll().block();
+        client.post().uri("/actuator/backups/endpoint")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Collections.singletonMap("operation", "restore"))
+                .exchange()
+                .expectStatus().isOk();
+        StepVerifier.create(repository.count()).expectNext(1L).verifyComplete();
+
+        client.post().uri("/actuator/backups/missing")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Collections.singletonMap("operation", "restore"))
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.BAD_REQUEST);
+
+        // Only the tenants served by the API
+        Map<String, String> unknownTenant = new HashMap<>();
+        unknownTenant.put("operation", "restore");
+        unknownTenant.put("tenant", "unknown");
+        client.post().uri("/actuator/backups/endpoint")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(unknownTenant)
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.BAD_REQUEST);
+    }
+
+    private Map<String, String> hash(String key) {
+        return redisTemplate.<String, String>opsForHash().entries(key)
+                .collectMap(Map.Entry::getKey, Map.Entry::getValue)
+                .block();
+    }
+
+    private static void print(String operation, UserBackup.Result result) {
+        System.out.printf("Backup %s: %d users, %d bytes in %d ms (%.0f users/s)%n", operation, result.getUsers(),
+                result.getSize(), result.getElapsedMillis(),
+                result.getUsers() * 1000.0 / Math.max(1, result.getElapsedMillis()));
+    }
+}
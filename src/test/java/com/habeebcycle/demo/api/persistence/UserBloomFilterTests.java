@@ -0,0 +1,160 @@
+package com.habeebcycle.demo.api.persistence;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import redis.embedded.RedisServer;
+
+import java.time.Duration;
+
+@SpringBootTest(properties = {"spring.redis.password=", "app.user-expiry.sweeper-enabled=false",
+        "app.bloom-filter.redis-enabled=true", "app.bloom-filter.expected-users=1000"})
+public class UserBloomFilterTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    @Autowired
+    private UserRepository repository;
+
+    @Autowired
+    private UserBloomFilter bloomFilter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ReactiveRedisOperations<String, User> redisOperations;
+
+    @Autowired
+    private ReactiveStringRedisTemplate redisTemplate;
+
+    private final TenantKeys keys = TenantKeys.of(TenantKeys.DEFAULT_TENANT);
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUpDB() {
+        StepVerifier.create(repository.deleteAll()).verifyComplete();
+    }
+
+    @Test
+    void falsePositiveRateTest() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (int i = 0; i < 10_000; i++) {
+            filter.put(filter.offsets("value" + i));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            Assertions.assertTrue(filter.mightContain(filter.offsets("value" + i)));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain(filter.offsets("other" + i))) falsePositives++;
+        }
+        System.out.printf("Bloom filter: %d bits, %d hashes, %.4f false positive rate (%.4f expected)%n",
+                filter.getBits(), filter.getHashes(), falsePositives / 100_000.0,
+                filter.expectedFalsePositiveProbability());
+        Assertions.assertTrue(falsePositives < 2_000);
+    }
+
+    @Test
+    void redisBloomFilterTest() {
+        // Waits for the rebuild started with the application
+        StepVerifier.create(bloomFilter.mightContain(keys, "username", "email@aol.com").repeat()
+                .filter(mightContain -> !mightContain).next())
+                .expectNext(false)
+                .expectComplete()
+                .verify(Duration.ofSeconds(10));
+
+        StepVerifier.create(repository.save(new User("username", "email@aol.com", "name")))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        StepVerifier.create(bloomFilter.mightContainUsername(keys, "username")).expectNext(true).verifyComplete();
+        StepVerifier.create(bloomFilter.mightContainEmail(keys, "email@aol.com")).expectNext(true).verifyComplete();
+        StepVerifier.create(bloomFilter.mightContainUsername(keys, "email@aol.com")).expectNext(false).verifyComplete();
+        StepVerifier.create(repository.existsByUsername("unknown")).expectNext(false).verifyComplete();
+
+        // Values the filter cannot rule out are still checked against all users
+        StepVerifier.create(repository.save(new User("username", "other@aol.com", "name")))
+                .expectError(DuplicateKeyException.class)
+                .verify();
+        StepVerifier.create(repository.save(new User("other", "other@aol.com", "name")))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        Assertions.assertTrue(meterRegistry.get("users.bloom.lookups").tag("result", "negative").counter().count() > 0);
+        Assertions.assertNotNull(meterRegistry.get("users.bloom.false.positive.rate").gauge());
+
+        // Deleting all users starts over with an empty filter
+        StepVerifier.create(repository.deleteAll()).verifyComplete();
+        StepVerifier.create(bloomFilter.mightContainUsername(keys, "username")).expectNext(false).verifyComplete();
+    }
+
+    @Test
+    void partialRebuildTest() {
+        User added = new User("added", "added@aol.com", "name");
+        User missing = new User("missing", "missing@aol.com", "name");
+        StepVerifier.create(repository.save(added)).expectNextCount(1).verifyComplete();
+        StepVerifier.create(repository.save(missing)).expectNextCount(1).verifyComplete();
+
+        // A build cut short: the bitset only holds one user and was never marked complete
+        StepVerifier.create(redisTemplate.delete(keys.getBloom(), keys.getBloomReady())).expectNextCount(1).verifyComplete();
+        StepVerifier.create(bloomFilter.add(keys, added)).verifyComplete();
+
+        // Another instance finishes the build instead of trusting the bitset
+        UserBloomFilter other = new UserBloomFilter(redisOperations, redisTemplate, new SimpleMeterRegistry(),
+                true, true, 1000, 0.01, 500, 64);
+        other.start();
+        try {
+            // Values might all be present until the build is done, which answers without waiting
+            StepVerifier.create(Mono.defer(() -> other.mightContainUsername(keys, "unknown"))
+                    .delaySubscription(Duration.ofMillis(10)).repeat()
+                    .filter(mightContain -> !mightContain).next())
+                    .expectNext(false)
+                    .expectComplete()
+                    .verify(Duration.ofSeconds(10));
+            StepVerifier.create(other.mightContainUsername(keys, "missing")).expectNext(true).verifyComplete();
+            StepVerifier.create(redisTemplate.hasKey(keys.getBloomReady())).expectNext(true).verifyComplete();
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    void maxTenantsTest() {
+        UserBloomFilter other = new UserBloomFilter(redisOperations, redisTemplate, new SimpleMeterRegistry(),
+                true, true, 1000, 0.01, 500, 2);
+        other.start();
+        try {
+            for (String tenant : new String[]{TenantKeys.DEFAULT_TENANT, "tenant-a", "tenant-b", "tenant-c"}) {
+                StepVerifier.create(other.mightContainUsername(TenantKeys.of(tenant), "unknown"))
+                        .expectNextCount(1).verifyComplete();
+            }
+            // The default tenant's filter is kept, the least recently used other one makes way
+            Assertions.assertEquals(2, other.size());
+            StepVerifier.create(other.mightContainUsername(TenantKeys.of("tenant-a"), "unknown"))
+                    .expectNextCount(1).verifyComplete();
+            Assertions.assertEquals(2, other.size());
+        } finally {
+            other.stop();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.habeebcycle.demo.api.service;
+
+import com.habeebcycle.demo.api.model.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import redis.embedded.RedisServer;
+
+import java.time.Duration;
+
+@SpringBootTest(properties = {
+        "spring.redis.password=",
+        "app.user-expiry.sweeper-enabled=false",
+        "app.bloom-filter.enabled=false",
+        "app.hot-keys.min-hits=1",
+        "app.hot-keys.cache-ttl=1ms", // Only served as a stale copy
+        "app.circuit-breaker.read-timeout=200ms",
+        "app.circuit-breaker.window-size=10",
+        "app.circuit-breaker.minimum-calls=4",
+        "app.circuit-breaker.open-duration=500ms",
+        "app.circuit-breaker.half-open-calls=1"
+})
+public class CircuitBreakerTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private CircuitBreaker circuitBreaker;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @Test
+    void stateTest() {
+        CircuitBreaker breaker = new CircuitBreaker(new SimpleMeterRegistry(), true, 10, 4, 0.5,
+                Duration.ofMillis(100), 2);
+        Duration timeout = Duration.ofMillis(50);
+
+        // Business errors and successes keep it closed, failures of half the calls open it
+        StepVerifier.create(breaker.protect(Mono.error(new DuplicateKeyException("duplicate")), timeout))
+                .expectError(DuplicateKeyException.class)
+                .verify();
+        StepVerifier.create(breaker.protect(Mono.just(1), timeout)).expectNext(1).verifyComplete();
+        StepVerifier.create(breaker.protect(Mono.never(), timeout))
+                .expectError(RedisUnavailableException.class)
+                .verify();
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        StepVerifier.create(breaker.protect(Mono.error(new RedisConnectionFailureException("down")), timeout))
+                .expectError(RedisConnectionFailureException.class)
+                .verify();
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // Open, calls fail without being subscribed
+        StepVerifier.create(breaker.protect(Mono.fromCallable(() -> Assertions.fail("Called")), timeout))
+                .expectError(RedisUnavailableException.class)
+                .verify();
+
+        // Then trial calls close it once they all succeed
+        Mono.delay(Duration.ofMillis(150)).block();
+        Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        StepVerifier.create(breaker.protect(Mono.just(1), timeout)).expectNext(1).verifyComplete();
+        Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        StepVerifier.create(breaker.protect(Mono.just(2), timeout)).expectNext(2).verifyComplete();
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void slowSubscriberTest() {
+        CircuitBreaker breaker = new CircuitBreaker(new SimpleMeterRegistry(), true, 10, 1, 0.5,
+                Duration.ofMillis(100), 2);
+        Duration timeout = Duration.ofMillis(50);
+
+        // Not requesting for longer than the timeout is not a failure, values Redis does not deliver are
+        StepVerifier.create(breaker.protect(Flux.range(1, 3), timeout), 1)
+                .expectNext(1)
+                .thenAwait(Duration.ofMillis(150))
+                .thenRequest(2)
+                .expectNext(2, 3)
+                .verifyComplete();
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        StepVerifier.create(breaker.protect(Flux.concat(Flux.just(1), Flux.never()), timeout))
+                .expectNext(1)
+                .expectError(RedisUnavailableException.class)
+                .verify(Duration.ofSeconds(5));
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void degradedReadsTest() {
+        userService.deleteAllUsers().block();
+        User hot = userService.saveUser(new User("hot", "hot@aol.com", "name")).block();
+        User cold = userService.saveUser(new User("cold", "cold@aol.com", "name")).block();
+        Assertions.assertNotNull(hot);
+        Assertions.assertNotNull(cold);
+        Assertions.assertNotNull(userService.getUserById(hot.getId()).block());
+
+        REDISSERVER.stop();
+        try {
+            // Reads time out until the breaker opens, then fail fast. The hot user is still served.
+            for (int i = 0; i < 4; i++) {
+                StepVerifier.create(userService.getUserById(cold.getId()))
+                        .expectError(RedisUnavailableException.class)
+                        .verify(Duration.ofSeconds(5));
+            }
+            Assertions.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+            long start = System.nanoTime();
+            StepVerifier.create(userService.userCount())
+                    .expectError(RedisUnavailableException.class)
+                    .verify();
+            long elapsed = System.nanoTime() - start;
+            Assertions.assertTrue(elapsed < Duration.ofMillis(100).toNanos(), elapsed + " ns");
+
+            StepVerifier.create(userService.getUserById(hot.getId()).map(User::getUsername))
+                    .expectNext("hot")
+                    .verifyComplete();
+            Assertions.assertTrue(meterRegistry.get("users.fallback").tag("result", "served").counter().count() > 0);
+            Assertions.assertEquals(2, meterRegistry.get("redis.circuit.breaker.state").gauge().value());
+        } finally {
+            REDISSERVER.start();
+        }
+
+        // Once the open duration is over, a successful trial call closes it again
+        Mono.delay(Duration.ofMillis(600)).block();
+        StepVerifier.create(userService.userCount().retry(5))
+                .expectNextCount(1)
+                .verifyComplete();
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,123 @@
+package com.habeebcycle.demo.api.service;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import redis.embedded.RedisServer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.user-expiry.sweeper-enabled=false",
+                "app.hot-keys.top-k=4",
+                "app.hot-keys.min-hits=10",
+                "app.hot-keys.window=1h", // Decayed by the tests
+                "app.hot-keys.cache-ttl=1h"
+        }
+)
+public class HotUserCacheTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private UserRepository repository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUpDB() {
+        userService.deleteAllUsers().block();
+    }
+
+    @Test
+    void heavyHittersTest() {
+        // Skewed stream: 5 keys take half of the accesses, 10000 others share the rest
+        HeavyHitters heavyHitters = new HeavyHitters(1024, 4, 5);
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            heavyHitters.add(i % 2 == 0 ? "hot" + random.nextInt(5) : "cold" + random.nextInt(10_000));
+        }
+
+        List<Map.Entry<String, Long>> top = heavyHitters.top();
+        Assertions.assertEquals(5, top.size());
+        for (Map.Entry<String, Long> entry : top) {
+            Assertions.assertTrue(entry.getKey().startsWith("hot"), entry.getKey());
+            Assertions.assertTrue(entry.getValue() >= 20_000 * 0.95, entry.toString());
+        }
+
+        // Keys that are not accessed anymore leave the top
+        for (int i = 0; i < 20; i++) {
+            heavyHitters.decay();
+        }
+        Assertions.assertTrue(heavyHitters.top().isEmpty());
+    }
+
+    @Test
+    void hotUserCacheTest() {
+        User hot = userService.saveUser(new User("hot", "hot@aol.com", "name")).block();
+        User cold = userService.saveUser(new User("cold", "cold@aol.com", "name")).block();
+        Assertions.assertNotNull(hot);
+        Assertions.assertNotNull(cold);
+
+        double hits = lookups("hit");
+        for (int i = 0; i < 50; i++) {
+            Assertions.assertEquals("hot", userService.getUserById(hot.getId()).map(User::getUsername).block());
+        }
+        userService.getUserById(cold.getId()).block();
+        Assertions.assertTrue(lookups("hit") - hits >= 39);
+
+        client.get()
+                .uri("/actuator/hotkeys")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[0].key").isEqualTo("default:" + hot.getId())
+                .jsonPath("$[0].hot").isEqualTo(true)
+                .jsonPath("$[0].cached").isEqualTo(true)
+                .jsonPath("$[1].hot").isEqualTo(false);
+
+        // Updates through the service drop the cached copy, changes of the returned users do not reach it
+        User user = userService.getUserById(hot.getId()).block();
+        Assertions.assertNotNull(user);
+        user.setName("updated-name");
+        Assertions.assertEquals("name", userService.getUserById(hot.getId()).map(User::getName).block());
+        userService.saveUser(user).block();
+        Assertions.assertEquals("updated-name", userService.getUserById(hot.getId()).map(User::getName).block());
+
+        // Writes around the service are seen once the short ttl is over, here never
+        repository.deleteById(hot.getId()).block();
+        Assertions.assertNotNull(userService.getUserById(hot.getId()).block());
+        userService.deleteUserById(hot.getId()).block();
+        Assertions.assertNull(userService.getUserById(hot.getId()).block());
+    }
+
+    private double lookups(String result) {
+        return meterRegistry.get("users.hot.cache.lookups").tag("result", result).counter().count();
+    }
+}
@@ -0,0 +1,104 @@
+package com.habeebcycle.demo.api.service;
+
+import com.habeebcycle.demo.api.model.User;
+import com.habeebcycle.demo.api.repository.UserRepository;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import redis.embedded.RedisServer;
+
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "spring.redis.password=",
+                "app.snapshot.enabled=true",
+                "app.snapshot.refresh-interval=1h" // Refreshed by the tests
+        }
+)
+public class UserSnapshotCacheTests {
+
+    private final static RedisServer REDISSERVER = new RedisServer(6379);
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private UserRepository repository;
+
+    @Autowired
+    private UserSnapshotCache snapshotCache;
+
+    @BeforeAll
+    static void startUpRedisServer() {
+        REDISSERVER.start();
+    }
+
+    @AfterAll
+    static void shutDownRedisServer() {
+        REDISSERVER.stop();
+    }
+
+    @BeforeEach
+    void setUpDB() {
+        repository.deleteAll().block();
+        snapshotCache.refresh().block();
+    }
+
+    @Test
+    void snapshotTest() {
+        User user1 = repository.save(new User("username1", "email1", "name1")).block();
+        User user2 = repository.save(new User("username2", "email2", "name2")).block();
+        Assertions.assertNotNull(user1);
+        Assertions.assertNotNull(user2);
+
+        // Served from the snapshot, which only sees the new users once refreshed
+        String eTag = getUsers(null, HttpStatus.OK).returnResult().getResponseHeaders().getETag();
+        Assertions.assertNotNull(eTag);
+        snapshotCache.refresh().block();
+
+        String refreshedETag = getUsers(eTag, HttpStatus.OK).returnResult().getResponseHeaders().getETag();
+        Assertions.assertNotEquals(eTag, refreshedETag);
+        getUsersBody().jsonPath("$.length()").isEqualTo(2);
+
+        // Unchanged data returns 304 with no body
+        getUsers(refreshedETag, HttpStatus.NOT_MODIFIED);
+        snapshotCache.refresh().block();
+        getUsers(refreshedETag, HttpStatus.NOT_MODIFIED);
+
+        // Updates and deletes are applied incrementally
+        user1.setName("updated-name");
+        repository.save(user1).block();
+        repository.deleteById(user2.getId()).block();
+        snapshotCache.refresh().block();
+
+        getUsers(refreshedETag, HttpStatus.OK);
+        getUsersBody()
+                .jsonPath("$.length()").isEqualTo(1)
+                .jsonPath("$[0].name").isEqualTo("updated-name");
+
+        // Deleting every user starts a new epoch and the snapshot reloads
+        repository.deleteAll().block();
+        snapshotCache.refresh().block();
+        getUsersBody().jsonPath("$.length()").isEqualTo(0);
+    }
+
+    private WebTestClient.BodyContentSpec getUsers(String ifNoneMatch, HttpStatus expectedStatus) {
+        WebTestClient.RequestHeadersSpec<?> request = client.get()
+                .uri("/user")
+                .accept(MediaType.APPLICATION_JSON);
+        if (ifNoneMatch != null) {
+            request = request.header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        return request.exchange()
+                .expectStatus().isEqualTo(expectedStatus)
+                .expectBody();
+    }
+
+    private WebTestClient.BodyContentSpec getUsersBody() {
+        return getUsers(null, HttpStatus.OK);
+    }
+}